@@ -0,0 +1,4 @@
+@echo off
+CALL config.cmd
+CALL classpath.cmd
+java %PANFMP_TOOLS_JAVA_OPTIONS% -Dlog4j.configurationFile=%PANFMP_TOOLS_LOG4J_CONFIG% de.pangaea.metadataportal.harvester.ReplayDeadLetters %PANFMP_CONFIG% %1 %2
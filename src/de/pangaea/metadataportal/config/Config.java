@@ -21,12 +21,18 @@ import java.io.InputStream;
 import java.io.Reader;
 import java.lang.reflect.InvocationTargetException;
 import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -34,9 +40,12 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 import javax.xml.XMLConstants;
+import javax.xml.transform.Source;
 import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
@@ -45,6 +54,7 @@ import org.apache.commons.digester.AbstractObjectCreationFactory;
 import org.apache.commons.digester.ExtendedBaseRules;
 import org.apache.commons.digester.ObjectCreationFactory;
 import org.apache.commons.digester.SetPropertiesRule;
+import org.apache.xml.utils.SystemIDResolver;
 import org.elasticsearch.common.io.Streams;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
@@ -58,7 +68,6 @@ import de.pangaea.metadataportal.utils.ElementNameCallParamRule;
 import de.pangaea.metadataportal.utils.ExtendedDigester;
 import de.pangaea.metadataportal.utils.HostAndPort;
 import de.pangaea.metadataportal.utils.PublicForDigesterUse;
-import de.pangaea.metadataportal.utils.StaticFactories;
 
 /**
  * Main panFMP configuration class. It loads the configuration from a XML file.
@@ -86,7 +95,8 @@ public final class Config {
       dig.setRulesWithInvalidElementCheck(new ExtendedBaseRules());
       dig.setRuleNamespaceURI("urn:java:" + getClass().getName());
       
-      dig.addDoNothing("config");
+      // the XSLT options are needed before the first stylesheet is compiled, so they are set on begin of the root element:
+      dig.addRule("config", new SetPropertiesRule(new String[] { "xsltMode", "transletCache" }, new String[] { "xsltMode", "transletCache" }));
       
       // *** METADATA definition ***
       dig.addDoNothing("config/metadata");
@@ -122,7 +132,8 @@ public final class Config {
       dig.addCallParam("config/metadata/filters/*", 1);
       
       // fields
-      dig.addDoNothing("config/metadata/fields");
+      dig.addCallMethod("config/metadata/fields", "setFuseFields", 1);
+      dig.addCallParam("config/metadata/fields", 0, "fuse");
       
       // special purpose fields
       dig.addCallMethod("config/metadata/fields/xml-field", "setXMLField", 1);
@@ -131,6 +142,10 @@ public final class Config {
       dig.addCallParam("config/metadata/fields/source-field", 0, "name");
       dig.addCallMethod("config/metadata/fields/datestamp-field", "setDatestampField", 1);
       dig.addCallParam("config/metadata/fields/datestamp-field", 0, "name");
+      dig.addCallMethod("config/metadata/fields/generation-field", "setGenerationField", 1);
+      dig.addCallParam("config/metadata/fields/generation-field", 0, "name");
+      dig.addCallMethod("config/metadata/fields/digest-field", "setDigestField", 1);
+      dig.addCallParam("config/metadata/fields/digest-field", 0, "name");
       
       // XPath / template fields
       dig.addObjectCreate("config/metadata/fields/field", FieldConfig.class);
@@ -238,6 +253,20 @@ public final class Config {
       }
     } finally {
       dig = null;
+      if (templatesCompiler != null) templatesCompiler.shutdown();
+    }
+    
+    // wait for all XSL stylesheets, which were compiled in parallel while parsing:
+    for (VariableConfig v : xPathVariables) {
+      v.xslt = TemplatesCompiler.resolve(v.xslt);
+    }
+    for (FieldConfig f : fields.values()) {
+      f.xslt = TemplatesCompiler.resolve(f.xslt);
+    }
+    for (TargetIndexConfig iconf : targetIndexes.values()) {
+      for (HarvesterConfig hconf : iconf.harvesters.values()) {
+        hconf.xslt = TemplatesCompiler.resolve(hconf.xslt);
+      }
     }
     
     // *** After loading do final checks ***
@@ -246,8 +275,15 @@ public final class Config {
       iconf.check();
     }
     
+    // fields:
+    if (fuseFields) {
+      fusedFields = FusedFieldsConfig.compile(this);
+    }
+    streamingExtraction = StreamingExtractionConfig.compile(this);
+    
     // cleanup
     templatesCache.clear();
+    templatesCompiler = null;
   }
   
   /**
@@ -257,7 +293,19 @@ public final class Config {
   public final Path makePathAbsolute(String file) throws IOException {
     return Paths.get(makePathAbsolute(file, false));
   }
-  
+
+  /**
+   * makes the given local filesystem path absolute and resolve it relative to
+   * config directory, the file does not need to exist (for files written by panFMP)
+   **/
+  public final Path makeOutputPathAbsolute(String file) {
+    Path f = Paths.get(file);
+    if (!f.isAbsolute()) {
+      f = this.file.resolveSibling(f);
+    }
+    return f.toAbsolutePath().normalize();
+  }
+
   /**
    * makes the given local filesystem path or URL absolute and resolve it
    * relative to config directory (if local)
@@ -357,6 +405,49 @@ public final class Config {
     fieldnameSource = name;
   }
   
+  @PublicForDigesterUse
+  @Deprecated
+  public void setGenerationField(String name) {
+    if (name == null || name.isEmpty()) {
+      throw new IllegalArgumentException("Invalid name for generation field: " + name);
+    }
+    fieldnameGeneration = name;
+  }
+  
+  @PublicForDigesterUse
+  @Deprecated
+  public void setDigestField(String name) {
+    if (name == null || name.isEmpty()) {
+      throw new IllegalArgumentException("Invalid name for digest field: " + name);
+    }
+    fieldnameDigest = name;
+  }
+  
+  @PublicForDigesterUse
+  @Deprecated
+  public void setFuseFields(String v) {
+    if (v == null) return; // no change
+    fuseFields = BooleanParser.parseBoolean(v.trim());
+  }
+  
+  @PublicForDigesterUse
+  @Deprecated
+  public void setXsltMode(String v) {
+    try {
+      xsltMode = XsltMode.valueOf(v.trim().toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid value '" + v
+          + "' for attribute xsltMode, valid ones are: "
+          + Arrays.toString(XsltMode.values()));
+    }
+  }
+  
+  @PublicForDigesterUse
+  @Deprecated
+  public void setTransletCache(String v) {
+    transletCache = makeOutputPathAbsolute(v.trim());
+  }
+  
   @PublicForDigesterUse
   @Deprecated
   public void setFilterDefault(String v) {
@@ -370,6 +461,7 @@ public final class Config {
   public void setSchema(String namespace, String url) throws Exception {
     if (schema != null) throw new SAXException("Schema URL already defined!");
     url = makePathAbsolute(url.trim(), true);
+    addDependency(url);
     
     if (namespace != null) namespace = namespace.trim();
     if (namespace == null || "".equals(namespace)) namespace = XMLConstants.W3C_XML_SCHEMA_NS_URI;
@@ -377,6 +469,17 @@ public final class Config {
         + url + "'...");
     try {
       SchemaFactory fact = SchemaFactory.newInstance(namespace);
+      // record the parts of the schema (xs:include, xs:import,...), they are loaded as usual:
+      fact.setResourceResolver((type, namespaceURI, publicId, systemId, baseURI) -> {
+        if (systemId != null) {
+          try {
+            addDependency(resolveURI(systemId, baseURI));
+          } catch (TransformerException e) {
+            addDependency(systemId);
+          }
+        }
+        return null;
+      });
       schema = fact.newSchema(new StreamSource(url));
     } catch (IllegalArgumentException iae) {
       throw new IllegalArgumentException(
@@ -397,6 +500,7 @@ public final class Config {
     if (esMappingFile != null)
       throw new IllegalArgumentException("Duplicate Elasticsearch mapping file");
     esMappingFile = makePathAbsolute(v);
+    addDependency(esMappingFile.toString());
     try (final Reader reader = Files.newBufferedReader(esMappingFile, StandardCharsets.UTF_8)) {
       esMapping = Streams.copyToString(reader);
     }
@@ -432,17 +536,84 @@ public final class Config {
   
   Templates loadTemplate(String file) throws Exception {
     file = makePathAbsolute(file, true);
+    addDependency(file);
     Templates templ = templatesCache.get(file);
     if (templ == null) {
       log.info("Loading XSL transformation from '" + file + "'...");
       templatesCache.put(
           file,
-          templ = StaticFactories.transFactory.newTemplates(new StreamSource(file))
+          templ = compileTemplate(new StreamSource(file))
       );
     }
     return templ;
   }
   
+  /**
+   * Compiles a XSL stylesheet according to {@link #xsltMode}. While parsing, this returns
+   * a placeholder and the stylesheet is compiled in parallel (see {@link TemplatesCompiler}).
+   * Stylesheets, that XSLTC cannot compile (e.g., because of unsupported extension functions),
+   * are loaded by the interpretive processor.
+   */
+  Templates compileTemplate(Source source) throws TransformerException, IOException {
+    if (templatesCompiler == null) {
+      templatesCompiler = new TemplatesCompiler(xsltMode, transletCache, this::addDependency);
+    }
+    return templatesCompiler.compile(source);
+  }
+  
+  /**
+   * Records a local file or URL, that was loaded while parsing, for the fingerprint.
+   * Local <code>file:</code> URLs are recorded as path, so their contents are digested.
+   * This may be called by several threads.
+   */
+  void addDependency(String uri) {
+    if (uri.startsWith("file:")) {
+      try {
+        uri = Paths.get(new URI(uri)).toString();
+      } catch (URISyntaxException | IllegalArgumentException e) {
+        // keep it as URL
+      }
+    }
+    dependencies.add(uri);
+  }
+  
+  /** Resolves a (relative) URI or path against the given base, as the XML parsers do. */
+  static String resolveURI(String href, String base) throws TransformerException {
+    return SystemIDResolver.getAbsoluteURI(href, base);
+  }
+  
+  /**
+   * Returns a fingerprint of this configuration: a digest of the config file, all XSL
+   * transformations and the schema (including all files they include or import),
+   * the Elasticsearch mapping, and the panFMP version. It changes
+   * whenever one of these changes, so caches of previous conversion results can be invalidated.
+   * Files loaded from remote URLs are only included by their URL.
+   */
+  public synchronized String getFingerprint() throws IOException {
+    if (fingerprint == null) {
+      final MessageDigest md;
+      try {
+        md = MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError("MD5 is always supported by the JVM.", e);
+      }
+      md.update(String.valueOf(Package.getVersion()).getBytes(StandardCharsets.UTF_8));
+      md.update(Files.readAllBytes(file));
+      for (final String dep : dependencies) {
+        md.update((byte) 0);
+        md.update(dep.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        try {
+          new URL(dep);
+        } catch (MalformedURLException me) {
+          md.update(Files.readAllBytes(Paths.get(dep)));
+        }
+      }
+      fingerprint = Base64.getEncoder().withoutPadding().encodeToString(md.digest());
+    }
+    return fingerprint;
+  }
+  
   // harvesters
   public final Set<String> harvestersAndIndexes = new HashSet<>();
   public final Map<String,TargetIndexConfig> targetIndexes = new LinkedHashMap<>();
@@ -456,9 +627,14 @@ public final class Config {
   public String fieldnameXML = "xml";  
   public String fieldnameSource = "internal-source";
   public String fieldnameDatestamp = "internal-datestamp";
+  public String fieldnameGeneration = "internal-generation";
+  public String fieldnameDigest = "internal-digest";
 
   // fields
   public final Map<String,FieldConfig> fields = new LinkedHashMap<>();
+  public boolean fuseFields = false;
+  public FusedFieldsConfig fusedFields = null;
+  public StreamingExtractionConfig streamingExtraction = null;
   
   // filters
   public FilterConfig.FilterType filterDefault = FilterConfig.FilterType.ACCEPT;
@@ -467,6 +643,10 @@ public final class Config {
   // variables
   public final List<VariableConfig> xPathVariables = new ArrayList<>();
   
+  // XSLT
+  public XsltMode xsltMode = XsltMode.COMPILED;
+  public Path transletCache = null;
+  
   // schema etc
   public Schema schema = null;
   public boolean haltOnSchemaError = false, validateWithAugmentation = true;
@@ -481,6 +661,11 @@ public final class Config {
   
   // Template cache:
   private final Map<String,Templates> templatesCache = new HashMap<>();
+  private TemplatesCompiler templatesCompiler = null;
+  
+  // local files or URLs loaded while parsing, for the fingerprint (sorted, as stylesheets are compiled in parallel):
+  private final Set<String> dependencies = new ConcurrentSkipListSet<>();
+  private String fingerprint = null;
   
   ExtendedDigester dig = null;
   
@@ -503,6 +688,13 @@ public final class Config {
       return builder;
     }
   };
+  public static enum XsltMode {
+    /** Stylesheets are compiled to bytecode by XSLTC (default). */
+    COMPILED,
+    /** Stylesheets are executed by the interpretive Xalan processor. */
+    INTERPRETIVE
+  };
+  
   private static final Class<?>[] DIGSTRING_PARAMS = new Class<?>[] { ExtendedDigester.class, String.class };
   
 }
\ No newline at end of file
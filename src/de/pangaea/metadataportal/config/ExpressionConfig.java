@@ -16,15 +16,19 @@
 
 package de.pangaea.metadataportal.config;
 
+import java.util.Map;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
 import javax.xml.transform.Templates;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 
-import de.pangaea.metadataportal.processor.XPathResolverImpl;
+import org.w3c.dom.Document;
+
+import de.pangaea.metadataportal.utils.CompiledXPath;
 import de.pangaea.metadataportal.utils.ExtendedDigester;
 import de.pangaea.metadataportal.utils.PublicForDigesterUse;
-import de.pangaea.metadataportal.utils.StaticFactories;
+import de.pangaea.metadataportal.utils.XPathResultTypes;
 
 /**
  * Generic XPath/XSLT config element. This class contains a XPath expression
@@ -40,29 +44,38 @@ public class ExpressionConfig {
       throws XPathExpressionException {
     if ("".equals(xpath)) return; // Exception throws the Config.addField()
                                   // method
-    XPath x = StaticFactories.xpathFactory.newXPath();
-    x.setXPathFunctionResolver(XPathResolverImpl.getInstance());
-    x.setXPathVariableResolver(XPathResolverImpl.getInstance());
     // current namespace context with strict=true (display errors when namespace
     // declaration is missing [non-standard!])
     // and with possibly declared default namespace is redefined/deleted to ""
     // (according to XSLT specification,
     // where this is also mandatory).
-    x.setNamespaceContext(dig.getCurrentNamespaceContext(true, true));
-    xPathExpr = x.compile(xpath);
+    final NamespaceContext ctx = dig.getCurrentNamespaceContext(true, true);
+    xPathExpr = new CompiledXPath(xpath, ctx);
+    xPathResultType = XPathResultTypes.getResultType(xpath, ctx);
     cachedXPath = xpath;
+    namespaces = dig.getCurrentNamespaceMap();
   }
   
   public void setTemplate(Templates xslt) {
     this.xslt = xslt;
   }
   
+  String getXPath() {
+    return cachedXPath;
+  }
+  
   @Override
   public String toString() {
     return (xPathExpr == null) ? "?template?" : cachedXPath;
   }
   
-  public XPathExpression xPathExpr = null;
+  public CompiledXPath xPathExpr = null;
+  /** Result type of {@link #xPathExpr} (see {@link XPathResultTypes}), {@code null} if only known on evaluation. */
+  public QName xPathResultType = null;
   public Templates xslt = null;
   private String cachedXPath = null;
+  
+  // needed to fuse fields into one stylesheet (see FusedFieldsConfig):
+  Map<String,String> namespaces = null;
+  Document templateStylesheet = null;
 }
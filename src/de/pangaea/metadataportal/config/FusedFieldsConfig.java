@@ -0,0 +1,312 @@
+/*
+ *   Copyright panFMP Developers Team c/o Uwe Schindler
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package de.pangaea.metadataportal.config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.transform.dom.DOMSource;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import de.pangaea.metadataportal.processor.XPathResolverImpl;
+import de.pangaea.metadataportal.utils.StaticFactories;
+
+/**
+ * All fields, that can be evaluated together, compiled into one XSL stylesheet.
+ * It is created by {@link Config}, if the attribute <code>fuse="true"</code> is given on
+ * the <code>&lt;fields&gt;</code> element. Instead of running one XPath or XSL transformation
+ * per field, the stylesheet is applied once per document.
+ * <p>
+ * The result is an element <code>result</code> (in namespace {@link #NAMESPACE}) with a child
+ * element <code>field</code> for each field in {@link #fields} (same order). Each
+ * <code>field</code> element contains one <code>value</code> element per result node
+ * with its text, collected the same way as for unfused fields.
+ * <p>
+ * Fields with datatype XML, JSON or XHTML, templates loaded from files, templates that
+ * need their own template rules, and XPath expressions that refer to user-defined
+ * variables are evaluated separately.
+ */
+public final class FusedFieldsConfig extends ExpressionConfig {
+  private static final org.apache.commons.logging.Log log = org.apache.commons.logging.LogFactory.getLog(FusedFieldsConfig.class);
+
+  public static final String NAMESPACE = "urn:java:" + FusedFieldsConfig.class.getName();
+
+  private FusedFieldsConfig(List<FieldConfig> fields) {
+    this.fields = Collections.unmodifiableList(fields);
+    this.fieldSet = Collections.newSetFromMap(new IdentityHashMap<>());
+    this.fieldSet.addAll(fields);
+  }
+
+  /**
+   * Creates the stylesheet for all fields of the given config that can be fused.
+   * Returns {@code null}, if there are none.
+   */
+  static FusedFieldsConfig compile(Config config) throws Exception {
+    final List<FieldConfig> fusable = new ArrayList<>();
+    for (FieldConfig f : config.fields.values()) {
+      final String reason = checkFusable(config, f);
+      if (reason == null) {
+        fusable.add(f);
+      } else {
+        log.info("Field '" + f.name + "' is evaluated separately: " + reason);
+      }
+    }
+    if (fusable.isEmpty()) return null;
+
+    final FusedFieldsConfig fused = new FusedFieldsConfig(fusable);
+    log.info("Compiling fused XSL stylesheet for fields " + fusable + "...");
+    fused.setTemplate(config.compileTemplate(
+        new DOMSource(fused.createStylesheet(config), config.file.toUri().toASCIIString())));
+    return fused;
+  }
+
+  /** Returns {@code null}, if the field can be fused, otherwise the reason why not. */
+  private static String checkFusable(Config config, FieldConfig f) {
+    switch (f.datatype) {
+      case XML:
+      case JSON:
+      case XHTML:
+        return "datatype " + f.datatype + " is not supported";
+      default:
+        break;
+    }
+    if (f.xPathExpr != null) {
+      final String xpath = f.getXPath();
+      if (NAMESPACE_AXIS.matcher(xpath).find()) {
+        return "namespace axis is not supported";
+      }
+      if (!Collections.disjoint(f.namespaces.keySet(), RESERVED_PREFIXES)) {
+        return "namespace prefix is reserved";
+      }
+      final Matcher m = VARIABLE_REFERENCE.matcher(xpath);
+      while (m.find()) {
+        final String prefix = (m.group(2) == null) ? XMLConstants.DEFAULT_NS_PREFIX : m.group(1);
+        final String uri = XMLConstants.DEFAULT_NS_PREFIX.equals(prefix) ? XMLConstants.NULL_NS_URI : f.namespaces.get(prefix);
+        final QName name = new QName(uri, (m.group(2) == null) ? m.group(1) : m.group(2));
+        if (uri == null || !XPathResolverImpl.BASE_VARIABLES.contains(name)) {
+          // user-defined variables may contain nodes of the document, which are copied when passed to XSL:
+          return "refers to variable $" + m.group(0).substring(1).trim();
+        }
+      }
+      return null;
+    }
+    if (f.templateStylesheet == null) {
+      return "template is loaded from a file";
+    }
+    final Element template = getTemplateElement(f.templateStylesheet);
+    for (String name : UNSUPPORTED_INSTRUCTIONS) {
+      if (template.getElementsByTagNameNS(TemplateSaxRule.XSL_NAMESPACE, name).getLength() > 0) {
+        return "template uses <xsl:" + name + "/>";
+      }
+    }
+    final NamedNodeMap atts = f.templateStylesheet.getDocumentElement().getAttributes();
+    for (int i = 0, c = atts.getLength(); i < c; i++) {
+      final Attr att = (Attr) atts.item(i);
+      if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(att.getNamespaceURI()) && RESERVED_PREFIXES.contains(att.getLocalName())) {
+        return "namespace prefix is reserved";
+      }
+    }
+    return null;
+  }
+
+  /** Returns the <code>&lt;xsl:template match="/"&gt;</code> generated by {@link TemplateSaxRule}. */
+  private static Element getTemplateElement(Document stylesheet) {
+    for (Node n = stylesheet.getDocumentElement().getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (n.getNodeType() == Node.ELEMENT_NODE && TemplateSaxRule.XSL_NAMESPACE.equals(n.getNamespaceURI())
+          && "template".equals(n.getLocalName())) {
+        return (Element) n;
+      }
+    }
+    throw new IllegalStateException("Template stylesheet has no <xsl:template/>");
+  }
+
+  private Document createStylesheet(Config config) {
+    final Document doc = StaticFactories.dombuilder.newDocument();
+    final Element root = xsl(doc, "stylesheet");
+    declare(root, XSL_PREFIX, TemplateSaxRule.XSL_NAMESPACE);
+    declare(root, PREFIX, NAMESPACE);
+    declare(root, EXSL_PREFIX, EXSL_NAMESPACE);
+    root.setAttribute("version", "1.0");
+    root.setAttribute("exclude-result-prefixes", XSL_PREFIX + " " + EXSL_PREFIX);
+    doc.appendChild(root);
+
+    // register variables as params (like TemplateSaxRule)
+    final Set<QName> vars = new HashSet<>(XPathResolverImpl.BASE_VARIABLES);
+    for (VariableConfig v : config.xPathVariables) {
+      vars.add(v.name);
+    }
+    for (QName name : vars) {
+      final Element param = xsl(doc, "param");
+      if (XMLConstants.NULL_NS_URI.equals(name.getNamespaceURI())) {
+        param.setAttribute("name", name.getLocalPart());
+      } else {
+        declare(param, "var", name.getNamespaceURI());
+        param.setAttribute("name", "var:" + name.getLocalPart());
+      }
+      root.appendChild(param);
+    }
+
+    // main template, calling the values template for each field:
+    final Element main = xsl(doc, "template");
+    main.setAttribute("match", "/");
+    root.appendChild(main);
+    final Element result = doc.createElementNS(NAMESPACE, PREFIX + ":result");
+    main.appendChild(result);
+    for (FieldConfig f : fields) {
+      final Element field = doc.createElementNS(NAMESPACE, PREFIX + ":field");
+      result.appendChild(field);
+      final Element call = xsl(doc, "call-template");
+      call.setAttribute("name", PREFIX + ":values");
+      field.appendChild(call);
+      final Element param = xsl(doc, "with-param");
+      param.setAttribute("name", PREFIX + ":value");
+      call.appendChild(param);
+      if (f.xPathExpr != null) {
+        for (Map.Entry<String,String> e : f.namespaces.entrySet()) {
+          if (!XMLConstants.DEFAULT_NS_PREFIX.equals(e.getKey())) {
+            declare(param, e.getKey(), e.getValue());
+          }
+        }
+        param.setAttribute("select", f.getXPath());
+      } else {
+        final NamedNodeMap atts = f.templateStylesheet.getDocumentElement().getAttributes();
+        for (int i = 0, c = atts.getLength(); i < c; i++) {
+          final Attr att = (Attr) atts.item(i);
+          if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(att.getNamespaceURI())) {
+            param.setAttributeNodeNS((Attr) doc.importNode(att, false));
+          }
+        }
+        for (Node n = getTemplateElement(f.templateStylesheet).getFirstChild(); n != null; n = n.getNextSibling()) {
+          param.appendChild(doc.importNode(n, true));
+        }
+      }
+    }
+
+    // the values template: one <value/> per node, or one for a string/number/boolean:
+    final Element values = xsl(doc, "template");
+    values.setAttribute("name", PREFIX + ":values");
+    root.appendChild(values);
+    final Element valueParam = xsl(doc, "param");
+    valueParam.setAttribute("name", PREFIX + ":value");
+    values.appendChild(valueParam);
+    final Element choose = xsl(doc, "choose");
+    values.appendChild(choose);
+    Element when = xsl(doc, "when");
+    when.setAttribute("test", EXSL_PREFIX + ":object-type($" + PREFIX + ":value)='node-set'");
+    when.appendChild(forEachValue(doc, "$" + PREFIX + ":value"));
+    choose.appendChild(when);
+    when = xsl(doc, "when");
+    when.setAttribute("test", EXSL_PREFIX + ":object-type($" + PREFIX + ":value)='RTF'");
+    when.appendChild(forEachValue(doc, EXSL_PREFIX + ":node-set($" + PREFIX + ":value)/node()"));
+    choose.appendChild(when);
+    final Element otherwise = xsl(doc, "otherwise");
+    final Element value = doc.createElementNS(NAMESPACE, PREFIX + ":value");
+    final Element valueOf = xsl(doc, "value-of");
+    valueOf.setAttribute("select", "$" + PREFIX + ":value");
+    value.appendChild(valueOf);
+    otherwise.appendChild(value);
+    choose.appendChild(otherwise);
+
+    // text collection (like MetadataDocument.walkNodeTexts()):
+    Element text = xsl(doc, "template");
+    text.setAttribute("match", "/|*");
+    text.setAttribute("mode", PREFIX + ":text");
+    final Element forEachChild = xsl(doc, "for-each");
+    forEachChild.setAttribute("select", "node()");
+    forEachChild.appendChild(applyTextTemplates(doc));
+    final Element newline = xsl(doc, "text");
+    newline.setTextContent("\n");
+    forEachChild.appendChild(newline);
+    text.appendChild(forEachChild);
+    root.appendChild(text);
+    text = xsl(doc, "template");
+    text.setAttribute("match", "text()|@*");
+    text.setAttribute("mode", PREFIX + ":text");
+    final Element textValue = xsl(doc, "value-of");
+    textValue.setAttribute("select", ".");
+    text.appendChild(textValue);
+    root.appendChild(text);
+    text = xsl(doc, "template");
+    text.setAttribute("match", "comment()|processing-instruction()");
+    text.setAttribute("mode", PREFIX + ":text");
+    root.appendChild(text);
+
+    return doc;
+  }
+
+  private static Element forEachValue(Document doc, String select) {
+    final Element forEach = xsl(doc, "for-each");
+    forEach.setAttribute("select", select);
+    final Element value = doc.createElementNS(NAMESPACE, PREFIX + ":value");
+    value.appendChild(applyTextTemplates(doc));
+    forEach.appendChild(value);
+    return forEach;
+  }
+
+  private static Element applyTextTemplates(Document doc) {
+    final Element apply = xsl(doc, "apply-templates");
+    apply.setAttribute("select", ".");
+    apply.setAttribute("mode", PREFIX + ":text");
+    return apply;
+  }
+
+  private static Element xsl(Document doc, String localName) {
+    return doc.createElementNS(TemplateSaxRule.XSL_NAMESPACE, XSL_PREFIX + ":" + localName);
+  }
+
+  private static void declare(Element e, String prefix, String namespace) {
+    e.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix, namespace);
+  }
+
+  /** Returns {@code true}, if the given field is evaluated by this stylesheet. */
+  public boolean contains(FieldConfig f) {
+    return fieldSet.contains(f);
+  }
+
+  @Override
+  public String toString() {
+    return "fused " + fields;
+  }
+
+  /** The fused fields, in the order of the <code>field</code> elements in the result. */
+  public final List<FieldConfig> fields;
+  private final Set<FieldConfig> fieldSet;
+
+  private static final String PREFIX = "int-fused", XSL_PREFIX = "int-fused-xsl", EXSL_PREFIX = "int-fused-exsl";
+  private static final String EXSL_NAMESPACE = "http://exslt.org/common";
+  private static final Set<String> RESERVED_PREFIXES = Set.of(PREFIX, XSL_PREFIX, EXSL_PREFIX);
+  // those need the template rules of their own stylesheet or must be direct children of <xsl:template/>:
+  private static final List<String> UNSUPPORTED_INSTRUCTIONS = List.of("apply-templates", "apply-imports", "call-template", "param");
+
+  private static final Pattern NAMESPACE_AXIS = Pattern.compile("namespace\\s*::");
+  private static final Pattern VARIABLE_REFERENCE = Pattern.compile("\\$\\s*([\\p{L}_][\\p{L}\\p{N}_.\\-]*)(?::([\\p{L}_][\\p{L}\\p{N}_.\\-]*))?");
+
+}
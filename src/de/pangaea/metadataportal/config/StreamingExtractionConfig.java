@@ -0,0 +1,238 @@
+/*
+ *   Copyright panFMP Developers Team c/o Uwe Schindler
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package de.pangaea.metadataportal.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.XMLConstants;
+import javax.xml.xpath.XPathConstants;
+
+/**
+ * The XPath expressions of all filters and fields, if they are all simple location
+ * paths, that can be evaluated while streaming the document as SAX events (without
+ * building a DOM tree). It is created by {@link Config}, if all filters and fields are
+ * streamable. Variables are not needed, as simple paths cannot refer to them.
+ * <p>
+ * Supported are unions of absolute or relative (to the document) location paths
+ * with child and descendant steps (<code>/</code>, <code>//</code>, <code>child::</code>,
+ * <code>descendant::</code>) testing element names (or <code>*</code>). The last
+ * step may also select attributes (<code>@name</code>, <code>@*</code>) or text nodes
+ * (<code>text()</code>). Predicates, functions, and other axes are not supported.
+ * Fields must not be templates and must not have datatype XML, JSON or XHTML.
+ */
+public final class StreamingExtractionConfig {
+  private static final org.apache.commons.logging.Log log = org.apache.commons.logging.LogFactory.getLog(StreamingExtractionConfig.class);
+
+  private StreamingExtractionConfig(Path[][] filters, Path[][] fields) {
+    this.filters = filters;
+    this.fields = fields;
+  }
+
+  /**
+   * Analyzes all filters and fields of the given config.
+   * Returns {@code null}, if one of them cannot be streamed.
+   */
+  static StreamingExtractionConfig compile(Config config) {
+    final Path[][] filters = new Path[config.filters.size()][];
+    int i = 0;
+    for (FilterConfig f : config.filters) {
+      if ((filters[i++] = parse(f)) == null) {
+        log.info("Documents are converted to DOM trees for extraction, filter is not a simple path: " + f);
+        return null;
+      }
+    }
+    final Path[][] fields = new Path[config.fields.size()][];
+    i = 0;
+    for (FieldConfig f : config.fields.values()) {
+      switch (f.datatype) {
+        case XML:
+        case JSON:
+        case XHTML:
+          log.info("Documents are converted to DOM trees for extraction, field '" + f.name + "' has datatype " + f.datatype);
+          return null;
+        default:
+          break;
+      }
+      if ((fields[i++] = parse(f)) == null) {
+        log.info("Documents are converted to DOM trees for extraction, field '" + f.name + "' is not a simple path: " + f);
+        return null;
+      }
+    }
+    log.info("All filters and fields are simple paths, documents are extracted while streaming.");
+    return new StreamingExtractionConfig(filters, fields);
+  }
+
+  private static Path[] parse(ExpressionConfig expr) {
+    if (expr.xPathExpr == null || !XPathConstants.NODESET.equals(expr.xPathResultType)) {
+      return null;
+    }
+    final String[] alternatives = expr.getXPath().split("\\|", -1);
+    final Path[] paths = new Path[alternatives.length];
+    for (int i = 0; i < alternatives.length; i++) {
+      if ((paths[i] = Path.parse(alternatives[i].trim(), expr.namespaces)) == null) {
+        return null;
+      }
+    }
+    return paths;
+  }
+
+  /** The alternatives of the union of each filter (same order as {@link Config#filters}). */
+  public final Path[][] filters;
+  /** The alternatives of the union of each field (same order as {@link Config#fields}). */
+  public final Path[][] fields;
+
+  /**
+   * A simple location path. While streaming, the state of the path is a bit set
+   * for each element, where bit <em>i</em> is set, if the first <em>i</em> steps
+   * match the element. The state of the document node is {@link #DOCUMENT_STATE}.
+   */
+  public static final class Path {
+    private static final String NCNAME = "[\\p{L}_][\\p{L}\\p{N}_.\\-]*";
+    private static final Pattern STEP = Pattern.compile("(?:(child|descendant|attribute)::|(@))?(text\\(\\)|\\*|" +
+        NCNAME + ":\\*|(?:" + NCNAME + ":)?" + NCNAME + ")");
+
+    /** The state of the document node. */
+    public static final long DOCUMENT_STATE = 1L;
+
+    private enum Kind { ELEMENT, ATTRIBUTE, TEXT }
+
+    private final Kind kind;
+    private final int elementSteps;
+    private final boolean[] descendant;
+    private final String[] namespaceURIs, localNames; // null = any
+
+    private Path(Kind kind, List<Boolean> descendant, List<String> namespaceURIs, List<String> localNames) {
+      this.kind = kind;
+      this.elementSteps = (kind == Kind.ELEMENT) ? localNames.size() : localNames.size() - 1;
+      this.descendant = new boolean[descendant.size()];
+      for (int i = 0; i < this.descendant.length; i++) {
+        this.descendant[i] = descendant.get(i);
+      }
+      this.namespaceURIs = namespaceURIs.toArray(new String[0]);
+      this.localNames = localNames.toArray(new String[0]);
+    }
+
+    static Path parse(String xpath, Map<String,String> namespaces) {
+      final List<Boolean> descendant = new ArrayList<>();
+      final List<String> namespaceURIs = new ArrayList<>(), localNames = new ArrayList<>();
+      Kind kind = Kind.ELEMENT;
+      final Matcher m = STEP.matcher(xpath);
+      int pos = 0;
+      boolean desc = false;
+      if (xpath.startsWith("//")) {
+        pos = 2;
+        desc = true;
+      } else if (xpath.startsWith("/")) {
+        pos = 1;
+      }
+      while (true) {
+        if (kind != Kind.ELEMENT || !m.region(pos, xpath.length()).lookingAt()) {
+          return null; // attributes and text nodes must be last step
+        }
+        final String axis = m.group(1), test = m.group(3);
+        if ("descendant".equals(axis)) {
+          desc = true;
+        }
+        if ("attribute".equals(axis) || m.group(2) != null) {
+          kind = Kind.ATTRIBUTE;
+        } else if ("text()".equals(test)) {
+          kind = Kind.TEXT;
+        }
+        if (kind == Kind.TEXT) {
+          namespaceURIs.add(null);
+          localNames.add(null);
+        } else if ("text()".equals(test)) {
+          return null;
+        } else {
+          final int colon = test.indexOf(':');
+          final String uri;
+          if (colon < 0) {
+            // unprefixed names have no namespace in XPath 1.0:
+            uri = "*".equals(test) ? null : XMLConstants.NULL_NS_URI;
+          } else {
+            final String prefix = test.substring(0, colon);
+            uri = XMLConstants.XML_NS_PREFIX.equals(prefix) ? XMLConstants.XML_NS_URI : namespaces.get(prefix);
+            if (uri == null) return null;
+          }
+          final String local = test.substring(colon + 1);
+          namespaceURIs.add(uri);
+          localNames.add("*".equals(local) ? null : local);
+        }
+        descendant.add(desc);
+        if (descendant.size() > 62) return null;
+        pos = m.end();
+        if (pos == xpath.length()) {
+          break;
+        } else if (xpath.startsWith("//", pos)) {
+          pos += 2;
+          desc = true;
+        } else if (xpath.startsWith("/", pos)) {
+          pos += 1;
+          desc = false;
+        } else {
+          return null;
+        }
+      }
+      return new Path(kind, descendant, namespaceURIs, localNames);
+    }
+
+    private boolean matches(int step, String namespaceURI, String localName) {
+      return (namespaceURIs[step] == null || namespaceURIs[step].equals(namespaceURI))
+          && (localNames[step] == null || localNames[step].equals(localName));
+    }
+
+    /** Returns the state of an element, given the state of its parent. */
+    public long getElementState(long parentState, String namespaceURI, String localName) {
+      long state = 0L;
+      for (long bits = parentState; bits != 0L; bits &= bits - 1) {
+        final int i = Long.numberOfTrailingZeros(bits);
+        if (i < elementSteps) {
+          if (matches(i, namespaceURI, localName)) state |= 1L << (i + 1);
+          if (descendant[i]) state |= 1L << i;
+        } else if (kind != Kind.ELEMENT && descendant[i]) {
+          state |= 1L << i;
+        }
+      }
+      return state;
+    }
+
+    /** Returns {@code true}, if this path selects the element with the given state. */
+    public boolean selectsElement(long state) {
+      return kind == Kind.ELEMENT && (state & (1L << elementSteps)) != 0L;
+    }
+
+    /** Returns {@code true}, if this path selects the given attribute of an element with the given state. */
+    public boolean selectsAttribute(long state, String namespaceURI, String localName) {
+      return kind == Kind.ATTRIBUTE && (state & (1L << elementSteps)) != 0L && matches(elementSteps, namespaceURI, localName);
+    }
+
+    /** Returns {@code true}, if this path selects the text children of an element with the given state. */
+    public boolean selectsText(long state) {
+      return kind == Kind.TEXT && (state & (1L << elementSteps)) != 0L;
+    }
+
+    /** Returns {@code true}, if this path selects attributes. */
+    public boolean isAttributePath() {
+      return kind == Kind.ATTRIBUTE;
+    }
+  }
+
+}
@@ -6,6 +6,7 @@ import javax.xml.XMLConstants;
 import javax.xml.namespace.QName;
 import javax.xml.transform.Templates;
 
+import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
 
@@ -90,7 +91,18 @@ final class TemplateSaxRule extends TransformerSaxRule {
     else throw new RuntimeException("An XSLT template is not allowed here!");
   }
   
-  private static final String XSL_NAMESPACE = "http://www.w3.org/1999/XSL/Transform";
+  @Override
+  protected boolean isKeepingStylesheet() {
+    // needed to fuse field templates (see FusedFieldsConfig)
+    return digester.peek() instanceof FieldConfig;
+  }
+  
+  @Override
+  protected void setStylesheet(Document stylesheet) {
+    ((ExpressionConfig) digester.peek()).templateStylesheet = stylesheet;
+  }
+  
+  static final String XSL_NAMESPACE = "http://www.w3.org/1999/XSL/Transform";
   private static final String XSL_PREFIX = "int-tmpl-xsl";
   private static final String CNAME = "CNAME";
   
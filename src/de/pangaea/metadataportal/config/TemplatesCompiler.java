@@ -0,0 +1,294 @@
+/*
+ *   Copyright panFMP Developers Team c/o Uwe Schindler
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package de.pangaea.metadataportal.config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+
+import de.pangaea.metadataportal.Package;
+import de.pangaea.metadataportal.utils.LoggingErrorListener;
+
+/**
+ * Compiles the XSL stylesheets of a {@link Config} while it is parsed. The stylesheets
+ * are compiled in parallel by a pool of threads (each with its own transformer factories),
+ * {@link #compile} returns a placeholder, which is replaced by {@link #resolve} after parsing.
+ * <p>
+ * If a cache directory is given, the translets compiled by XSLTC are serialized to it.
+ * They are looked up by a SHA-256 hash of the stylesheet, its system ID, and the versions
+ * of panFMP and Xalan, so later runs do not need to compile unchanged stylesheets again.
+ * Stylesheets using <code>xsl:include</code> or <code>xsl:import</code> are not cached,
+ * as the hash does not cover the referenced files.
+ * <p>
+ * All files loaded by <code>xsl:include</code> or <code>xsl:import</code> are reported
+ * to a listener, so they are part of the configuration's fingerprint.
+ */
+final class TemplatesCompiler {
+  private static final org.apache.commons.logging.Log log = org.apache.commons.logging.LogFactory.getLog(TemplatesCompiler.class);
+
+  private static final String XSL_NAMESPACE = "http://www.w3.org/1999/XSL/Transform";
+  private static final String CACHE_FILE_SUFFIX = ".translet";
+
+  /** Only translets (bytecode and output properties) can be read from the cache. */
+  private static final ObjectInputFilter CACHE_FILTER = ObjectInputFilter.Config.createFilter(
+      "maxdepth=10;" + org.apache.xalan.xsltc.trax.TemplatesImpl.class.getName() +
+      ";java.util.Properties;java.util.Hashtable;java.util.Map$Entry;!*");
+
+  private final Config.XsltMode xsltMode;
+  private final Path cacheDir;
+  private final ExecutorService pool;
+  /** Records the referenced files and lets the processor load them as usual. */
+  private final URIResolver dependencyRecorder;
+
+  private final ThreadLocal<SAXTransformerFactory> compiledFactory = ThreadLocal.withInitial(() -> {
+    final SAXTransformerFactory f = new org.apache.xalan.xsltc.trax.TransformerFactoryImpl();
+    f.setErrorListener(new LoggingErrorListener(f.getClass()));
+    f.setURIResolver(getDependencyRecorder());
+    return f;
+  });
+  private final ThreadLocal<SAXTransformerFactory> interpretiveFactory = ThreadLocal.withInitial(() -> {
+    final SAXTransformerFactory f = new org.apache.xalan.processor.TransformerFactoryImpl();
+    f.setErrorListener(new LoggingErrorListener(f.getClass()));
+    f.setURIResolver(getDependencyRecorder());
+    return f;
+  });
+
+  TemplatesCompiler(Config.XsltMode xsltMode, Path cacheDir, Consumer<String> dependencyListener) throws IOException {
+    this.dependencyRecorder = (href, base) -> {
+      dependencyListener.accept(Config.resolveURI(href, base));
+      return null;
+    };
+    this.xsltMode = xsltMode;
+    this.cacheDir = (xsltMode == Config.XsltMode.COMPILED) ? cacheDir : null;
+    if (this.cacheDir != null) {
+      Files.createDirectories(this.cacheDir);
+    }
+    final AtomicInteger threadNumber = new AtomicInteger(0);
+    this.pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+      final Thread t = new Thread(r, "panfmp-xslt-compiler-" + threadNumber.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Starts compiling the given stylesheet and returns a placeholder for the result.
+   * The source is used by another thread, so it must not be modified afterwards.
+   * After {@link #shutdown}, the stylesheet is compiled in the calling thread.
+   */
+  Templates compile(Source source) throws TransformerException, IOException {
+    if (pool.isShutdown()) {
+      return compileNow(source);
+    }
+    return new PendingTemplates(source.getSystemId(), pool.submit(() -> compileNow(source)));
+  }
+
+  /**
+   * Waits for the compilation of the given templates (if it is a placeholder returned by
+   * {@link #compile}) and returns the result.
+   */
+  static Templates resolve(Templates t) throws TransformerException {
+    if (!(t instanceof PendingTemplates)) {
+      return t;
+    }
+    final PendingTemplates pending = (PendingTemplates) t;
+    try {
+      return pending.future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TransformerConfigurationException("Interrupted while compiling XSL stylesheet from '" + pending.systemId + "'.", e);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof TransformerException) throw (TransformerException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new TransformerConfigurationException("Failed to compile XSL stylesheet from '" + pending.systemId + "'.", cause);
+    }
+  }
+
+  private URIResolver getDependencyRecorder() {
+    return dependencyRecorder;
+  }
+
+  /** Stops the threads, after the stylesheets already started are compiled. */
+  void shutdown() {
+    pool.shutdown();
+  }
+
+  private Templates compileNow(Source source) throws TransformerException, IOException {
+    if (xsltMode == Config.XsltMode.COMPILED) {
+      final Path cacheFile;
+      if (cacheDir != null) {
+        final DOMSource dom = toDOMSource(source);
+        source = dom;
+        cacheFile = getCacheFile(dom);
+      } else {
+        cacheFile = null;
+      }
+      if (cacheFile != null) {
+        final Templates cached = readCache(cacheFile);
+        if (cached != null) {
+          return cached;
+        }
+      }
+      final Templates templ;
+      try {
+        templ = compiledFactory.get().newTemplates(source);
+      } catch (TransformerConfigurationException e) {
+        log.warn("XSLTC cannot compile XSL stylesheet from '" + source.getSystemId()
+            + "', falling back to interpretive mode: " + e.getMessage());
+        return interpretiveFactory.get().newTemplates(source);
+      }
+      if (cacheFile != null) {
+        writeCache(cacheFile, templ);
+      }
+      return templ;
+    }
+    return interpretiveFactory.get().newTemplates(source);
+  }
+
+  private DOMSource toDOMSource(Source source) throws TransformerException {
+    if (source instanceof DOMSource && ((DOMSource) source).getNode() instanceof Document) {
+      return (DOMSource) source;
+    }
+    final DOMResult result = new DOMResult();
+    compiledFactory.get().newTransformer().transform(source, result);
+    return new DOMSource(result.getNode(), source.getSystemId());
+  }
+
+  /** Returns the cache file for the given stylesheet, or {@code null}, if it cannot be cached. */
+  private Path getCacheFile(DOMSource source) throws TransformerException {
+    final Document doc = (Document) source.getNode();
+    if (doc.getElementsByTagNameNS(XSL_NAMESPACE, "include").getLength() > 0
+        || doc.getElementsByTagNameNS(XSL_NAMESPACE, "import").getLength() > 0) {
+      log.debug("XSL stylesheet from '" + source.getSystemId() + "' refers to other files, it is not cached.");
+      return null;
+    }
+    final MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError("SHA-256 is always supported by the JVM.", e);
+    }
+    md.update(String.valueOf(Package.getVersion()).getBytes(StandardCharsets.UTF_8));
+    md.update((byte) 0);
+    md.update(org.apache.xalan.Version.getVersion().getBytes(StandardCharsets.UTF_8));
+    md.update((byte) 0);
+    md.update(String.valueOf(source.getSystemId()).getBytes(StandardCharsets.UTF_8));
+    md.update((byte) 0);
+    final Transformer serializer = compiledFactory.get().newTransformer();
+    serializer.transform(source, new StreamResult(new DigestOutputStream(OutputStream.nullOutputStream(), md)));
+    final StringBuilder name = new StringBuilder();
+    for (byte b : md.digest()) {
+      name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return cacheDir.resolve(name.append(CACHE_FILE_SUFFIX).toString());
+  }
+
+  private Templates readCache(Path file) {
+    if (!Files.isRegularFile(file)) {
+      return null;
+    }
+    try (final InputStream in = Files.newInputStream(file); final ObjectInputStream ois = new ObjectInputStream(in)) {
+      ois.setObjectInputFilter(CACHE_FILTER);
+      final Templates templ = (Templates) ois.readObject();
+      log.debug("Loaded compiled XSL stylesheet from cache file '" + file + "'.");
+      return templ;
+    } catch (IOException | ClassNotFoundException | ClassCastException e) {
+      log.warn("Cannot read compiled XSL stylesheet from cache file '" + file + "', compiling it again: " + e);
+      return null;
+    }
+  }
+
+  private void writeCache(Path file, Templates templ) {
+    try {
+      final Path tmp = Files.createTempFile(cacheDir, "tmp-", CACHE_FILE_SUFFIX);
+      try {
+        try (final OutputStream out = Files.newOutputStream(tmp); final ObjectOutputStream oos = new ObjectOutputStream(out)) {
+          oos.writeObject(templ);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(tmp);
+      }
+    } catch (IOException e) {
+      log.warn("Cannot write compiled XSL stylesheet to cache file '" + file + "': " + e);
+    }
+  }
+
+  /** Placeholder for templates, which are still compiled. */
+  private static final class PendingTemplates implements Templates {
+    final String systemId;
+    final Future<Templates> future;
+
+    PendingTemplates(String systemId, Future<Templates> future) {
+      this.systemId = systemId;
+      this.future = future;
+    }
+
+    @Override
+    public Transformer newTransformer() throws TransformerConfigurationException {
+      try {
+        return resolve(this).newTransformer();
+      } catch (TransformerConfigurationException e) {
+        throw e;
+      } catch (TransformerException e) {
+        throw new TransformerConfigurationException(e);
+      }
+    }
+
+    @Override
+    public Properties getOutputProperties() {
+      try {
+        return resolve(this).getOutputProperties();
+      } catch (TransformerException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+}
@@ -2,8 +2,11 @@ package de.pangaea.metadataportal.config;
 
 import javax.xml.XMLConstants;
 import javax.xml.transform.Templates;
-import javax.xml.transform.sax.TemplatesHandler;
+import javax.xml.transform.dom.DOMResult;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.TransformerHandler;
 
+import org.w3c.dom.Document;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 
@@ -22,7 +25,7 @@ abstract class TransformerSaxRule extends SaxRule {
     this.config = config;
   }
 
-  private TemplatesHandler th = null;
+  private DOMResult stylesheet = null;
   
   @Override
   public void begin(String namespace, String name, Attributes attributes) throws Exception {
@@ -30,7 +33,7 @@ abstract class TransformerSaxRule extends SaxRule {
       final String file = attributes.getValue(XMLConstants.NULL_NS_URI, "src");
       if (file != null) {
         setResult(this.config.loadTemplate(file));
-        th = null;
+        stylesheet = null;
         hasBody = false;
         setContentHandler(new org.xml.sax.helpers.DefaultHandler() {
           @Override
@@ -49,10 +52,12 @@ abstract class TransformerSaxRule extends SaxRule {
           }
         });
       } else {
-        th = StaticFactories.transFactory.newTemplatesHandler();
-        th.setSystemId(this.config.file.toUri().toASCIIString());
+        // the stylesheet is collected as DOM tree, so it can be compiled again, if XSLTC fails (see Config#compileTemplate):
+        final TransformerHandler dom = StaticFactories.transFactory.newTransformerHandler();
+        stylesheet = new DOMResult();
+        dom.setResult(stylesheet);
         hasBody = true;
-        setContentHandler(th);
+        setContentHandler(dom);
       }
     } else {
       throw new SAXException("Invalid state of SAX parser, content handler already set: " + getContentHandler());
@@ -62,11 +67,27 @@ abstract class TransformerSaxRule extends SaxRule {
   
   protected abstract void setResult(Templates t);
   
+  /**
+   * Returns {@code true}, if the stylesheet of an inline template should also be
+   * kept as DOM tree (see {@link #setStylesheet}). The default is {@code false}.
+   */
+  protected boolean isKeepingStylesheet() {
+    return false;
+  }
+  
+  /** Called with the stylesheet of an inline template, if {@link #isKeepingStylesheet} is enabled. */
+  protected void setStylesheet(Document stylesheet) {}
+  
   @Override
   public void end(String namespace, String name) throws Exception {
     super.end(namespace, name);
-    if (th != null) setResult(th.getTemplates());
-    setContentHandler(th = null);
+    if (stylesheet != null) {
+      final Document doc = (Document) stylesheet.getNode();
+      setResult(this.config.compileTemplate(new DOMSource(doc, this.config.file.toUri().toASCIIString())));
+      if (isKeepingStylesheet()) setStylesheet(doc);
+    }
+    setContentHandler(null);
+    stylesheet = null;
     hasBody = false;
   }
   
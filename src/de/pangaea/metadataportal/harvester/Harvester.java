@@ -16,6 +16,7 @@
 
 package de.pangaea.metadataportal.harvester;
 
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.time.Instant;
 import java.util.Arrays;
@@ -32,8 +33,10 @@ import de.pangaea.metadataportal.config.HarvesterConfig;
 import de.pangaea.metadataportal.config.TargetIndexConfig;
 import de.pangaea.metadataportal.processor.ElasticsearchConnection;
 import de.pangaea.metadataportal.processor.DocumentProcessor;
+import de.pangaea.metadataportal.processor.InputDigestCache;
 import de.pangaea.metadataportal.processor.BackgroundFailure;
 import de.pangaea.metadataportal.processor.MetadataDocument;
+import de.pangaea.metadataportal.processor.PipelineMetrics;
 import de.pangaea.metadataportal.utils.ISODateFormatter;
 
 /**
@@ -51,8 +54,18 @@ import de.pangaea.metadataportal.utils.ISODateFormatter;
  * you have very simple metadata documents (simple XML schmema) and few fields,
  * lower values may be enough. The optimal value could only be found by testing.
  * </li>
- * <li><code>maxQueue</code>: size of queue for threads.
- * (default 100 metadata documents)</li>
+ * <li><code>numConverterThreads</code>: how many threads should parse, transform
+ * and validate documents, if the harvester defers this work to the processing
+ * pipeline (like all harvesters for single file entities)? This is the first stage
+ * of the processing pipeline before <code>numThreads</code>. (default: same as
+ * <code>numThreads</code>)</li>
+ * <li><code>numSerializerThreads</code>: how many threads should serialize
+ * the extracted fields to the CBOR/JSON source of the Elasticsearch documents?
+ * This is the last stage of the processing pipeline after <code>numThreads</code>.
+ * (default: 1)</li>
+ * <li><code>maxQueue</code>: size of queue for threads. Each stage of the
+ * processing pipeline has its own queue of this size; the current queue depths
+ * are printed with the status messages. (default 100 metadata documents)</li>
  * <li><code>bulkSize</code>: size of bulk requests sent to Elasticsearch. (default
  * 100 metadata documents)</li>
  * <li><code>concurrentBulkRequests</code>: how many bulk requests can be sent in
@@ -62,8 +75,76 @@ import de.pangaea.metadataportal.utils.ISODateFormatter;
  * might get significantly larger, because the check is done after the document is added.
  * Must be given using a unit like MB for megabytes. (default 5 MB)
  * </li>
+ * <li><code>adaptiveBulk</code>: if <code>true</code>, <code>bulkSize</code>,
+ * <code>maxBulkMemory</code>, and <code>concurrentBulkRequests</code> are only the
+ * starting values. They are adjusted at runtime from the observed bulk latency, item
+ * throughput, and rejections by Elasticsearch. Every change is logged. If
+ * <code>concurrentBulkRequests</code> is 0 (synchronous bulk requests), only the bulk
+ * size is adjusted. (default: false)</li>
+ * <li><code>maxBulkSize</code>: upper limit for the bulk size in adaptive mode;
+ * <code>maxBulkMemory</code> is scaled proportionally. (default: 10 times <code>bulkSize</code>)</li>
+ * <li><code>maxConcurrentBulkRequests</code>: upper limit for the number of concurrent
+ * bulk requests in adaptive mode, not used for synchronous bulk requests. (default: 4)</li>
+ * <li><code>bulkTargetLatency</code>: in adaptive mode, the bulk size is reduced if
+ * bulk requests take longer than this. Must be given using a unit like s for seconds.
+ * (default: 2s)</li>
+ * <li><code>bulkMaxRetries</code>: how often an item rejected by Elasticsearch because
+ * of capacity (HTTP 429) is sent again, before the harvest fails. (default: 8)</li>
+ * <li><code>bulkRetryInitialDelay</code>: maximum delay before the first retry of a rejected
+ * item. It doubles with every further retry (up to 60s), the actual delay is chosen
+ * randomly below it. Must be given using a unit like ms for milliseconds. (default: 500ms)</li>
+ * <li><code>deadLetterFile</code>: file (relative to the config file) to which items are
+ * appended, if Elasticsearch refuses them permanently (e.g. because of mapping errors). The
+ * harvest goes on, and the items can later be sent again with the
+ * <code>replay-dead-letters</code> script. As the harvest succeeds, the next incremental
+ * harvest does not fetch these items again, so the file must be replayed. Stamps of unchanged
+ * documents in generation mode are not written to the file, they are logged.
+ * If not given, such items stop the harvest. (default: none)</li>
+ * <li><code>deleteUnseenBulkSize</code>: if a harvester deletes documents not seen
+ * while harvesting and saw more identifiers than this, the documents are read by a
+ * scroll with pages of this size and deleted in bulks. Otherwise a single delete-by-query
+ * is used. (default: 10000)</li>
+ * <li><code>deleteUnseenSlices</code>: number of slices (each read by its own thread)
+ * of the scroll for deleting unseen documents. (default: same as <code>numThreads</code>)</li>
+ * <li><code>skipUnchangedDocuments</code>: if <code>true</code>, a digest of every
+ * document's source is stored in a hidden field. Before a bulk is sent, the digests
+ * of the existing documents are fetched, and documents that did not change are not
+ * written again. This helps with full re-harvests. (default: false)</li>
+ * <li><code>deleteUnseenMode</code>: how documents not seen while harvesting are deleted
+ * (if the harvester supports this). With <code>identifiers</code> all seen identifiers are
+ * collected in memory and compared with the index. With <code>generation</code> every harvest
+ * stamps the documents with a new generation number (unchanged ones by a partial update),
+ * and documents of older generations are removed by a single delete-by-query.
+ * If Elasticsearch refused a document (see <code>deadLetterFile</code>), its existing copy
+ * keeps the older generation, so no documents are deleted in that harvest.
+ * (default: identifiers)</li>
+ * <li><code>inputDigestCache</code>: if <code>true</code>, a digest of the raw XML of every
+ * harvested document (and its datestamp) is stored in the file <code>&lt;harvester-name&gt;.inputdigests</code>
+ * next to the config file. Documents with the same digest on the next harvest are skipped
+ * before parsing, transformation, and validation. The file is discarded if the configuration,
+ * one of its stylesheets, or the target index changes. Supported by the OAI-PMH and single
+ * file entities harvesters and by the push server. (default: false)</li>
+ * <li><code>profileExpressions</code>: if <code>true</code>, the time and the allocated
+ * memory of every filter, variable, and field is measured. A report ranked by time
+ * is printed when harvesting finished, so expensive expressions can be found. The memory
+ * per document is reported in the pipeline metrics. (default: false)</li>
+ * <li><code>rawXmlPassthrough</code>: if <code>true</code>, the unparsed XML of harvested documents
+ * is stored in the XML source field, instead of serializing the parsed document again. This is only
+ * done if no XSL transformation is configured, validation does not augment the document, and the document
+ * has no DOCTYPE declaration. The original formatting of the document is kept. (default: false)</li>
+ * <li><code>streamingExtraction</code>: if all filters and fields are simple paths (see
+ * {@link de.pangaea.metadataportal.config.StreamingExtractionConfig}), they are evaluated while
+ * parsing the document, without building a DOM tree. Set to <code>false</code> to always build
+ * DOM trees. (default: true)</li>
+ * <li><code>compactDOM</code>: if <code>true</code>, DOM trees of documents are built with
+ * a simpler DOM implementation, that shares names and short texts between nodes, so large documents
+ * waiting in the queues need less memory. The trees cannot be modified. To compare the memory per
+ * document, enable <code>profileExpressions</code>. (default: false)</li>
  * <li><code>validate</code>: validate harvested documents against schema given
  * in configuration? (default: true, if schema given)</li>
+ * <li><code>streamingValidation</code>: if <code>true</code>, documents are validated while
+ * they are parsed and transformed, before the DOM tree is built, so they are traversed only once.
+ * Set to <code>false</code> to validate the DOM tree afterwards. (default: true)</li>
  * <li><code>conversionErrorAction</code>: What to do if a conversion error
  * occurs (e.g. number format error)? Can be <code>STOP</code>,
  * <code>IGNOREDOCUMENT</code>, <code>DELETEDOCUMENT</code> (default is to stop
@@ -217,6 +298,12 @@ public abstract class Harvester {
    */
   protected int harvestCount = 0;
   
+  /**
+   * Count of documents skipped, because their raw input did not change.
+   * Incremented by {@link #isInputUnchanged}.
+   */
+  protected int unchangedInputCount = 0;
+  
   /**
    * Step at which {@link #addDocument} prints log messages. Can be changed by
    * the harvester property <code>harvestMessageStep</code>.
@@ -309,17 +396,23 @@ public abstract class Harvester {
     }
     harvestingDateReference = null;
     
+    final PipelineMetrics metrics = processor.getMetrics();
     if (!processor.isClosed()) {
-      processor.close(cleanShutdown ? validIdentifiers : null);
+      processor.close(cleanShutdown ? validIdentifiers : null, cleanShutdown);
     }
     processor = null;
     validIdentifiers = null;
     
     if (cleanShutdown) {
-      log.info("Harvested " + harvestCount + " objects - finished.");
+      log.info("Harvested " + harvestCount + " objects - finished."
+          + ((unchangedInputCount > 0) ? (" " + unchangedInputCount + " objects were skipped, because their input did not change.") : ""));
     } else {
       log.warn("Harvesting stopped unexspected, but " + harvestCount + " objects harvested - finished.");
     }
+    log.info(metrics.getSummary());
+    if (metrics.getExpressionProfiler() != null) {
+      log.info(metrics.getExpressionProfiler().getReport());
+    }
   }
   
   /**
@@ -363,6 +456,42 @@ public abstract class Harvester {
     addDocument(mdoc);
   }
   
+  /**
+   * Marks a document as seen, which is not re-indexed, because it did not change.
+   * If the harvester property <code>deleteUnseenMode</code> is <code>generation</code>,
+   * the document is stamped with the current harvest generation (a cheap partial update),
+   * so it is not deleted as unseen. Otherwise this does nothing.
+   */
+  protected void touchDocument(String identifier) throws Exception {
+    if (processor == null) throw new IllegalStateException(
+        "Harvester must be opened before using");
+    processor.touchDocument(identifier);
+  }
+  
+  /**
+   * Checks, if the raw input of a document did not change since the last harvest, using the
+   * input digest cache of the {@link #processor} (if the harvester property
+   * <code>inputDigestCache</code> is enabled). If this returns <code>true</code>, the document
+   * must not be added, but only marked as seen (see {@link #touchDocument}). Otherwise the
+   * digest is recorded for the next harvest.
+   * 
+   * @param inputDigest
+   *          the digest of the raw input (see {@link MetadataDocument.XMLConverter#getInputDigest}),
+   *          <code>null</code> if not available
+   * @param datestamp
+   *          the datestamp of the document, a changed datestamp also needs conversion
+   */
+  protected boolean isInputUnchanged(String identifier, byte[] inputDigest, Instant datestamp) throws IOException {
+    if (processor == null) throw new IllegalStateException(
+        "Harvester must be opened before using");
+    final InputDigestCache cache = processor.getInputDigestCache();
+    if (cache == null || inputDigest == null || !cache.isUnchanged(identifier, inputDigest, datestamp)) {
+      return false;
+    }
+    unchangedInputCount++;
+    return true;
+  }
+  
   /**
    * Checks, if the supplied Datestamp needs harvesting. This method can be used
    * to find out, if a documents needs harvesting.
@@ -384,7 +513,9 @@ public abstract class Harvester {
   /**
    * Set a set of all "seen" valid identifiers. Must be set, before
    * {@link #close(boolean)} is called, as the information is passed
-   * to the processor before finalizing the index.
+   * to the processor before finalizing the index. If the processor is in
+   * generation mode ({@link DocumentProcessor#isGenerationMode()}), the contents
+   * of the set are not used and an empty set is enough to enable deletion.
    */
   protected void setValidIdentifiers(Set<String> validIdentifiers) {
     this.validIdentifiers = validIdentifiers;
@@ -404,10 +535,16 @@ public abstract class Harvester {
         // own
         "harvestMessageStep",
         // DocumentProcessor
-        "bulkSize", "deleteUnseenBulkSize", "numThreads", "maxQueue", "maxBulkMemory", "sourceContentType", "concurrentBulkRequests",
+        "bulkSize", "deleteUnseenBulkSize", "deleteUnseenSlices", "deleteUnseenMode", "skipUnchangedDocuments", "numThreads", "numConverterThreads", "numSerializerThreads", "maxQueue", "maxBulkMemory", "sourceContentType", "concurrentBulkRequests",
+        "adaptiveBulk", "maxBulkSize", "maxConcurrentBulkRequests", "bulkTargetLatency",
+        "bulkMaxRetries", "bulkRetryInitialDelay", "deadLetterFile",
         "conversionErrorAction",
+        // DocumentProcessor and XMLConverter
+        "inputDigestCache",
+        // MetadataDocument
+        "profileExpressions", "rawXmlPassthrough", "streamingExtraction", "compactDOM",
         // XMLConverter
-        "validate"));
+        "validate", "streamingValidation"));
   }
   
   /**
@@ -121,6 +121,7 @@ public abstract class OAIHarvesterBase extends Harvester {
   
   /** Contains all valid identifiers, if not {@code null}. Will be initialized by subclasses. */
   private HugeStringHashBuilder validIdentifiersBuilder = null;
+  private boolean trackSeenDocuments = false;
 
   /** HttpClient to use, configured with correct connect timeout. */
   protected final HttpClient httpClient;
@@ -178,6 +179,13 @@ public abstract class OAIHarvesterBase extends Harvester {
     if (validIdentifiersBuilder != null && !mdoc.isDeleted()) {
       validIdentifiersBuilder.add(mdoc.getIdentifier());
     }
+    if (!mdoc.isDeleted() && isInputUnchanged(mdoc.getIdentifier(), mdoc.getConverter().getInputDigest(), mdoc.getDatestamp())) {
+      // the metadata did not change since the last harvest, keep the old document:
+      if (trackSeenDocuments) {
+        touchDocument(mdoc.getIdentifier());
+      }
+      return;
+    }
     super.addDocument(mdoc);
   }
   
@@ -238,12 +246,14 @@ public abstract class OAIHarvesterBase extends Harvester {
         dig.clear();
         dig.resetRoot();
         dig.push(this);
+        final long start = System.nanoTime();
         InputSource is = getInputSource(u, checkModifiedDate);
         try {
           if (checkModifiedDate != null && is == null) return false;
           dig.parse(is);
         } finally {
           if (is != null && is.getByteStream() != null) is.getByteStream().close();
+          processor.getMetrics().fetch.record(System.nanoTime() - start);
         }
         return true;
       } catch (org.xml.sax.SAXException saxe) {
@@ -411,9 +421,14 @@ public abstract class OAIHarvesterBase extends Harvester {
    * can be enabled.
    */
   protected void enableMissingDocumentDelete() {
-    if (validIdentifiersBuilder == null && deleteMissingDocuments) {
-      log.info("Tracking of seen document identifiers enabled.");
-      validIdentifiersBuilder = new HugeStringHashBuilder();
+    if (!trackSeenDocuments && deleteMissingDocuments) {
+      trackSeenDocuments = true;
+      if (processor.isGenerationMode()) {
+        log.info("Deletion of unseen documents by harvest generation enabled.");
+      } else {
+        log.info("Tracking of seen document identifiers enabled.");
+        validIdentifiersBuilder = new HugeStringHashBuilder();
+      }
     }
   }
   
@@ -425,14 +440,18 @@ public abstract class OAIHarvesterBase extends Harvester {
    */
   protected void cancelMissingDocumentDelete() {
     log.info("Tracking of seen document identifiers cancelled, no deletions will happen.");
+    trackSeenDocuments = false;
     validIdentifiersBuilder = null;
   }
   
   @Override
   public void close(boolean cleanShutdown) throws Exception {
-    if (cleanShutdown && validIdentifiersBuilder != null) {
-      setValidIdentifiers(validIdentifiersBuilder.build());
+    if (cleanShutdown && trackSeenDocuments) {
+      // in generation mode, the processor does not need the identifiers:
+      setValidIdentifiers((validIdentifiersBuilder == null) ? Collections.emptySet() : validIdentifiersBuilder.build());
     }
+    trackSeenDocuments = false;
+    validIdentifiersBuilder = null;
     reset();
     super.close(cleanShutdown);
   }
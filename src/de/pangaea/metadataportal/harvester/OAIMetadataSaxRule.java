@@ -28,6 +28,8 @@ import de.pangaea.metadataportal.utils.SaxRule;
  * Whenever this element occurs in Digester, it feeds the SAX events to a
  * content handler and stores the DOM result in the {@link OAIMetadataDocument}
  * on the Digester stack, if rule is not enabled, metadata is fed to nowhere.
+ * If the harvester property <code>inputDigestCache</code> is enabled, the metadata
+ * is only serialized, and it is converted later by the processor, unless it did not change.
  * 
  * @author Uwe Schindler
  */
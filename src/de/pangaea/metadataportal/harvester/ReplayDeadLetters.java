@@ -0,0 +1,67 @@
+/*
+ *   Copyright panFMP Developers Team c/o Uwe Schindler
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package de.pangaea.metadataportal.harvester;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import de.pangaea.metadataportal.config.Config;
+import de.pangaea.metadataportal.config.HarvesterConfig;
+import de.pangaea.metadataportal.config.TargetIndexConfig;
+import de.pangaea.metadataportal.processor.ElasticsearchConnection;
+
+/**
+ * Command line tool that sends metadata items, which were refused by Elasticsearch
+ * during harvesting and written to the dead letter file of a harvester, to
+ * Elasticsearch again. Use it after fixing the cause (e.g. the mapping).
+ * The items are indexed using the alias of the target index.
+ */
+public final class ReplayDeadLetters {
+
+  private static final org.apache.commons.logging.Log staticLog = org.apache.commons.logging.LogFactory.getLog(ReplayDeadLetters.class);
+
+  // main-Methode
+  public static void main(String[] args) {
+    if (args.length < 2 || args.length > 3) {
+      System.err.println("Command line: java " + ReplayDeadLetters.class.getName()
+          + " config.xml harvester-name [dead-letter-file]");
+      return;
+    }
+
+    try {
+      Config conf = new Config(args[0]);
+      runReplay(conf, args[1], (args.length == 3) ? conf.makePathAbsolute(args[2]) : null);
+    } catch (Exception e) {
+      staticLog.fatal("Replay dead letters tool general error:", e);
+    }
+  }
+
+  public static int runReplay(Config conf, String id, Path file) throws IOException {
+    HarvesterConfig iconf = null;
+    for (final TargetIndexConfig ticonf : conf.targetIndexes.values()) {
+      if (ticonf.harvesters.containsKey(id)) {
+        iconf = ticonf.harvesters.get(id);
+      }
+    }
+    if (iconf == null)
+      throw new IllegalArgumentException("There is no harvester defined with id=\"" + id + "\"!");
+    try (ElasticsearchConnection es = new ElasticsearchConnection(conf)) {
+      return es.replayDeadLetters(iconf, file);
+    }
+  }
+
+}
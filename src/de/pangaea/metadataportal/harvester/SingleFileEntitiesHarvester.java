@@ -18,6 +18,7 @@ package de.pangaea.metadataportal.harvester;
 
 import java.time.Instant;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Locale;
 import java.util.Set;
 
@@ -25,7 +26,10 @@ import javax.xml.transform.Source;
 
 import de.pangaea.metadataportal.config.HarvesterConfig;
 import de.pangaea.metadataportal.processor.DocumentErrorAction;
+import de.pangaea.metadataportal.processor.DocumentProcessor;
+import de.pangaea.metadataportal.processor.ElasticsearchConnection;
 import de.pangaea.metadataportal.processor.MetadataDocument;
+import de.pangaea.metadataportal.processor.PipelineMetrics;
 import de.pangaea.metadataportal.utils.BooleanParser;
 import de.pangaea.metadataportal.utils.HugeStringHashBuilder;
 
@@ -35,7 +39,10 @@ import de.pangaea.metadataportal.utils.HugeStringHashBuilder;
  * documents given by a {@link Source} to the index. These are harvested, but if
  * an fatal parse error occurs, the harvester will then stop harvesting (like it
  * would be with OAI-PMH), ignore the document, or delete it (if existent in
- * index) depending on the harvester property "parseErrorAction".
+ * index) depending on the harvester property "parseErrorAction". The documents
+ * are parsed, transformed and validated by the {@link DocumentProcessor}'s
+ * worker threads, so a parse error may be reported some time after the
+ * document was added.
  * <p>
  * This panFMP harvester supports the following <b>harvester properties</b> in
  * adidition to the default ones:
@@ -53,6 +60,7 @@ public abstract class SingleFileEntitiesHarvester extends Harvester {
   
   private final DocumentErrorAction parseErrorAction;
   
+  private boolean deleteMissingDocuments;
   private HugeStringHashBuilder validIdentifiersBuilder = null;
   private Instant newestDatestamp = null;
   
@@ -64,8 +72,17 @@ public abstract class SingleFileEntitiesHarvester extends Harvester {
     super(iconfig);
     this.parseErrorAction = parseErrorAction;
 
-    if (BooleanParser.parseBoolean(iconfig.properties.getProperty(
-        "deleteMissingDocuments", "true"))) validIdentifiersBuilder = new HugeStringHashBuilder();
+    this.deleteMissingDocuments = BooleanParser.parseBoolean(iconfig.properties.getProperty(
+        "deleteMissingDocuments", "true"));
+  }
+  
+  @Override
+  public void open(ElasticsearchConnection es, String targetIndex) throws Exception {
+    super.open(es, targetIndex);
+    // in generation mode, unchanged documents are touched instead of collecting their identifiers:
+    if (deleteMissingDocuments && !processor.isGenerationMode()) {
+      validIdentifiersBuilder = new HugeStringHashBuilder();
+    }
   }
   
   private static DocumentErrorAction parseDocumentErrorAction(HarvesterConfig iconfig) {
@@ -81,9 +98,11 @@ public abstract class SingleFileEntitiesHarvester extends Harvester {
   
   @Override
   public void close(boolean cleanShutdown) throws Exception {
-    if (cleanShutdown && validIdentifiersBuilder != null) {
-      setValidIdentifiers(validIdentifiersBuilder.build());
+    if (cleanShutdown && deleteMissingDocuments) {
+      // in generation mode, the processor does not need the identifiers:
+      setValidIdentifiers((validIdentifiersBuilder == null) ? Collections.emptySet() : validIdentifiersBuilder.build());
     }
+    validIdentifiersBuilder = null;
     super.close(cleanShutdown);
   }
   
@@ -124,48 +143,71 @@ public abstract class SingleFileEntitiesHarvester extends Harvester {
       if (newestDatestamp == null || newestDatestamp.isBefore(lastModified)) {
         setHarvestingDateReference(newestDatestamp = lastModified);
       }
-      if (!isDocumentOutdated(lastModified)) return;
+      if (!isDocumentOutdated(lastModified)) {
+        markSeen(identifier);
+        return;
+      }
     }
     
-    if (xml == null) return;
+    if (xml == null) {
+      markSeen(identifier);
+      return;
+    }
     
     MetadataDocument mdoc = createMetadataDocumentInstance();
     mdoc.setIdentifier(identifier);
     mdoc.setDatestamp(lastModified);
+    final MetadataDocument.XMLConverter converter = mdoc.getConverter();
+    final PipelineMetrics metrics = processor.getMetrics();
     
-    Exception e = null;
-    String errstr = null;
-    try {
-      mdoc.getConverter().transform(xml);
-    } catch (org.xml.sax.SAXParseException saxe) {
-      e = saxe;
-      errstr = "Harvesting object '" + identifier
-          + "' failed due to SAX parse error in \"" + saxe.getSystemId()
-          + "\", line " + saxe.getLineNumber() + ", column "
-          + saxe.getColumnNumber();
-    } catch (javax.xml.transform.TransformerException transfe) {
-      e = transfe;
-      String loc = transfe.getLocationAsString();
-      errstr = "Harvesting object '" + identifier
-          + "' failed due to transformer/parse error"
-          + ((loc != null) ? (" at " + loc) : "");
+    if (processor.getInputDigestCache() != null) {
+      // read the raw input to compare its digest with the last harvest:
+      final long start = System.nanoTime();
+      final Source detached = converter.digestInput(xml);
+      metrics.fetch.record(System.nanoTime() - start);
+      if (detached != null) {
+        xml = detached;
+        if (isInputUnchanged(identifier, converter.getInputDigest(), mdoc.getDatestamp())) {
+          markSeen(identifier);
+          return;
+        }
+      }
     }
     
-    // handle exception
-    if (e != null && errstr != null) switch (parseErrorAction) {
-      case IGNOREDOCUMENT:
-        log.error(errstr + " (object ignored):", e);
-        return;
-      case DELETEDOCUMENT:
-        log.error(errstr + " (object marked deleted):", e);
-        mdoc.setFinalDOM(null);
-        mdoc.setDeleted(true);
-        break; // continue normal
-      default:
-        throw e;
+    final boolean accepted;
+    if (isConversionDeferred()) {
+      // parsing, transformation and validation is done by the processor's worker threads:
+      final long start = System.nanoTime();
+      accepted = converter.transformLater(xml, parseErrorAction);
+      metrics.fetch.record(System.nanoTime() - start);
+    } else {
+      accepted = converter.transform(xml, parseErrorAction);
     }
-    
-    addDocument(mdoc);
+    if (accepted) {
+      addDocument(mdoc);
+    } else {
+      markSeen(identifier); // ignored, but keep the old document
+      if (processor.getInputDigestCache() != null) {
+        processor.getInputDigestCache().remove(identifier);
+      }
+    }
+  }
+  
+  private void markSeen(String identifier) throws Exception {
+    if (deleteMissingDocuments) {
+      touchDocument(identifier);
+    }
+  }
+  
+  /**
+   * Returns <code>true</code> (the default), if the XML source of documents
+   * should be parsed, transformed and validated in the processor's worker threads.
+   * Parse errors are then handled according to {@link #parseErrorAction} in
+   * the background. Subclasses that need to report parse errors synchronously
+   * to their caller should return <code>false</code>.
+   */
+  protected boolean isConversionDeferred() {
+    return true;
   }
   
   /**
@@ -175,6 +217,7 @@ public abstract class SingleFileEntitiesHarvester extends Harvester {
    * documents call this.
    */
   protected void cancelMissingDocumentDelete() {
+    deleteMissingDocuments = false;
     validIdentifiersBuilder = null;
   }
   
@@ -0,0 +1,265 @@
+/*
+ *   Copyright panFMP Developers Team c/o Uwe Schindler
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package de.pangaea.metadataportal.processor;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Controls the size of bulk requests (number of actions and bytes) and the number
+ * of bulk requests in flight. In fixed mode, the values given by the harvester
+ * properties are used unchanged. In adaptive mode, the controller is a simple
+ * hill climber working on windows of completed bulk requests:
+ * <ul>
+ * <li>If Elasticsearch rejects requests or items (HTTP 429), the number of
+ * concurrent requests is halved. If it is already at 1, the bulk size is halved.</li>
+ * <li>If the mean latency of a window is above the target latency, the bulk size
+ * is reduced by 25%.</li>
+ * <li>Otherwise the controller alternately raises the bulk size and the
+ * number of concurrent requests, as long as the item throughput improves.
+ * If the throughput drops, the last step is reverted.</li>
+ * </ul>
+ * If bulk requests are executed synchronously (no concurrent requests), only the
+ * bulk size is adjusted.
+ */
+final class BulkController {
+  private static final Log log = LogFactory.getLog(BulkController.class);
+
+  /** Number of completed bulk requests to collect before a decision is made. */
+  static final int WINDOW_SIZE = 5;
+
+  /** Minimum relative throughput change that is considered significant. */
+  private static final double THROUGHPUT_TOLERANCE = 0.1;
+
+  private enum Step { NONE, BULK_SIZE, CONCURRENCY }
+
+  private final String harvesterId;
+  private final boolean adaptive;
+  private final int initialBulkActions, minBulkActions, maxBulkActions;
+  private final long initialBulkBytes;
+  private final int maxConcurrentRequests;
+  private final long targetLatencyNanos;
+
+  private volatile int bulkActions;
+  private volatile long bulkBytes;
+  private volatile int concurrentRequests;
+
+  // current window:
+  private int windowBulks = 0, windowItems = 0;
+  private long windowLatencyNanos = 0L, windowBytes = 0L, windowStart = System.nanoTime();
+
+  // hill climbing state:
+  private double lastThroughput = 0.0;
+  private Step lastStep = Step.NONE, nextStep = Step.BULK_SIZE;
+
+  // statistics:
+  private volatile long totalRejections = 0L, decisions = 0L;
+  private volatile long lastLatencyNanos = 0L;
+  private volatile double itemsPerSecond = 0.0, bytesPerSecond = 0.0;
+
+  BulkController(String harvesterId, int bulkActions, ByteSizeValue bulkBytes, int concurrentRequests,
+      boolean adaptive, int maxBulkActions, int maxConcurrentRequests, TimeValue targetLatency) {
+    this.harvesterId = harvesterId;
+    this.adaptive = adaptive;
+    this.bulkActions = this.initialBulkActions = bulkActions;
+    this.bulkBytes = this.initialBulkBytes = bulkBytes.getBytes();
+    this.concurrentRequests = concurrentRequests;
+    this.minBulkActions = Math.max(1, bulkActions / 10);
+    this.maxBulkActions = Math.max(bulkActions, maxBulkActions);
+    // synchronous bulks (0 concurrent requests) stay synchronous, only the bulk size is adjusted:
+    this.maxConcurrentRequests = (concurrentRequests == 0) ? 0 : Math.max(concurrentRequests, maxConcurrentRequests);
+    this.targetLatencyNanos = targetLatency.nanos();
+  }
+
+  boolean isAdaptive() {
+    return adaptive;
+  }
+
+  /** Maximum number of actions in a bulk request. */
+  int getBulkActions() {
+    return bulkActions;
+  }
+
+  /** Maximum estimated size of a bulk request in bytes. */
+  long getBulkBytes() {
+    return bulkBytes;
+  }
+
+  /**
+   * Number of bulk requests allowed in flight while the next one is collected.
+   * 0 means that bulk requests are executed synchronously.
+   */
+  int getConcurrentRequests() {
+    return concurrentRequests;
+  }
+
+  long getTotalRejections() {
+    return totalRejections;
+  }
+
+  long getDecisions() {
+    return decisions;
+  }
+
+  long getLastLatencyMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(lastLatencyNanos);
+  }
+
+  /** Items per second of the last completed window. */
+  double getItemsPerSecond() {
+    return itemsPerSecond;
+  }
+
+  /** Bytes per second of the last completed window. */
+  double getBytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+  /**
+   * Called after a bulk request was executed. {@code rejections} is the
+   * number of items Elasticsearch rejected because of capacity.
+   */
+  synchronized void onBulkCompleted(int items, long bytes, long latencyNanos, int rejections) {
+    lastLatencyNanos = latencyNanos;
+    totalRejections += rejections;
+    windowBulks++;
+    windowItems += items;
+    windowBytes += bytes;
+    windowLatencyNanos += latencyNanos;
+    if (rejections > 0) {
+      // react immediately, don't wait for the window to be complete:
+      reduceLoad(rejections + " items rejected by Elasticsearch");
+    } else if (windowBulks >= WINDOW_SIZE) {
+      evaluateWindow();
+    }
+  }
+
+  /** Called if a whole bulk request failed because Elasticsearch rejected it. */
+  synchronized void onBulkRejected() {
+    totalRejections++;
+    reduceLoad("bulk request rejected by Elasticsearch");
+  }
+
+  private void evaluateWindow() {
+    final long now = System.nanoTime();
+    final double seconds = Math.max(1L, now - windowStart) / 1e9;
+    itemsPerSecond = windowItems / seconds;
+    bytesPerSecond = windowBytes / seconds;
+    final long meanLatency = windowLatencyNanos / windowBulks;
+    if (adaptive) {
+      if (meanLatency > targetLatencyNanos) {
+        setBulkActions(bulkActions - bulkActions / 4, String.format(Locale.ENGLISH,
+            "mean latency %d ms above target of %d ms", TimeUnit.NANOSECONDS.toMillis(meanLatency), TimeUnit.NANOSECONDS.toMillis(targetLatencyNanos)));
+        lastStep = Step.NONE;
+      } else if (lastStep != Step.NONE && itemsPerSecond < lastThroughput * (1.0 - THROUGHPUT_TOLERANCE)) {
+        revertLastStep();
+      } else {
+        takeNextStep();
+      }
+      lastThroughput = itemsPerSecond;
+    }
+    resetWindow(now);
+  }
+
+  private void takeNextStep() {
+    final String reason = String.format(Locale.ENGLISH, "throughput %.1f items/s", itemsPerSecond);
+    for (int i = 0; i < 2; i++) {
+      final Step step = nextStep;
+      nextStep = (step == Step.BULK_SIZE) ? Step.CONCURRENCY : Step.BULK_SIZE;
+      if (step == Step.BULK_SIZE && bulkActions < maxBulkActions) {
+        setBulkActions(bulkActions + Math.max(1, bulkActions / 2), reason);
+        lastStep = step;
+        return;
+      } else if (step == Step.CONCURRENCY && concurrentRequests < maxConcurrentRequests) {
+        setConcurrentRequests(concurrentRequests + 1, reason);
+        lastStep = step;
+        return;
+      }
+    }
+    lastStep = Step.NONE; // everything at maximum
+  }
+
+  private void revertLastStep() {
+    final String reason = String.format(Locale.ENGLISH, "throughput dropped from %.1f to %.1f items/s", lastThroughput, itemsPerSecond);
+    switch (lastStep) {
+      case BULK_SIZE:
+        setBulkActions(bulkActions * 2 / 3, reason);
+        break;
+      case CONCURRENCY:
+        setConcurrentRequests(concurrentRequests - 1, reason);
+        break;
+      default:
+        break;
+    }
+    // try the other parameter next time:
+    nextStep = (lastStep == Step.BULK_SIZE) ? Step.CONCURRENCY : Step.BULK_SIZE;
+    lastStep = Step.NONE;
+  }
+
+  private void reduceLoad(String reason) {
+    if (adaptive) {
+      if (concurrentRequests > 1) {
+        setConcurrentRequests(concurrentRequests / 2, reason);
+      } else {
+        setBulkActions(bulkActions / 2, reason);
+      }
+      lastStep = Step.NONE;
+    } else {
+      log.warn(String.format(Locale.ENGLISH, "[%s] Elasticsearch is overloaded (%s); consider lowering bulkSize or concurrentBulkRequests, or enable adaptiveBulk.",
+          harvesterId, reason));
+    }
+    resetWindow(System.nanoTime());
+  }
+
+  private void setBulkActions(int value, String reason) {
+    value = Math.max(minBulkActions, Math.min(maxBulkActions, value));
+    if (value != bulkActions) {
+      log.info(String.format(Locale.ENGLISH, "[%s] Changing bulk size from %d to %d actions (%s).", harvesterId, bulkActions, value, reason));
+      bulkActions = value;
+      // scale the byte limit proportionally:
+      bulkBytes = Math.max(1L, initialBulkBytes * value / initialBulkActions);
+      decisions++;
+    }
+  }
+
+  private void setConcurrentRequests(int value, String reason) {
+    value = Math.max(1, Math.min(maxConcurrentRequests, value));
+    if (value != concurrentRequests) {
+      log.info(String.format(Locale.ENGLISH, "[%s] Changing concurrent bulk requests from %d to %d (%s).", harvesterId, concurrentRequests, value, reason));
+      concurrentRequests = value;
+      decisions++;
+    }
+  }
+
+  private void resetWindow(long now) {
+    windowBulks = windowItems = 0;
+    windowLatencyNanos = windowBytes = 0L;
+    windowStart = now;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.ENGLISH, "bulkSize=%d, maxBulkMemory=%s, concurrentBulkRequests=%d, latency=%d ms, throughput=%.1f items/s",
+        bulkActions, new ByteSizeValue(bulkBytes), concurrentRequests, getLastLatencyMillis(), itemsPerSecond);
+  }
+
+}
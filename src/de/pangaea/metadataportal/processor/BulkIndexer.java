@@ -0,0 +1,384 @@
+/*
+ *   Copyright panFMP Developers Team c/o Uwe Schindler
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package de.pangaea.metadataportal.processor;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Collects {@link DocWriteRequest}s to bulk requests and sends them asynchronously
+ * to Elasticsearch. This is a replacement for Elasticsearch's {@code BulkProcessor},
+ * whose settings cannot be changed after it was built: The bulk size and the number
+ * of concurrent requests are taken from a {@link BulkController} for each request.
+ * <p>
+ * Items rejected by Elasticsearch because of capacity (HTTP 429) are re-queued
+ * after a delay using exponential backoff with full jitter. Only if an item was
+ * rejected too often, the {@link Listener} gets a fatal failure. All other item
+ * failures (e.g. mapping errors) are passed to the listener one by one.
+ */
+final class BulkIndexer {
+
+  /** Gets notified about the outcome of every bulk request. */
+  interface Listener {
+    /**
+     * Called before a bulk request is sent. May return a different request, e.g. without
+     * documents that need no update. If the returned request is empty, nothing is sent.
+     */
+    BulkRequest beforeBulk(BulkRequest request);
+
+    /** Called after a bulk request was executed. {@code succeeded} is the number of successful items. */
+    void afterBulk(BulkRequest request, int succeeded);
+
+    /** Called for every item that failed permanently, i.e. for other reasons than capacity. */
+    void afterItemFailure(DocWriteRequest<?> request, BulkItemResponse.Failure failure);
+
+    /** Called if a bulk request failed as a whole or an item was rejected too often. */
+    void afterBulk(BulkRequest request, Throwable failure);
+  }
+
+  /** Upper limit for the delay between retries of a rejected item. */
+  static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+  private final Client client;
+  private final BulkController controller;
+  private final Listener listener;
+  private final PipelineMetrics.Timer roundTripTimer;
+  private final int maxRetries;
+  private final long initialRetryDelayMillis;
+  private final ScheduledThreadPoolExecutor retryScheduler;
+  private final Map<DocWriteRequest<?>,Integer> attempts = Collections.synchronizedMap(new IdentityHashMap<>());
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition requestFinished = lock.newCondition();
+  private BulkRequest current = new BulkRequest();
+  private int inFlight = 0, pendingRetries = 0;
+  private long totalRetries = 0L;
+  private final AtomicLong deleted = new AtomicLong(0L), deleteNotFound = new AtomicLong(0L), updateNotFound = new AtomicLong(0L);
+
+  BulkIndexer(String harvesterId, Client client, BulkController controller, int maxRetries, TimeValue initialRetryDelay,
+      PipelineMetrics.Timer roundTripTimer, Listener listener) {
+    this.client = client;
+    this.controller = controller;
+    this.listener = listener;
+    this.roundTripTimer = roundTripTimer;
+    this.maxRetries = maxRetries;
+    this.initialRetryDelayMillis = Math.max(1L, initialRetryDelay.millis());
+    this.retryScheduler = new ScheduledThreadPoolExecutor(1, r -> {
+      final Thread t = new Thread(r, "panfmp-" + harvesterId + "-bulk-retry");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Adds a request to the current bulk. If the bulk is full, it is sent to Elasticsearch.
+   * This blocks, if there are already too many bulk requests in flight.
+   */
+  void add(DocWriteRequest<?> request) throws InterruptedException {
+    BulkRequest full = null;
+    lock.lock();
+    try {
+      current.add(request);
+      if (current.numberOfActions() >= controller.getBulkActions() || current.estimatedSizeInBytes() >= controller.getBulkBytes()) {
+        full = current;
+        current = new BulkRequest();
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (full != null) {
+      execute(full);
+    }
+  }
+
+  /** Sends the current bulk to Elasticsearch, if it is not empty. */
+  void flush() throws InterruptedException {
+    BulkRequest bulk = null;
+    lock.lock();
+    try {
+      if (current.numberOfActions() > 0) {
+        bulk = current;
+        current = new BulkRequest();
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (bulk != null) {
+      execute(bulk);
+    }
+  }
+
+  /**
+   * Flushes the current bulk and waits until all bulk requests are finished.
+   * This includes the retries of rejected items, which may be scheduled by
+   * the finished requests.
+   */
+  void awaitIdle() throws InterruptedException {
+    while (true) {
+      flush();
+      lock.lock();
+      try {
+        while ((inFlight > 0 || pendingRetries > 0) && current.numberOfActions() == 0) {
+          requestFinished.await();
+        }
+        if (inFlight == 0 && pendingRetries == 0 && current.numberOfActions() == 0) {
+          return;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /** Stops the scheduler for retries. Call after {@link #awaitIdle()}. */
+  void close() {
+    retryScheduler.shutdownNow();
+  }
+
+  /** Returns the number of bulk requests that were sent and are not yet finished. */
+  int getInFlight() {
+    lock.lock();
+    try {
+      return inFlight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Returns the number of items that were re-queued, because Elasticsearch rejected them. */
+  long getTotalRetries() {
+    lock.lock();
+    try {
+      return totalRetries;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Returns the number of documents deleted successfully. */
+  long getDeleted() {
+    return deleted.get();
+  }
+
+  /** Returns the number of delete requests for documents that did not exist. */
+  long getDeleteNotFound() {
+    return deleteNotFound.get();
+  }
+
+  /** Returns the number of partial updates for documents that did not exist. */
+  long getUpdateNotFound() {
+    return updateNotFound.get();
+  }
+
+  private void execute(BulkRequest request) throws InterruptedException {
+    final BulkRequest bulk = listener.beforeBulk(request);
+    if (bulk.numberOfActions() == 0) {
+      return;
+    }
+    lock.lock();
+    try {
+      while (inFlight >= Math.max(1, controller.getConcurrentRequests())) {
+        requestFinished.await();
+      }
+      inFlight++;
+    } finally {
+      lock.unlock();
+    }
+    if (DocumentProcessor.log.isDebugEnabled()) {
+      DocumentProcessor.log.debug(String.format(Locale.ENGLISH, "Sending bulk with %d actions to Elasticsearch...", bulk.numberOfActions()));
+    }
+    final int items = bulk.numberOfActions();
+    final long bytes = bulk.estimatedSizeInBytes();
+    final long start = System.nanoTime();
+    boolean success = false;
+    try {
+      client.bulk(bulk, new ActionListener<BulkResponse>() {
+        @Override
+        public void onResponse(BulkResponse response) {
+          try {
+            final long took = System.nanoTime() - start;
+            roundTripTimer.record(took);
+            controller.onBulkCompleted(items, bytes, took, countRejections(response));
+            handleResponse(bulk, response);
+          } finally {
+            finished();
+          }
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+          try {
+            roundTripTimer.record(System.nanoTime() - start);
+            if (isRejection(e)) {
+              controller.onBulkRejected();
+              for (final DocWriteRequest<?> request : bulk.requests()) {
+                retry(request, e);
+              }
+            } else {
+              listener.afterBulk(bulk, e);
+            }
+          } finally {
+            finished();
+          }
+        }
+      });
+      success = true;
+    } finally {
+      if (!success) {
+        finished();
+      }
+    }
+    if (controller.getConcurrentRequests() == 0) {
+      // synchronous mode: wait for the response
+      lock.lock();
+      try {
+        while (inFlight > 0) {
+          requestFinished.await();
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private void finished() {
+    lock.lock();
+    try {
+      inFlight--;
+      requestFinished.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void handleResponse(BulkRequest bulk, BulkResponse response) {
+    int succeeded = 0;
+    for (final BulkItemResponse item : response) {
+      final DocWriteRequest<?> request = bulk.requests().get(item.getItemId());
+      if (item.isFailed()) {
+        final BulkItemResponse.Failure f = item.getFailure();
+        if (f.getStatus() == RestStatus.TOO_MANY_REQUESTS) {
+          retry(request, f.getCause());
+          continue;
+        }
+        if (f.getStatus() == RestStatus.NOT_FOUND && item.getOpType() == DocWriteRequest.OpType.UPDATE) {
+          // partial update of a document that does not exist (anymore), nothing to do:
+          updateNotFound.incrementAndGet();
+        } else {
+          listener.afterItemFailure(request, f);
+        }
+      } else {
+        succeeded++;
+        if (item.getOpType() == DocWriteRequest.OpType.DELETE) {
+          if (item.getResponse().getResult() == DocWriteResponse.Result.NOT_FOUND) {
+            deleteNotFound.incrementAndGet();
+          } else {
+            deleted.incrementAndGet();
+          }
+        }
+      }
+      if (!attempts.isEmpty()) {
+        attempts.remove(request);
+      }
+    }
+    listener.afterBulk(bulk, succeeded);
+  }
+
+  /**
+   * Schedules a rejected item to be added again after a random delay between 0 and
+   * {@code initialRetryDelay * 2^(attempt-1)}, capped at {@link #MAX_RETRY_DELAY_MILLIS}.
+   */
+  private void retry(final DocWriteRequest<?> request, Throwable cause) {
+    final int attempt = attempts.merge(request, 1, Integer::sum);
+    if (attempt > maxRetries) {
+      attempts.remove(request);
+      listener.afterBulk(null, new ElasticsearchException(String.format(Locale.ENGLISH,
+          "Elasticsearch rejected item [%s/%s/%s] %d times, giving up.", request.index(), request.type(), request.id(), attempt), cause));
+      return;
+    }
+    final long cap = Math.min(MAX_RETRY_DELAY_MILLIS, initialRetryDelayMillis << Math.min(attempt - 1, 30));
+    final long delay = ThreadLocalRandom.current().nextLong(cap + 1L);
+    if (DocumentProcessor.log.isDebugEnabled()) {
+      DocumentProcessor.log.debug(String.format(Locale.ENGLISH, "Item [%s] was rejected by Elasticsearch, retry #%d in %d ms.", request.id(), attempt, delay));
+    }
+    lock.lock();
+    try {
+      pendingRetries++;
+      totalRetries++;
+    } finally {
+      lock.unlock();
+    }
+    retryScheduler.schedule(() -> {
+      try {
+        add(request);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      } catch (RuntimeException e) {
+        listener.afterBulk(null, e);
+      } finally {
+        lock.lock();
+        try {
+          pendingRetries--;
+          requestFinished.signalAll();
+        } finally {
+          lock.unlock();
+        }
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /** Returns {@code true}, if the given exception was caused by Elasticsearch being overloaded. */
+  static boolean isRejection(Throwable t) {
+    return ExceptionsHelper.unwrapCause(t) instanceof EsRejectedExecutionException
+        || ExceptionsHelper.status(t) == RestStatus.TOO_MANY_REQUESTS;
+  }
+
+  private static int countRejections(BulkResponse response) {
+    if (!response.hasFailures()) {
+      return 0;
+    }
+    int count = 0;
+    for (final BulkItemResponse item : response) {
+      if (item.isFailed() && item.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+}
@@ -0,0 +1,194 @@
+/*
+ *   Copyright panFMP Developers Team c/o Uwe Schindler
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package de.pangaea.metadataportal.processor;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import de.pangaea.metadataportal.utils.ISODateFormatter;
+
+/**
+ * Local file collecting bulk items that Elasticsearch refused permanently (e.g. because of
+ * mapping errors). Each line is a JSON object with the target index, type, id, the operation,
+ * the HTTP status, the error message, and the document source. The items can be sent to
+ * Elasticsearch again with {@link #replay} after the cause was fixed.
+ */
+final class DeadLetterFile implements Closeable {
+  private static final Log log = LogFactory.getLog(DeadLetterFile.class);
+
+  private final Path file;
+  private BufferedWriter writer = null;
+  private int count = 0;
+
+  DeadLetterFile(Path file) {
+    this.file = file;
+  }
+
+  Path getFile() {
+    return file;
+  }
+
+  /** Returns the number of items written to this file since it was opened. */
+  synchronized int getCount() {
+    return count;
+  }
+
+  /** Appends the failed item to the file. The file is created on first use. */
+  synchronized void write(DocWriteRequest<?> request, BulkItemResponse.Failure failure) throws IOException {
+    final XContentBuilder builder = XContentFactory.jsonBuilder().startObject()
+      .field("timestamp", ISODateFormatter.formatElasticsearch(Instant.now()))
+      .field("index", request.index())
+      .field("type", request.type())
+      .field("id", request.id())
+      .field("op", request.opType().getLowercase())
+      .field("status", failure.getStatus().getStatus())
+      .field("error", failure.getMessage());
+    if (request instanceof IndexRequest) {
+      final IndexRequest ireq = (IndexRequest) request;
+      builder.rawField("source", ireq.source(), ireq.getContentType());
+    }
+    builder.endObject();
+    writeLine(builder.string());
+  }
+
+  /** Appends a record, that was already serialized, to the file. */
+  private synchronized void writeLine(String line) throws IOException {
+    if (writer == null) {
+      writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+    writer.write(line);
+    writer.newLine();
+    writer.flush();
+    count++;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (writer != null) {
+      writer.close();
+      writer = null;
+    }
+  }
+
+  /**
+   * Sends all items of the given dead letter file to Elasticsearch again, using the given index
+   * (normally the alias of the target index, as the original index may be gone after a rebuild).
+   * Items that fail again are kept in the file, all others are removed. Records that cannot be
+   * replayed (e.g. unknown operations) are skipped with a warning and kept, too. If no items remain,
+   * the file is deleted.
+   *
+   * @return number of items that were successfully replayed
+   */
+  static int replay(Client client, Path file, String index, XContentType contentType, int bulkSize) throws IOException {
+    final List<DocWriteRequest<?>> requests = new ArrayList<>();
+    final List<String> skipped = new ArrayList<>();
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.trim().isEmpty()) continue;
+        try {
+          requests.add(parseLine(line, index, contentType));
+        } catch (IllegalArgumentException e) {
+          log.warn(String.format(Locale.ENGLISH, "Skipping record of dead letter file '%s', it is kept: %s", file, e.getMessage()));
+          skipped.add(line);
+        }
+      }
+    }
+    log.info(String.format(Locale.ENGLISH, "Replaying %d items from dead letter file '%s' to index '%s'...", requests.size(), file, index));
+
+    final Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+    int replayed = 0;
+    try (DeadLetterFile remaining = new DeadLetterFile(tmpFile)) {
+      for (final String line : skipped) {
+        remaining.writeLine(line);
+      }
+      for (int start = 0; start < requests.size(); start += bulkSize) {
+        final BulkRequest bulk = new BulkRequest();
+        final List<DocWriteRequest<?>> slice = requests.subList(start, Math.min(requests.size(), start + bulkSize));
+        for (final DocWriteRequest<?> request : slice) {
+          bulk.add(request);
+        }
+        final BulkResponse response = client.bulk(bulk).actionGet();
+        for (final BulkItemResponse item : response) {
+          if (item.isFailed()) {
+            log.warn(String.format(Locale.ENGLISH, "Replaying item '%s' failed again: %s", item.getId(), item.getFailureMessage()));
+            remaining.write(slice.get(item.getItemId()), item.getFailure());
+          } else {
+            replayed++;
+          }
+        }
+      }
+      if (remaining.getCount() > 0) {
+        remaining.close();
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.warn(String.format(Locale.ENGLISH, "%d items failed again or were skipped and were kept in dead letter file '%s'.", remaining.getCount(), file));
+      } else {
+        Files.delete(file);
+      }
+    } finally {
+      Files.deleteIfExists(tmpFile);
+    }
+    log.info(String.format(Locale.ENGLISH, "%d items replayed successfully.", replayed));
+    return replayed;
+  }
+
+  private static DocWriteRequest<?> parseLine(String line, String index, XContentType contentType) {
+    final Map<String,Object> record = XContentHelper.convertToMap(XContentType.JSON.xContent(), line, false);
+    final String type = (String) record.get("type"), id = (String) record.get("id");
+    final DocWriteRequest.OpType op = DocWriteRequest.OpType.fromString(String.valueOf(record.get("op")));
+    switch (op) {
+      case DELETE:
+        return new DeleteRequest(index, type, id);
+      case INDEX:
+      case CREATE:
+        @SuppressWarnings("unchecked") final Map<String,Object> source = (Map<String,Object>) record.get("source");
+        if (source == null) {
+          throw new IllegalArgumentException("Dead letter record for '" + id + "' has no source.");
+        }
+        return new IndexRequest(index, type, id).source(source, contentType);
+      default:
+        throw new IllegalArgumentException("Cannot replay dead letter record for '" + id + "' with operation: " + op);
+    }
+  }
+
+}
@@ -16,56 +16,82 @@
 
 package de.pangaea.metadataportal.processor;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.RejectedExecutionHandler;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.action.DocWriteRequest;
-import org.elasticsearch.action.DocWriteResponse.Result;
 import org.elasticsearch.action.bulk.BulkItemResponse;
-import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.bulk.BulkRequest;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
-import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.get.GetField;
 import org.elasticsearch.index.query.IdsQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.index.reindex.BulkByScrollResponse;
 import org.elasticsearch.index.reindex.DeleteByQueryAction;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.slice.SliceBuilder;
 import org.elasticsearch.search.sort.FieldSortBuilder;
 import org.elasticsearch.search.sort.SortBuilders;
 
 import de.pangaea.metadataportal.config.HarvesterConfig;
+import de.pangaea.metadataportal.utils.BooleanParser;
 import de.pangaea.metadataportal.utils.KeyValuePairs;
 
 /**
- * Component of <b>panFMP</b> that analyzes and indexes harvested documents in a thread pool.
+ * Component of <b>panFMP</b> that analyzes and indexes harvested documents in a pipeline
+ * of thread pools. Each {@link ProcessingStage} has its own threads and a bounded queue:
+ * <ol>
+ * <li><em>convert</em>: parses, transforms and validates documents, whose conversion was
+ * deferred by the harvester (see {@link MetadataDocument.XMLConverter#transformLater})</li>
+ * <li><em>extract</em>: executes XPath queries and XSL templates of all fields</li>
+ * <li><em>serialize</em>: creates the CBOR/JSON source of the Elasticsearch document</li>
+ * <li>the {@link BulkIndexer} sends the documents to Elasticsearch in bulks, whose size is
+ * controlled by a {@link BulkController}</li>
+ * </ol>
  * 
  * @author Uwe Schindler
  */
@@ -75,7 +101,18 @@ public final class DocumentProcessor {
   private final HarvesterConfig iconfig;
   private final Client client;
   private final String targetIndex, sourceIndex; // differs if rebuilding
-  private final int threadCount;
+  private final int threadCount, converterThreadCount, serializerThreadCount;
+  private final int deleteUnseenBulkSize, deleteUnseenSlices;
+  private final boolean generationMode;
+  private final long generation;
+  private final boolean skipUnchangedDocuments;
+  private final Map<DocWriteRequest<?>,String> pendingDigests = Collections.synchronizedMap(new IdentityHashMap<>());
+  final AtomicLong skippedUnchanged = new AtomicLong(0L);
+  // documents refused by Elasticsearch, whose existing copy may still have an older generation:
+  private final AtomicLong unstampedDocuments = new AtomicLong(0L);
+  private final boolean useInputDigestCache, hasHarvesterMetadata;
+  private volatile InputDigestCache inputDigestCache = null;
+  private final PipelineMetrics metrics;
   
   private volatile boolean isClosed = false;
   
@@ -85,43 +122,48 @@ public final class DocumentProcessor {
   
   final AtomicInteger processed = new AtomicInteger(0);
   
-  private final int bulkSize, maxQueue, concurrentBulkRequests;
-  private final ByteSizeValue maxBulkMemory;
+  private final int maxQueue;
+  private final BlockingQueue<KeyValuePairs> keyValuePairsPool;
+  private final ThreadLocal<SourceBuffer> sourceBuffers = ThreadLocal.withInitial(SourceBuffer::new);
+  private final BulkController bulkController;
+  private final int bulkMaxRetries;
+  private final TimeValue bulkRetryInitialDelay;
+  private final DeadLetterFile deadLetterFile;
   private final DocumentErrorAction conversionErrorAction;
   private final XContentType contentType;
   
   private final Object poolInitLock = new Object();
-  private ExecutorService pool = null;
-  private volatile BulkProcessor bulkProcessor = null;
+  private volatile ProcessingStage convertStage = null, extractStage = null, serializeStage = null;
+  private volatile BulkIndexer bulkIndexer = null;
   
   public static final String HARVESTER_METADATA_TYPE = "panfmp_meta";
+  public static final String HARVESTER_METADATA_FIELD_GENERATION = "generation";
 
   public static final int DEFAULT_BULK_SIZE = 100;
   public static final ByteSizeValue DEFAULT_BULK_MEMORY = new ByteSizeValue(5, ByteSizeUnit.MB); // Elasticsearch's default, just copypasted
   public static final int DEFAULT_MAX_QUEUE = 100;
   public static final int DEFAULT_CONCURRENT_BULK_REQUESTS = 1;
+  public static final int DEFAULT_MAX_BULK_SIZE_FACTOR = 10;
+  public static final int DEFAULT_MAX_CONCURRENT_BULK_REQUESTS = 4;
+  public static final TimeValue DEFAULT_BULK_TARGET_LATENCY = TimeValue.timeValueSeconds(2);
+  public static final int DEFAULT_BULK_MAX_RETRIES = 8;
+  public static final TimeValue DEFAULT_BULK_RETRY_INITIAL_DELAY = TimeValue.timeValueMillis(500);
+  public static final String INPUT_DIGEST_CACHE_FILE_SUFFIX = ".inputdigests";
   public static final int DEFAULT_NUM_THREADS = 1;
+  public static final int DEFAULT_NUM_SERIALIZER_THREADS = 1;
   public static final int DEFAULT_DELETE_UNSEEN_BULK_SIZE = 10_000;
   public static final XContentType DEFAULT_CONTENT_TYPE = XContentType.CBOR;
 
-  DocumentProcessor(Client client, HarvesterConfig iconfig, String targetIndex) {
+  DocumentProcessor(Client client, HarvesterConfig iconfig, String targetIndex) throws IOException {
     this.client = client;
     this.iconfig = iconfig;
     this.sourceIndex = iconfig.parent.indexName;
     this.targetIndex = (targetIndex == null) ? this.sourceIndex : targetIndex;
-    this.bulkSize = Integer.parseInt(iconfig.properties.getProperty("bulkSize", Integer.toString(DEFAULT_BULK_SIZE)));
+    final int bulkSize = getBulkSize(iconfig);
     final String sz = iconfig.properties.getProperty("maxBulkMemory");
-    this.maxBulkMemory = (sz == null) ? DEFAULT_BULK_MEMORY : ByteSizeValue.parseBytesSizeValue(sz, "panfmp.maxBulkMemory");
+    final ByteSizeValue maxBulkMemory = (sz == null) ? DEFAULT_BULK_MEMORY : ByteSizeValue.parseBytesSizeValue(sz, "panfmp.maxBulkMemory");
     
-    final String ct = iconfig.properties.getProperty("sourceContentType");
-    if (ct != null) {
-      this.contentType = XContentType.fromMediaTypeOrFormat(ct);
-      if (this.contentType == null) {
-        throw new IllegalArgumentException("Illegal content type for _source field (sourceContentType property): " + ct);
-      }
-    } else {
-      this.contentType = DEFAULT_CONTENT_TYPE;
-    }
+    this.contentType = getContentType(iconfig);
     
     final String s = iconfig.properties.getProperty("conversionErrorAction", "STOP");
     try {
@@ -131,19 +173,73 @@ public final class DocumentProcessor {
           + Arrays.toString(DocumentErrorAction.values()));
     }
     
-    this.concurrentBulkRequests = Integer.parseInt(iconfig.properties.getProperty("concurrentBulkRequests", Integer.toString(DEFAULT_CONCURRENT_BULK_REQUESTS)));
+    final int concurrentBulkRequests = Integer.parseInt(iconfig.properties.getProperty("concurrentBulkRequests", Integer.toString(DEFAULT_CONCURRENT_BULK_REQUESTS)));
+    if (concurrentBulkRequests < 0) {
+      throw new IllegalArgumentException("concurrentBulkRequests harvester-property must be >=0!");
+    }
+    final boolean adaptiveBulk = BooleanParser.parseBoolean(iconfig.properties.getProperty("adaptiveBulk", "false"));
+    final int maxBulkSize = Integer.parseInt(iconfig.properties.getProperty("maxBulkSize", Integer.toString(bulkSize * DEFAULT_MAX_BULK_SIZE_FACTOR)));
+    final int maxConcurrentBulkRequests = Integer.parseInt(iconfig.properties.getProperty("maxConcurrentBulkRequests",
+        Integer.toString(Math.max(concurrentBulkRequests, DEFAULT_MAX_CONCURRENT_BULK_REQUESTS))));
+    final String lat = iconfig.properties.getProperty("bulkTargetLatency");
+    final TimeValue bulkTargetLatency = (lat == null) ? DEFAULT_BULK_TARGET_LATENCY : TimeValue.parseTimeValue(lat, "panfmp.bulkTargetLatency");
+    this.bulkController = new BulkController(iconfig.id, bulkSize, maxBulkMemory, concurrentBulkRequests,
+        adaptiveBulk, maxBulkSize, maxConcurrentBulkRequests, bulkTargetLatency);
+    this.bulkMaxRetries = Integer.parseInt(iconfig.properties.getProperty("bulkMaxRetries", Integer.toString(DEFAULT_BULK_MAX_RETRIES)));
+    if (this.bulkMaxRetries < 0) {
+      throw new IllegalArgumentException("bulkMaxRetries harvester-property must be >=0!");
+    }
+    final String rd = iconfig.properties.getProperty("bulkRetryInitialDelay");
+    this.bulkRetryInitialDelay = (rd == null) ? DEFAULT_BULK_RETRY_INITIAL_DELAY : TimeValue.parseTimeValue(rd, "panfmp.bulkRetryInitialDelay");
+    final Path dlf = getDeadLetterFile(iconfig);
+    this.deadLetterFile = (dlf == null) ? null : new DeadLetterFile(dlf);
 
     this.threadCount = Integer.parseInt(iconfig.properties.getProperty("numThreads", Integer.toString(DEFAULT_NUM_THREADS)));
     if (this.threadCount < 1) {
       throw new IllegalArgumentException("numThreads harvester-property must be >=1!");
     }
+    this.converterThreadCount = Integer.parseInt(iconfig.properties.getProperty("numConverterThreads", Integer.toString(this.threadCount)));
+    if (this.converterThreadCount < 1) {
+      throw new IllegalArgumentException("numConverterThreads harvester-property must be >=1!");
+    }
+    this.serializerThreadCount = Integer.parseInt(iconfig.properties.getProperty("numSerializerThreads", Integer.toString(DEFAULT_NUM_SERIALIZER_THREADS)));
+    if (this.serializerThreadCount < 1) {
+      throw new IllegalArgumentException("numSerializerThreads harvester-property must be >=1!");
+    }
     this.maxQueue = Integer.parseInt(iconfig.properties.getProperty("maxQueue", Integer.toString(DEFAULT_MAX_QUEUE)));
-    if (this.maxQueue < this.threadCount) {
-      throw new IllegalArgumentException("maxQueue must be >=numThreads!");
+    if (this.maxQueue < Math.max(this.threadCount, Math.max(this.converterThreadCount, this.serializerThreadCount))) {
+      throw new IllegalArgumentException("maxQueue must be >=numThreads, >=numConverterThreads, and >=numSerializerThreads!");
+    }
+    // at most that many documents are between the extract and serialize stages:
+    this.keyValuePairsPool = new ArrayBlockingQueue<>(this.maxQueue + this.threadCount + this.serializerThreadCount);
+    
+    this.deleteUnseenBulkSize = Integer.parseInt(iconfig.properties.getProperty("deleteUnseenBulkSize", Integer.toString(DEFAULT_DELETE_UNSEEN_BULK_SIZE)));
+    if (this.deleteUnseenBulkSize < 1) {
+      throw new IllegalArgumentException("deleteUnseenBulkSize harvester-property must be >=1!");
+    }
+    this.deleteUnseenSlices = Integer.parseInt(iconfig.properties.getProperty("deleteUnseenSlices", Integer.toString(this.threadCount)));
+    if (this.deleteUnseenSlices < 1) {
+      throw new IllegalArgumentException("deleteUnseenSlices harvester-property must be >=1!");
+    }
+    
+    this.skipUnchangedDocuments = BooleanParser.parseBoolean(iconfig.properties.getProperty("skipUnchangedDocuments", "false"));
+    this.useInputDigestCache = BooleanParser.parseBoolean(iconfig.properties.getProperty("inputDigestCache", "false"));
+    
+    final String mode = iconfig.properties.getProperty("deleteUnseenMode", "identifiers");
+    switch (mode.toLowerCase(Locale.ROOT)) {
+      case "identifiers":
+        this.generationMode = false;
+        break;
+      case "generation":
+        this.generationMode = true;
+        break;
+      default:
+        throw new IllegalArgumentException("Invalid value '" + mode + "' for harvester property 'deleteUnseenMode', valid ones are: [identifiers, generation]");
     }
     
     // load metadata
     final GetResponse resp = client.prepareGet(sourceIndex, HARVESTER_METADATA_TYPE, iconfig.id).setFetchSource(true).get();
+    this.hasHarvesterMetadata = resp.isExists();
     if (resp.isExists()) {
       Map<String,Object> map = resp.getSourceAsMap();
       if (map != null) {
@@ -152,6 +248,63 @@ public final class DocumentProcessor {
         }
       }
     }
+    
+    // every run gets a new generation, which is stored with the metadata on close:
+    if (generationMode) {
+      final String g = harvesterMetadata.get(HARVESTER_METADATA_FIELD_GENERATION);
+      this.generation = ((g == null) ? 0L : Long.parseLong(g)) + 1L;
+      harvesterMetadata.put(HARVESTER_METADATA_FIELD_GENERATION, Long.toString(this.generation));
+      log.info("Stamping all documents with harvest generation " + this.generation + ".");
+    } else {
+      this.generation = 0L;
+    }
+    
+    this.metrics = PipelineMetrics.register(iconfig.id, this.targetIndex, this::getQueueDepths,
+        BooleanParser.parseBoolean(iconfig.properties.getProperty("profileExpressions", "false")));
+  }
+  
+  /** Returns the timers and counters of this processor, which are also available by JMX. */
+  public PipelineMetrics getMetrics() {
+    return metrics;
+  }
+  
+  /**
+   * Returns {@code true}, if every document indexed by this processor is stamped with the
+   * current harvest generation. In that case unseen documents are deleted by their generation
+   * and the set of identifiers passed to {@link #close(Set,boolean)} is not used. Harvesters must then
+   * call {@link #touchDocument(String)} for documents they skip, because they did not change.
+   */
+  public boolean isGenerationMode() {
+    return generationMode;
+  }
+  
+  /**
+   * Returns the cache of input digests, if enabled by the harvester property
+   * <code>inputDigestCache</code>, otherwise {@code null}. The cache is loaded on first use
+   * and saved on a clean {@link #close(Set,boolean)}. Harvesters use it to skip documents
+   * whose raw input did not change since the last harvest. Such documents must still be marked
+   * as seen (see {@link #touchDocument(String)}).
+   */
+  public synchronized InputDigestCache getInputDigestCache() throws IOException {
+    if (useInputDigestCache && inputDigestCache == null) {
+      // the fingerprint includes the real name of the target index, so a rebuilt or recreated index invalidates the cache:
+      inputDigestCache = new InputDigestCache(iconfig.root.makeOutputPathAbsolute(iconfig.id + INPUT_DIGEST_CACHE_FILE_SUFFIX),
+          String.join("/", iconfig.root.getFingerprint(), targetIndex, iconfig.id));
+      if (hasHarvesterMetadata) {
+        inputDigestCache.load();
+      } else {
+        // this harvester never finished a harvest into the index:
+        inputDigestCache.delete();
+      }
+    }
+    return inputDigestCache;
+  }
+  
+  private void forgetInputDigest(String identifier) {
+    final InputDigestCache cache = inputDigestCache;
+    if (cache != null) {
+      cache.remove(identifier);
+    }
   }
   
   public boolean isFailed() {
@@ -162,47 +315,108 @@ public final class DocumentProcessor {
     return isClosed;
   }
   
-  public void close(Set<String> validIdentifiers) throws Exception {
+  /**
+   * Waits for all documents to be indexed and shuts down the processor.
+   * If {@code validIdentifiers} is given, all documents not in this set are deleted
+   * (in generation mode, all documents of older generations). If {@code cleanShutdown}
+   * is {@code true}, the input digest cache is saved.
+   */
+  public void close(Set<String> validIdentifiers, boolean cleanShutdown) throws Exception {
     if (isClosed()) throw new IllegalStateException("DocumentProcessor already closed");
     isClosed = true;
     
-    synchronized(poolInitLock) {
-      if (pool != null) {
-        log.info("Waiting for document processor to finish...");
-        // shutdown thread pool
-        pool.shutdown();
-        while (!pool.awaitTermination(5, TimeUnit.SECONDS)) {
-          log.warn("Still waiting for document processor threadpool to finish...");
+    try {
+      synchronized(poolInitLock) {
+        if (extractStage != null) {
+          log.info("Waiting for document processor to finish...");
+          // shutdown the stages in pipeline order, as each one feeds the next:
+          convertStage.shutdownAndWait();
+          convertStage = null;
+          extractStage.shutdownAndWait();
+          extractStage = null;
+          serializeStage.shutdownAndWait();
+          serializeStage = null;
+          log.info("Document processor terminated.");
+  
+          log.info("Waiting for Elasticsearch bulk requests to finish...");
+          bulkIndexer.awaitIdle();
+          log.info("Elasticsearch bulk requests finished.");
+  
+          // exit here before we write any status info to disk:
+          throwFailure();
+  
+          log.info(processed + " metadata items processed - finished."
+              + (skipUnchangedDocuments ? (" " + skippedUnchanged + " unchanged metadata items were not written again.") : ""));
         }
-        pool = null;
-        log.info("Document processor to terminated.");
-
-        log.info("Waiting for Elasticsearch bulk processor to finish...");
-        // TODO: ES bulk processor does not support while()-based waiting
-        // (it closes on first try and waits afterwards)!
-        bulkProcessor.awaitClose(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
-        bulkProcessor = null;
-        log.info("Elasticsearch bulk processor terminated.");
-
-        // exit here before we write any status info to disk:
-        throwFailure();
-
-        log.info(processed + " metadata items processed - finished.");
+      }
+      
+      // exit here before we write any status info to disk:
+      throwFailure();
+  
+      // delete all unseen documents, if validIdentifiers is given:
+      if (validIdentifiers != null) {
+        deleteUnseenDocuments(validIdentifiers);
+      }
+    } finally {
+      try {
+        shutdownBulkIndexer();
+      } finally {
+        metrics.unregister();
       }
     }
     
     // exit here before we write any status info to disk:
     throwFailure();
-
-    // delete all unseen documents, if validIdentifiers is given:
-    if (validIdentifiers != null) {
-      deleteUnseenDocuments(validIdentifiers);
-    }
     
     // save harvester metadata:
     log.info("Saving harvester metadata...");
     final XContentBuilder builder = XContentFactory.contentBuilder(contentType).map(harvesterMetadata);
     client.prepareIndex(targetIndex, HARVESTER_METADATA_TYPE, iconfig.id).setSource(builder).get();
+    
+    synchronized(this) {
+      if (inputDigestCache != null && cleanShutdown) {
+        if (validIdentifiers != null) {
+          // documents not seen were deleted, so forget their digests:
+          inputDigestCache.retainSeen(generationMode ? Collections.emptySet() : validIdentifiers);
+        }
+        inputDigestCache.save();
+      }
+      inputDigestCache = null;
+    }
+  }
+  
+  private void shutdownBulkIndexer() throws Exception {
+    synchronized(poolInitLock) {
+      if (bulkIndexer != null) {
+        try {
+          bulkIndexer.awaitIdle();
+        } finally {
+          bulkIndexer.close();
+        }
+        if (bulkController.isAdaptive()) {
+          log.info("Final bulk settings: " + bulkController);
+        }
+        if (bulkIndexer.getTotalRetries() > 0L) {
+          log.info(bulkIndexer.getTotalRetries() + " items were retried, because Elasticsearch rejected them.");
+        }
+        if (bulkIndexer.getUpdateNotFound() > 0L) {
+          log.warn(bulkIndexer.getUpdateNotFound() + " unchanged metadata items could not be stamped with the current generation, because they were not found in the index.");
+        }
+        bulkIndexer = null;
+      }
+    }
+    closeDeadLetterFile();
+  }
+  
+  private void closeDeadLetterFile() throws IOException {
+    if (deadLetterFile != null) {
+      deadLetterFile.close();
+      final int count = deadLetterFile.getCount();
+      if (count > 0) {
+        log.warn(String.format(Locale.ENGLISH, "%d metadata items were refused by Elasticsearch and written to dead letter file '%s'. "
+            + "After fixing the cause, replay them with: replay-dead-letters.sh %s", count, deadLetterFile.getFile(), iconfig.id));
+      }
+    }
   }
   
   public void addDocument(MetadataDocument mdoc) throws BackgroundFailure {
@@ -210,19 +424,57 @@ public final class DocumentProcessor {
     throwFailure();
     synchronized(poolInitLock) {
       startPool();
-      pool.execute(getRunnable(mdoc));
+      if (mdoc.hasPendingTransformation()) {
+        convertStage.execute(getConvertRunnable(mdoc));
+      } else {
+        extractStage.execute(getExtractRunnable(mdoc));
+      }
     }
     throwFailure(); // fail is queue was full and it was executed in this thread
   }
   
+  /**
+   * Marks a document, which was not changed since the last harvest, as seen. In generation mode,
+   * the document is updated to the current generation by a partial update, otherwise this does nothing.
+   */
+  public void touchDocument(String identifier) throws Exception {
+    if (isClosed()) throw new IllegalStateException("DocumentProcessor already closed");
+    throwFailure();
+    startBulkIndexer();
+    final InputDigestCache cache = inputDigestCache;
+    if (cache != null) {
+      cache.keep(identifier);
+    }
+    touch(identifier);
+  }
+  
+  private void touch(String identifier) throws Exception {
+    if (generationMode) {
+      bulkIndexer.add(buildTouchRequest(identifier));
+    }
+  }
+  
   /**
    * Check for validIdentifiers Set and remove all unknown identifiers from ES.
+   * For large sets, the documents of this harvester are read by a sliced scroll
+   * (one thread per slice), and the deletes are sent through the {@link BulkIndexer},
+   * so fetching the next page overlaps with the bulk requests.
    */
-  private void deleteUnseenDocuments(Set<String> validIdentifiers) {
+  private void deleteUnseenDocuments(final Set<String> validIdentifiers) throws Exception {
     log.info("Removing metadata items not seen while harvesting...");
-    long deleted = 0L;
+    
+    if (generationMode) {
+      if (unstampedDocuments.get() > 0L) {
+        // their old copies still have an older generation and would be lost:
+        log.warn(unstampedDocuments.get() + " metadata items were refused by Elasticsearch and could not be stamped with the current generation. "
+            + "Metadata items of older generations are not deleted in this harvest.");
+        return;
+      }
+      deleteOutdatedGenerations();
+      return;
+    }
 
-    if (validIdentifiers.size() <= DEFAULT_DELETE_UNSEEN_BULK_SIZE) {
+    if (validIdentifiers.size() <= deleteUnseenBulkSize) {
       final IdsQueryBuilder bld = QueryBuilders.idsQuery(iconfig.root.typeName);
       bld.ids().addAll(validIdentifiers);
       final QueryBuilder query = QueryBuilders.boolQuery()
@@ -233,54 +485,177 @@ public final class DocumentProcessor {
         .filter(query)
         .source(targetIndex)
         .get();
-      deleted += response.getDeleted();
-    } else {
-      final TimeValue time = TimeValue.timeValueMinutes(10);
-      SearchResponse scrollResp = client.prepareSearch(targetIndex)
-        .setTypes(iconfig.root.typeName)
-        .setQuery(QueryBuilders.termQuery(iconfig.root.fieldnameSource, iconfig.id))
-        .setFetchSource(false)
-        .setSize(DEFAULT_DELETE_UNSEEN_BULK_SIZE)
-        .addSort(SortBuilders.fieldSort(FieldSortBuilder.DOC_FIELD_NAME))
-        .setScroll(time)
-        .get();
-      do {
-        final BulkRequestBuilder bulk = client.prepareBulk();
+      log.info("Deleted a total number of " + response.getDeleted() + " metadata items.");
+      return;
+    }
+    
+    final BulkIndexer indexer = startBulkIndexer();
+    final long deletedBefore = indexer.getDeleted(), notFoundBefore = indexer.getDeleteNotFound();
+    final AtomicLong scanned = new AtomicLong(0L);
+    final AtomicInteger threadNumber = new AtomicInteger(0);
+    final ExecutorService pool = Executors.newFixedThreadPool(deleteUnseenSlices,
+        r -> new Thread(r, "panfmp-" + iconfig.id + "-delete-unseen-" + threadNumber.incrementAndGet()));
+    try {
+      final List<Future<?>> futures = new ArrayList<>(deleteUnseenSlices);
+      for (int i = 0; i < deleteUnseenSlices; i++) {
+        final int slice = i;
+        futures.add(pool.submit(() -> {
+          scanned.addAndGet(deleteUnseenDocumentsSlice(indexer, slice, validIdentifiers));
+          return null;
+        }));
+      }
+      for (final Future<?> f : futures) {
+        try {
+          f.get();
+        } catch (ExecutionException ee) {
+          throw (ee.getCause() instanceof Exception) ? (Exception) ee.getCause() : ee;
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    indexer.awaitIdle();
+    throwFailure();
+    
+    final long notFound = indexer.getDeleteNotFound() - notFoundBefore;
+    if (notFound > 0L) {
+      log.warn(notFound + " metadata items were not found when we tried to delete them.");
+    }
+    log.info("Scanned " + scanned + " metadata items in " + deleteUnseenSlices + " slice(s); deleted a total number of "
+        + (indexer.getDeleted() - deletedBefore) + " metadata items.");
+  }
+  
+  /**
+   * Deletes all documents of this harvester, which were not stamped with the current
+   * generation, using a single delete-by-query.
+   */
+  private void deleteOutdatedGenerations() {
+    // make sure the search sees all documents stamped in this run:
+    client.admin().indices().prepareRefresh(targetIndex).get();
+    final QueryBuilder query = QueryBuilders.boolQuery()
+      .filter(QueryBuilders.termQuery(iconfig.root.fieldnameSource, iconfig.id))
+      .mustNot(QueryBuilders.rangeQuery(iconfig.root.fieldnameGeneration).gte(generation));
+    final BulkByScrollResponse response = DeleteByQueryAction.INSTANCE.newRequestBuilder(client)
+      .filter(query)
+      .source(targetIndex)
+      .get();
+    if (!response.getBulkFailures().isEmpty() || !response.getSearchFailures().isEmpty()) {
+      throw new ElasticsearchException("Deleting metadata items of older generations than " + generation + " failed: "
+          + response.getBulkFailures() + response.getSearchFailures());
+    }
+    if (response.getVersionConflicts() > 0L) {
+      log.warn(response.getVersionConflicts() + " metadata items of older generations were changed concurrently and not deleted.");
+    }
+    log.info("Deleted a total number of " + response.getDeleted() + " metadata items of older generations than " + generation + ".");
+  }
+  
+  /** Scrolls through one slice of this harvester's documents and deletes all unseen ones. Returns the number of scanned documents. */
+  private long deleteUnseenDocumentsSlice(BulkIndexer indexer, int slice, Set<String> validIdentifiers) throws Exception {
+    final TimeValue time = TimeValue.timeValueMinutes(10);
+    final SearchRequestBuilder search = client.prepareSearch(targetIndex)
+      .setTypes(iconfig.root.typeName)
+      .setQuery(QueryBuilders.termQuery(iconfig.root.fieldnameSource, iconfig.id))
+      .setFetchSource(false)
+      .setSize(deleteUnseenBulkSize)
+      .addSort(SortBuilders.fieldSort(FieldSortBuilder.DOC_FIELD_NAME))
+      .setScroll(time);
+    if (deleteUnseenSlices > 1) {
+      search.slice(new SliceBuilder(slice, deleteUnseenSlices));
+    }
+    long scanned = 0L;
+    SearchResponse scrollResp = search.get();
+    try {
+      while (scrollResp.getHits().getHits().length > 0) {
+        throwFailure();
         for (final SearchHit hit : scrollResp.getHits()) {
           final String id = hit.getId();
           if (!validIdentifiers.contains(id)) {
-            bulk.add(new DeleteRequest(targetIndex, iconfig.root.typeName, id));
-          }
-        }
-        if (bulk.numberOfActions() > 0) {
-          final BulkResponse bulkResp = bulk.get();
-          for (BulkItemResponse resp : bulkResp) {
-            final DeleteResponse delResp = resp.<DeleteResponse>getResponse();
-            if (delResp.getResult() != Result.DELETED) {
-              log.warn("Metadata item with ID '" + delResp.getId() + "' was not found when we tried to delete it.");
-            } else {
-              deleted++;
-            }
+            indexer.add(buildDeleteRequest(id));
           }
+          scanned++;
         }
         if (scrollResp.getScrollId() == null) break;
         scrollResp = client.prepareSearchScroll(scrollResp.getScrollId()).setScroll(time).get();
-      } while (scrollResp.getHits().getHits().length > 0);      
+      }
+    } finally {
+      if (scrollResp.getScrollId() != null) {
+        client.prepareClearScroll().addScrollId(scrollResp.getScrollId()).get();
+      }
     }
-    
-    log.info("Deleted a total number of " + deleted + " metadata items.");
+    return scanned;
+  }
+  
+  private static int getBulkSize(HarvesterConfig iconfig) {
+    final int bulkSize = Integer.parseInt(iconfig.properties.getProperty("bulkSize", Integer.toString(DEFAULT_BULK_SIZE)));
+    if (bulkSize < 1) {
+      throw new IllegalArgumentException("bulkSize harvester-property must be >=1!");
+    }
+    return bulkSize;
+  }
+  
+  private static XContentType getContentType(HarvesterConfig iconfig) {
+    final String ct = iconfig.properties.getProperty("sourceContentType");
+    if (ct == null) {
+      return DEFAULT_CONTENT_TYPE;
+    }
+    final XContentType contentType = XContentType.fromMediaTypeOrFormat(ct);
+    if (contentType == null) {
+      throw new IllegalArgumentException("Illegal content type for _source field (sourceContentType property): " + ct);
+    }
+    return contentType;
   }
   
-  private Runnable getRunnable(final MetadataDocument mdoc) {
+  /** Returns the dead letter file of the harvester, or {@code null}, if disabled. */
+  private static Path getDeadLetterFile(HarvesterConfig iconfig) {
+    final String dlf = iconfig.properties.getProperty("deadLetterFile", "").trim();
+    return dlf.isEmpty() ? null : iconfig.root.makeOutputPathAbsolute(dlf);
+  }
+  
+  /**
+   * Sends the items of a dead letter file to Elasticsearch again, into the index (alias) of
+   * the given harvester. If {@code file} is {@code null}, the dead letter file configured for
+   * the harvester is used. Items failing again stay in the file. No processor is needed for this.
+   * @return number of items that were successfully replayed
+   */
+  static int replayDeadLetters(Client client, HarvesterConfig iconfig, Path file) throws IOException {
+    if (file == null) {
+      file = getDeadLetterFile(iconfig);
+      if (file == null) {
+        throw new IllegalArgumentException("There is no dead letter file configured for harvester '" + iconfig.id + "'.");
+      }
+    }
+    if (!Files.exists(file)) {
+      log.info("Dead letter file '" + file + "' does not exist, nothing to replay.");
+      return 0;
+    }
+    return DeadLetterFile.replay(client, file, iconfig.parent.indexName, getContentType(iconfig), getBulkSize(iconfig));
+  }
+  
+  /**
+   * Returns the number of documents waiting in the queue of each pipeline stage.
+   */
+  public Map<String,Integer> getQueueDepths() {
+    final Map<String,Integer> depths = new LinkedHashMap<>();
+    for (final ProcessingStage stage : Arrays.asList(convertStage, extractStage, serializeStage)) {
+      if (stage != null) {
+        depths.put(stage.name, stage.getQueueDepth());
+      }
+    }
+    return depths;
+  }
+  
+  @FunctionalInterface
+  private interface StageTask {
+    void run() throws Exception;
+  }
+  
+  private Runnable guard(final StageTask task) {
     return () -> {
       if (failure.get() != null) {
         return; // cancel execution
       }
-      try {      
-        final DocWriteRequest<?> req = buildDocumentAction(mdoc);
-        if (req != null) {
-          bulkProcessor.add(req);
-        }
+      try {
+        task.run();
       } catch (Throwable e) {
         // only store the first error in failure variable, other errors are only logged
         if (!failure.compareAndSet(null, e)) {
@@ -290,6 +665,44 @@ public final class DocumentProcessor {
     };
   }
   
+  private Runnable getConvertRunnable(final MetadataDocument mdoc) {
+    return guard(() -> {
+      if (mdoc.getConverter().finishPendingTransformation()) {
+        extractStage.execute(getExtractRunnable(mdoc));
+      } else {
+        // ignored because of a parse error, but keep the old document:
+        forgetInputDigest(mdoc.getIdentifier());
+        touch(mdoc.getIdentifier());
+      }
+    });
+  }
+  
+  private Runnable getExtractRunnable(final MetadataDocument mdoc) {
+    return guard(() -> {
+      final String identifier = mdoc.getIdentifier();
+      final KeyValuePairs kv = extractKeyValuePairs(mdoc);
+      if (kv == null) {
+        // ignored, but keep the old document:
+        forgetInputDigest(identifier);
+        touch(identifier);
+        return;
+      }
+      if (kv.isEmpty()) {
+        releaseKeyValuePairs(kv);
+        forgetInputDigest(identifier);
+        bulkIndexer.add(buildDeleteRequest(identifier));
+      } else {
+        serializeStage.execute(guard(() -> {
+          try {
+            bulkIndexer.add(buildIndexRequest(identifier, kv));
+          } finally {
+            releaseKeyValuePairs(kv);
+          }
+        }));
+      }
+    });
+  }
+  
   /**
    * Processes the given {@link MetadataDocument} and returns
    * the {@link DocWriteRequest} to pass to Elasticsearch
@@ -297,35 +710,196 @@ public final class DocumentProcessor {
    */
   public DocWriteRequest<?> buildDocumentAction(MetadataDocument mdoc) throws Exception {
     final String identifier = mdoc.getIdentifier();
+    final KeyValuePairs kv = extractKeyValuePairs(mdoc);
+    if (kv == null) {
+      return null; // ignored
+    }
+    try {
+      if (kv.isEmpty()) {
+        return buildDeleteRequest(identifier);
+      } else {
+        final IndexRequest req = buildIndexRequest(identifier, kv);
+        pendingDigests.remove(req); // not sent through our bulk indexer
+        return req;
+      }
+    } finally {
+      releaseKeyValuePairs(kv);
+    }
+  }
+  
+  /**
+   * First pipeline stage: executes all XPath queries and templates on the document.
+   * Returns an empty instance if the document should be deleted and {@code null}
+   * if it should be ignored. The returned instance is taken from a pool and must be
+   * given back by {@link #releaseKeyValuePairs} after it was serialized.
+   */
+  private KeyValuePairs extractKeyValuePairs(MetadataDocument mdoc) throws Exception {
     if (log.isDebugEnabled()) log.debug("Converting document: " + mdoc.toString());
-    KeyValuePairs kv = null;
+    final long start = System.nanoTime();
+    KeyValuePairs kv = keyValuePairsPool.poll();
+    if (kv == null) {
+      kv = new KeyValuePairs();
+    }
     try {
-      kv = mdoc.getKeyValuePairs();
+      if (mdoc.getKeyValuePairs(kv) == null) {
+        kv.clear();
+      }
+      metrics.extract.record(System.nanoTime() - start);
+      return kv;
     } catch (Exception e) {
+      kv.clear();
       // handle exception
+      final String identifier = mdoc.getIdentifier();
       switch (conversionErrorAction) {
         case IGNOREDOCUMENT:
           log.error(String.format(Locale.ENGLISH, "Conversion XML to Elasticsearch document failed for '%s' (object ignored):", identifier), e);
-          // exit method
+          releaseKeyValuePairs(kv);
           return null;
         case DELETEDOCUMENT:
           log.error(String.format(Locale.ENGLISH, "Conversion XML to Elasticsearch document failed for '%s' (object marked deleted):", identifier), e);
-          kv = null;
-          break;
+          return kv;
         default:
+          releaseKeyValuePairs(kv);
           throw e;
       }
     }
-
-    if (kv == null || kv.isEmpty()) {
-      if (log.isDebugEnabled()) log.debug("Deleting document: " + identifier);
-      return new DeleteRequest(targetIndex, iconfig.root.typeName, identifier);
+  }
+  
+  /** Clears the given instance and gives it back to the pool for the next document. */
+  private void releaseKeyValuePairs(KeyValuePairs kv) {
+    kv.clear();
+    keyValuePairsPool.offer(kv);
+  }
+  
+  private DeleteRequest buildDeleteRequest(String identifier) {
+    if (log.isDebugEnabled()) log.debug("Deleting document: " + identifier);
+    return new DeleteRequest(targetIndex, iconfig.root.typeName, identifier);
+  }
+  
+  /**
+   * Second pipeline stage: serializes the fields to the document source.
+   * If unchanged documents should be skipped, a digest of the serialized fields is
+   * appended to the source. The generation is appended after it, so it does not
+   * change the digest.
+   */
+  private IndexRequest buildIndexRequest(String identifier, KeyValuePairs kv) throws Exception {
+    final long start = System.nanoTime();
+    final SourceBuffer buffer = sourceBuffers.get();
+    final ByteArrayOutputStream out = buffer.out;
+    out.reset();
+    final DigestOutputStream digestOut;
+    if (skipUnchangedDocuments) {
+      buffer.digest.reset();
+      digestOut = new DigestOutputStream(out, buffer.digest);
     } else {
-      final XContentBuilder source = XContentFactory.contentBuilder(contentType);
-      kv.serializeToContentBuilder(source);
-      if (log.isDebugEnabled()) log.debug("Updating document: " + identifier);
-      return new IndexRequest(targetIndex, iconfig.root.typeName, identifier).source(source);
+      digestOut = null;
+    }
+    String digest = null;
+    try (final XContentBuilder source = new XContentBuilder(contentType.xContent(), (digestOut == null) ? out : digestOut)) {
+      source.startObject();
+      kv.serializeFieldsToContentBuilder(source);
+      if (digestOut != null) {
+        source.flush();
+        digestOut.on(false);
+        digest = Base64.getEncoder().withoutPadding().encodeToString(digestOut.getMessageDigest().digest());
+        source.field(iconfig.root.fieldnameDigest, digest);
+      }
+      if (generationMode) {
+        source.field(iconfig.root.fieldnameGeneration, generation);
+      }
+      source.endObject();
+    }
+    if (log.isDebugEnabled()) log.debug("Updating document: " + identifier);
+    // the only copy of the source, the bulk request refers to it:
+    final BytesArray bytes = new BytesArray(out.toByteArray());
+    if (out.size() > SourceBuffer.MAX_RETAINED_SIZE) {
+      sourceBuffers.remove(); // don't keep huge buffers
+    }
+    final IndexRequest req = new IndexRequest(targetIndex, iconfig.root.typeName, identifier).source(bytes, contentType);
+    if (digest != null) {
+      pendingDigests.put(req, digest);
     }
+    metrics.serialize.record(System.nanoTime() - start);
+    return req;
+  }
+  
+  /**
+   * Buffers to serialize the document sources, each thread reuses them for all documents.
+   * The serialized source is copied once into the {@link IndexRequest}.
+   */
+  private static final class SourceBuffer {
+    /** Larger buffers are not reused, to not keep them in memory after a huge document. */
+    static final int MAX_RETAINED_SIZE = 1 << 20;
+    
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+    final MessageDigest digest = newDigest();
+  }
+  
+  private static MessageDigest newDigest() {
+    try {
+      // only used to detect changes, so MD5 is fine:
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError("MD5 is always supported by the JVM.", e);
+    }
+  }
+  
+  /**
+   * Removes all index requests from the bulk, whose document already exists with the same digest.
+   * The digests are fetched with a single multi-get. In generation mode, the skipped
+   * documents are touched instead.
+   */
+  private BulkRequest removeUnchangedDocuments(BulkRequest bulk) {
+    final List<DocWriteRequest<?>> candidates = new ArrayList<>();
+    final List<String> digests = new ArrayList<>();
+    final MultiGetRequestBuilder mget = client.prepareMultiGet();
+    for (final DocWriteRequest<?> req : bulk.requests()) {
+      final String digest = pendingDigests.remove(req);
+      if (digest != null) {
+        candidates.add(req);
+        digests.add(digest);
+        mget.add(new MultiGetRequest.Item(req.index(), req.type(), req.id()).storedFields(iconfig.root.fieldnameDigest));
+      }
+    }
+    if (candidates.isEmpty()) {
+      return bulk;
+    }
+    final MultiGetItemResponse[] items;
+    try {
+      items = mget.get().getResponses();
+    } catch (ElasticsearchException e) {
+      log.warn("Cannot fetch digests of existing documents, writing all of them: " + e);
+      return bulk;
+    }
+    final Set<DocWriteRequest<?>> unchanged = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (int i = 0; i < items.length; i++) {
+      final MultiGetItemResponse item = items[i];
+      if (item.isFailed() || !item.getResponse().isExists()) continue;
+      final GetField field = item.getResponse().getField(iconfig.root.fieldnameDigest);
+      if (field != null && digests.get(i).equals(field.getValue())) {
+        unchanged.add(candidates.get(i));
+      }
+    }
+    if (unchanged.isEmpty()) {
+      return bulk;
+    }
+    skippedUnchanged.addAndGet(unchanged.size());
+    final BulkRequest filtered = new BulkRequest();
+    for (final DocWriteRequest<?> req : bulk.requests()) {
+      if (!unchanged.contains(req)) {
+        filtered.add(req);
+      } else if (generationMode) {
+        filtered.add(buildTouchRequest(req.id()));
+      }
+    }
+    return filtered;
+  }
+  
+  private UpdateRequest buildTouchRequest(String identifier) {
+    if (log.isDebugEnabled()) log.debug("Touching document: " + identifier);
+    return new UpdateRequest(targetIndex, iconfig.root.typeName, identifier)
+      .doc(contentType, iconfig.root.fieldnameGeneration, generation)
+      .retryOnConflict(3);
   }
   
   private void throwFailure() throws BackgroundFailure {
@@ -335,20 +909,17 @@ public final class DocumentProcessor {
     }
   }
   
-  private void startPool() {
+  private BulkIndexer startBulkIndexer() {
     synchronized(poolInitLock) {
-      if (pool == null) {
-        assert bulkProcessor == null;
-        bulkProcessor = BulkProcessor.builder(client, new BulkProcessor.Listener() {
+      if (bulkIndexer == null) {
+        bulkIndexer = new BulkIndexer(iconfig.id, client, bulkController, bulkMaxRetries, bulkRetryInitialDelay, metrics.bulk, new BulkIndexer.Listener() {
           @Override
-          public void beforeBulk(long executionId, BulkRequest request) {
-            if (log.isDebugEnabled()) {
-              log.debug(String.format(Locale.ENGLISH, "Sending bulk with %d actions to Elasticsearch...", request.numberOfActions()));
-            }
+          public BulkRequest beforeBulk(BulkRequest request) {
+            return skipUnchangedDocuments ? removeUnchangedDocuments(request) : request;
           }
           
           @Override
-          public void afterBulk(long executionId, BulkRequest request, Throwable f) {
+          public void afterBulk(BulkRequest request, Throwable f) {
             if (f instanceof Exception) {
               // only store the first error in failure variable, other errors are only logged
               if (!failure.compareAndSet(null, (Exception) f)) {
@@ -362,32 +933,49 @@ public final class DocumentProcessor {
           }
           
           @Override
-          public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
-            if (response.hasFailures()) {
-              afterBulk(executionId, request, new ElasticsearchException("Error while executing bulk request: " + response.buildFailureMessage()));
+          public void afterItemFailure(DocWriteRequest<?> request, BulkItemResponse.Failure f) {
+            forgetInputDigest(request.id());
+            if (generationMode && !(request instanceof DeleteRequest)) {
+              unstampedDocuments.incrementAndGet();
+            }
+            if (deadLetterFile == null) {
+              afterBulk(null, new ElasticsearchException("Error while executing bulk request, failure in item [" + f.getId() + "]: " + f.getMessage(), f.getCause()));
+              return;
+            }
+            if (request instanceof UpdateRequest) {
+              // stamps of unchanged documents cannot be replayed, they are stamped again by the next harvest:
+              log.warn(String.format(Locale.ENGLISH, "Elasticsearch refused to stamp unchanged metadata item '%s' with the current generation: %s", f.getId(), f.getMessage()));
               return;
             }
-            final int totalItems = processed.addAndGet(request.numberOfActions());
-            log.info(totalItems + " metadata items processed so far.");
+            log.error(String.format(Locale.ENGLISH, "Elasticsearch refused metadata item '%s' (written to dead letter file): %s", f.getId(), f.getMessage()));
+            try {
+              deadLetterFile.write(request, f);
+            } catch (IOException ioe) {
+              ioe.addSuppressed(f.getCause());
+              afterBulk(null, ioe);
+            }
           }
-        }).setConcurrentRequests(concurrentBulkRequests)
-          .setBulkActions(bulkSize)
-          .setBulkSize(maxBulkMemory)
-          .build();
-
-        pool = new ThreadPoolExecutor(threadCount, threadCount,
-            0L, TimeUnit.MILLISECONDS,
-            new ArrayBlockingQueue<Runnable>(maxQueue, false),
-            new RejectedExecutionHandler() {
-              @Override
-              public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
-                if (e.isShutdown()) {
-                  throw new RejectedExecutionException("Executor shutdown.");
-                }
-                // run in caller's thread:
-                r.run();
-              }
-          });
+          
+          @Override
+          public void afterBulk(BulkRequest request, int succeeded) {
+            metrics.addIndexed(succeeded, request.estimatedSizeInBytes());
+            final int totalItems = processed.addAndGet(succeeded);
+            log.info(totalItems + " metadata items processed so far (queued: " + getQueueDepths()
+                + (bulkController.isAdaptive() ? ("; " + bulkController) : "") + ").");
+          }
+        });
+      }
+      return bulkIndexer;
+    }
+  }
+  
+  private void startPool() {
+    synchronized(poolInitLock) {
+      if (extractStage == null) {
+        startBulkIndexer();
+        convertStage = new ProcessingStage(iconfig.id, "convert", converterThreadCount, maxQueue);
+        extractStage = new ProcessingStage(iconfig.id, "extract", threadCount, maxQueue);
+        serializeStage = new ProcessingStage(iconfig.id, "serialize", serializerThreadCount, maxQueue);
       }
     }
   }
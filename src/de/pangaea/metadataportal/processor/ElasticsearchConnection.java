@@ -18,6 +18,7 @@ package de.pangaea.metadataportal.processor;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -116,10 +117,19 @@ public final class ElasticsearchConnection implements Closeable {
     return client;
   }
   
-  public DocumentProcessor getDocumentProcessor(HarvesterConfig iconfig, String targetIndex) {
+  public DocumentProcessor getDocumentProcessor(HarvesterConfig iconfig, String targetIndex) throws IOException {
     return new DocumentProcessor(client(), iconfig, targetIndex);
   }
   
+  /**
+   * Sends the items of a dead letter file to the index (alias) of the given harvester again.
+   * If {@code file} is {@code null}, the harvester's dead letter file is used.
+   * @return number of items that were successfully replayed
+   */
+  public int replayDeadLetters(HarvesterConfig iconfig, Path file) throws IOException {
+    return DocumentProcessor.replayDeadLetters(client(), iconfig, file);
+  }
+  
   public void waitForYellow(TargetIndexConfig ticonf) {
     checkOpen();
     log.info("Waiting for index '" + ticonf.indexName + "' to get available...");
@@ -304,9 +314,10 @@ public final class ElasticsearchConnection implements Closeable {
       if (props == null) {
         mapping.put("properties", props = new LinkedHashMap<>());
       }
-      if (props.containsKey(conf.fieldnameDatestamp) || props.containsKey(conf.fieldnameSource) || props.containsKey(conf.fieldnameXML)) {
+      if (props.containsKey(conf.fieldnameDatestamp) || props.containsKey(conf.fieldnameSource) || props.containsKey(conf.fieldnameXML)
+          || props.containsKey(conf.fieldnameGeneration) || props.containsKey(conf.fieldnameDigest)) {
         throw new IllegalArgumentException("The given mapping is not allowed to contain properties for internal field: " +
-            Arrays.asList(conf.fieldnameDatestamp, conf.fieldnameSource, conf.fieldnameXML));
+            Arrays.asList(conf.fieldnameDatestamp, conf.fieldnameSource, conf.fieldnameXML, conf.fieldnameGeneration, conf.fieldnameDigest));
       }
       props.put(conf.fieldnameDatestamp, mapOf(
         "type", "date",
@@ -319,6 +330,18 @@ public final class ElasticsearchConnection implements Closeable {
         "index", true,
         "include_in_all", false
       ));
+      props.put(conf.fieldnameGeneration, mapOf(
+        "type", "long",
+        "index", true,
+        "include_in_all", false
+      ));
+      props.put(conf.fieldnameDigest, mapOf(
+        "type", "keyword",
+        "index", false,
+        "doc_values", false,
+        "store", true,
+        "include_in_all", false
+      ));
       props.put(conf.fieldnameXML, mapOf(
         "type", "keyword",
         "index", false,
@@ -0,0 +1,81 @@
+/*
+ *   Copyright panFMP Developers Team c/o Uwe Schindler
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package de.pangaea.metadataportal.processor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+import javax.xml.transform.Transformer;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathVariableResolver;
+
+import org.apache.xpath.XPathContext;
+import org.w3c.dom.Document;
+
+import de.pangaea.metadataportal.utils.CompiledXPath;
+
+/**
+ * The state of evaluating the XPath expressions and templates of one document.
+ * It holds the variables, which are passed explicitly to each evaluation.
+ * The variables are set by {@link MetadataDocument} before the filters and fields
+ * are evaluated; afterwards they are only read.
+ * <p>
+ * All XPath expressions evaluated on the document share one {@link XPathContext},
+ * so the DOM tree is wrapped by a Xalan DTM only once. Therefore an instance must
+ * only be used by one thread at a time, but it may be handed over to other threads
+ * to evaluate the fields.
+ */
+public final class EvaluationContext implements XPathVariableResolver {
+
+  private final Map<QName,Object> variables = new HashMap<>();
+  private final Document dom;
+
+  private XPathContext xpathContext = null;
+
+  /** Creates a context for evaluating the given DOM tree of a document. */
+  public EvaluationContext(Document dom) {
+    this.dom = dom;
+  }
+
+  /** Returns the (modifiable) map of variables. */
+  public Map<QName,Object> getVariables() {
+    return variables;
+  }
+
+  // XPathVariableResolver
+  @Override
+  public Object resolveVariable(QName variableName) {
+    return variables.get(variableName);
+  }
+
+  /** Evaluates the given XPath expression on the document with the variables of this context. */
+  public Object evaluate(CompiledXPath expr, QName returnType) throws XPathExpressionException {
+    if (xpathContext == null) {
+      xpathContext = CompiledXPath.newContext(XPathResolverImpl.getInstance(), this);
+    }
+    return expr.evaluate(xpathContext, dom, returnType);
+  }
+
+  /** Passes all variables of this context as parameters to the given transformer. */
+  public void setParameters(Transformer trans) {
+    for (Map.Entry<QName,Object> entry : variables.entrySet()) {
+      trans.setParameter(entry.getKey().toString(), entry.getValue());
+    }
+  }
+
+}
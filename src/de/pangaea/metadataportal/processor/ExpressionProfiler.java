@@ -0,0 +1,140 @@
+/*
+ *   Copyright panFMP Developers Team c/o Uwe Schindler
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package de.pangaea.metadataportal.processor;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+import de.pangaea.metadataportal.config.ExpressionConfig;
+
+/**
+ * Collects the time and the allocated memory of every filter, variable and field
+ * (see {@link ExpressionConfig}) while extracting documents. It is enabled by the harvester property
+ * <code>profileExpressions</code>, the ranked report is printed when the harvester is closed.
+ * <p>
+ * Allocated memory is measured per thread, if the JVM supports it (HotSpot does). The
+ * method is looked up dynamically, so other JVMs only report the time.
+ */
+public final class ExpressionProfiler {
+
+  /** {@code long getThreadAllocatedBytes(long threadId)} of the platform's ThreadMXBean, or {@code null}. */
+  private static final MethodHandle threadAllocatedBytes = lookupThreadAllocatedBytes();
+
+  private static MethodHandle lookupThreadAllocatedBytes() {
+    final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    try {
+      final Class<?> clazz = Class.forName("com.sun.management.ThreadMXBean");
+      if (!clazz.isInstance(bean)) {
+        return null;
+      }
+      final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+      final boolean supported = (boolean) lookup.findVirtual(clazz, "isThreadAllocatedMemorySupported", MethodType.methodType(boolean.class)).invoke(bean);
+      if (!supported) {
+        return null;
+      }
+      lookup.findVirtual(clazz, "setThreadAllocatedMemoryEnabled", MethodType.methodType(void.class, boolean.class)).invoke(bean, true);
+      return lookup.findVirtual(clazz, "getThreadAllocatedBytes", MethodType.methodType(long.class, long.class)).bindTo(bean);
+    } catch (Error e) {
+      throw e;
+    } catch (Throwable t) {
+      return null;
+    }
+  }
+
+  private final Map<ExpressionConfig,Entry> entries = new ConcurrentHashMap<>();
+
+  ExpressionProfiler() {}
+
+  /** Returns {@code true}, if the JVM can measure the memory allocated by a thread. */
+  public boolean isAllocationMeasurementSupported() {
+    return threadAllocatedBytes != null;
+  }
+
+  /** Returns the number of bytes allocated by the current thread so far, or 0 if not supported. */
+  public long allocatedBytes() {
+    if (threadAllocatedBytes == null) {
+      return 0L;
+    }
+    try {
+      return (long) threadAllocatedBytes.invokeExact(Thread.currentThread().getId());
+    } catch (Error | RuntimeException e) {
+      throw e;
+    } catch (Throwable t) {
+      throw new AssertionError(t);
+    }
+  }
+
+  /**
+   * Records one evaluation of the given expression, which was started at {@code startNanos}
+   * (see {@link System#nanoTime}) when the current thread had allocated {@code startAllocatedBytes}
+   * (see {@link #allocatedBytes}).
+   */
+  public void record(String kind, ExpressionConfig expr, long startNanos, long startAllocatedBytes) {
+    final long nanos = System.nanoTime() - startNanos;
+    final long allocated = allocatedBytes() - startAllocatedBytes;
+    final Entry e = entries.computeIfAbsent(expr, k -> new Entry(kind + " " + k));
+    e.count.increment();
+    e.nanos.add(nanos);
+    e.allocated.add(allocated);
+  }
+
+  /** Returns a report of all expressions, ranked by their total time. */
+  public String getReport() {
+    final List<Entry> ranked = new ArrayList<>(entries.values());
+    ranked.sort(Comparator.comparingLong((Entry e) -> e.nanos.sum()).reversed());
+    long total = 0L;
+    for (final Entry e : ranked) {
+      total += e.nanos.sum();
+    }
+    final StringBuilder sb = new StringBuilder("Expression profile (ranked by total time");
+    if (threadAllocatedBytes == null) {
+      sb.append("; allocations not supported by this JVM");
+    }
+    sb.append("):").append(System.lineSeparator())
+      .append(String.format(Locale.ENGLISH, "  %4s %10s %6s %10s %10s %12s  %s", "rank", "total[ms]", "share", "calls", "mean[us]", "alloc/call", "expression"));
+    int rank = 0;
+    for (final Entry e : ranked) {
+      final long nanos = e.nanos.sum(), count = Math.max(1L, e.count.sum());
+      sb.append(System.lineSeparator()).append(String.format(Locale.ENGLISH, "  %4d %10.1f %5.1f%% %10d %10.1f %12s  %s",
+          ++rank, nanos / 1.0e6, (total == 0L) ? 0.0 : nanos * 100.0 / total, e.count.sum(), nanos / 1.0e3 / count,
+          new ByteSizeValue(e.allocated.sum() / count), e.name));
+    }
+    return sb.toString();
+  }
+
+  private static final class Entry {
+    final String name;
+    final LongAdder count = new LongAdder(), nanos = new LongAdder(), allocated = new LongAdder();
+
+    Entry(String name) {
+      this.name = name;
+    }
+  }
+
+}
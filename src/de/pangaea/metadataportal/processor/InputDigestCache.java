@@ -0,0 +1,177 @@
+/*
+ *   Copyright panFMP Developers Team c/o Uwe Schindler
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package de.pangaea.metadataportal.processor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Local file that maps the identifiers of a harvester's documents to a digest of their raw
+ * input (the XML bytes as harvested) and their datestamp. The datestamp is included, as it is
+ * stored in the index and available to fields as variable. Documents whose input did not change since the last
+ * harvest can be skipped without parsing, transforming, and validating them. The file also
+ * stores a fingerprint of the configuration and the target index; if it differs, the cache
+ * is discarded, as documents would now be converted differently.
+ * <p>
+ * Entries confirmed or added during a harvest are kept separately from the ones loaded,
+ * so entries of documents deleted as unseen can be dropped (see {@link #retainSeen}).
+ */
+public final class InputDigestCache {
+  private static final Log log = LogFactory.getLog(InputDigestCache.class);
+
+  private static final int MAGIC = 0x70664944; // "pfID"
+  private static final int VERSION = 2; // 2: digests include the datestamp
+
+  private final Path file;
+  private final String fingerprint;
+  private final Map<String,byte[]> previous = new ConcurrentHashMap<>();
+  private final Map<String,byte[]> current = new ConcurrentHashMap<>();
+
+  InputDigestCache(Path file, String fingerprint) {
+    this.file = file;
+    this.fingerprint = fingerprint;
+  }
+
+  /** Returns a new {@link MessageDigest} used for the digests of this cache. */
+  public static MessageDigest newDigest() {
+    try {
+      // only used to detect changes, so MD5 is fine:
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError("MD5 is always supported by the JVM.", e);
+    }
+  }
+
+  /**
+   * Returns {@code true}, if the document had the same input digest and datestamp on the last harvest.
+   * The document is then kept in the cache. Otherwise the new digest is stored,
+   * which is undone by {@link #remove}, if the document could not be indexed.
+   */
+  public boolean isUnchanged(String identifier, byte[] inputDigest, Instant datestamp) {
+    final MessageDigest md = newDigest();
+    md.update(inputDigest);
+    md.update(String.valueOf(datestamp).getBytes(StandardCharsets.UTF_8));
+    final byte[] digest = md.digest();
+    final byte[] old = current.containsKey(identifier) ? current.get(identifier) : previous.get(identifier);
+    current.put(identifier, digest);
+    return old != null && Arrays.equals(old, digest);
+  }
+
+  /** Marks the document as seen during this harvest, without changing its digest. */
+  void keep(String identifier) {
+    final byte[] old = previous.get(identifier);
+    if (old != null) {
+      current.putIfAbsent(identifier, old);
+    }
+  }
+
+  /** Removes the document, so it is converted again on the next harvest. */
+  public void remove(String identifier) {
+    current.remove(identifier);
+    previous.remove(identifier);
+  }
+
+  Path getFile() {
+    return file;
+  }
+
+  /** Loads the cache file, if it exists and was written with the same fingerprint. */
+  void load() throws IOException {
+    previous.clear();
+    current.clear();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        log.warn(String.format(Locale.ENGLISH, "Input digest cache '%s' has an unknown format, all documents will be converted.", file));
+        return;
+      }
+      if (!fingerprint.equals(in.readUTF())) {
+        log.info(String.format(Locale.ENGLISH, "Configuration or target index changed since input digest cache '%s' was written, all documents will be converted.", file));
+        return;
+      }
+      final int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        final String identifier = in.readUTF();
+        final byte[] digest = new byte[in.readUnsignedByte()];
+        in.readFully(digest);
+        previous.put(identifier, digest);
+      }
+      log.info(String.format(Locale.ENGLISH, "Loaded %d input digests from '%s'.", count, file));
+    } catch (NoSuchFileException e) {
+      // first harvest
+    }
+  }
+
+  /**
+   * Drops all entries of documents that were not seen during this harvest and are not
+   * contained in the given set, because they were deleted from the index.
+   */
+  void retainSeen(Set<String> validIdentifiers) {
+    previous.keySet().removeIf(id -> !current.containsKey(id) && !validIdentifiers.contains(id));
+  }
+
+  /** Writes the cache file (atomically using a temporary file). */
+  void save() throws IOException {
+    final Map<String,byte[]> entries = new HashMap<>(previous);
+    entries.putAll(current);
+    final Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(fingerprint);
+        out.writeInt(entries.size());
+        for (final Map.Entry<String,byte[]> e : entries.entrySet()) {
+          out.writeUTF(e.getKey());
+          out.writeByte(e.getValue().length);
+          out.write(e.getValue());
+        }
+      }
+      Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmpFile);
+    }
+    log.info(String.format(Locale.ENGLISH, "Saved %d input digests to '%s'.", entries.size(), file));
+  }
+
+  /** Deletes the cache file, e.g. if the index was created from scratch. */
+  void delete() throws IOException {
+    previous.clear();
+    current.clear();
+    Files.deleteIfExists(file);
+  }
+
+}
@@ -16,26 +16,39 @@
 
 package de.pangaea.metadataportal.processor;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.time.Instant;
 import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import javax.xml.namespace.QName;
+import javax.xml.transform.ErrorListener;
 import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Result;
 import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.dom.DOMResult;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Validator;
+import javax.xml.validation.ValidatorHandler;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
 
@@ -43,25 +56,35 @@ import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.search.SearchHit;
 import org.w3c.dom.Document;
 import org.w3c.dom.DocumentFragment;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
+import org.xml.sax.ext.LexicalHandler;
 
 import de.pangaea.metadataportal.config.ExpressionConfig;
 import de.pangaea.metadataportal.config.FieldConfig;
 import de.pangaea.metadataportal.config.FilterConfig;
+import de.pangaea.metadataportal.config.FusedFieldsConfig;
 import de.pangaea.metadataportal.config.HarvesterConfig;
+import de.pangaea.metadataportal.config.StreamingExtractionConfig;
 import de.pangaea.metadataportal.config.VariableConfig;
 import de.pangaea.metadataportal.utils.BooleanParser;
+import de.pangaea.metadataportal.utils.CompactDOMBuilder;
 import de.pangaea.metadataportal.utils.ISODateFormatter;
 import de.pangaea.metadataportal.utils.KeyValuePairs;
 import de.pangaea.metadataportal.utils.LenientDateParser;
 import de.pangaea.metadataportal.utils.LoggingErrorListener;
+import de.pangaea.metadataportal.utils.RawXMLDecoder;
 import de.pangaea.metadataportal.utils.StaticFactories;
-import de.pangaea.metadataportal.utils.XMLToKeyValuePairs;
+import de.pangaea.metadataportal.utils.TeeContentHandler;
+import de.pangaea.metadataportal.utils.TransformerCache;
+import de.pangaea.metadataportal.utils.ValidatorCache;
+import de.pangaea.metadataportal.utils.XMLToXContent;
 
 /**
  * This class holds all information harvested and provides methods for
@@ -73,6 +96,8 @@ public class MetadataDocument {
   static final org.apache.commons.logging.Log log = org.apache.commons.logging.LogFactory
       .getLog(MetadataDocument.class);
   
+  private static final ErrorListener errorListener = new LoggingErrorListener(log);
+  
   /**
    * Constructor, that creates an empty instance for the supplied index
    * configuration.
@@ -109,13 +134,23 @@ public class MetadataDocument {
     if (xml == null) {
       setFinalDOM(null);
     } else {
-      Document dom = StaticFactories.dombuilder.newDocument();
       StreamSource s = new StreamSource(new StringReader(xml), identifier);
-      DOMResult r = new DOMResult(dom, identifier);
-      Transformer trans = StaticFactories.transFactory.newTransformer();
-      trans.setErrorListener(new LoggingErrorListener(log));
-      trans.transform(s, r);
-      setFinalDOM(dom);
+      Transformer trans = TransformerCache.acquire(null, errorListener);
+      try {
+        if (isStreamingExtraction()) {
+          final StreamingExtractor extractor = new StreamingExtractor(iconfig.root.streamingExtraction);
+          trans.transform(s, newSAXResult(extractor));
+          setExtracted(extractor);
+          xmlCache = xml;
+        } else {
+          Document dom = newDocument();
+          trans.transform(s, newBuilderResult(dom, identifier));
+          setFinalDOM(dom);
+          if (isRawXmlPassthrough()) xmlCache = xml;
+        }
+      } finally {
+        TransformerCache.release(null, trans);
+      }
     }
   }
   
@@ -123,33 +158,90 @@ public class MetadataDocument {
    * Returns XML contents as String (a cache is used).
    */
   public String getXML() throws Exception {
-    if (deleted || dom == null) return null;
+    if (deleted) return null;
     if (xmlCache != null) return xmlCache;
+    if (dom == null) return null;
     
     // convert DOM
     StringWriter xmlWriter = new StringWriter();
-    Transformer trans = StaticFactories.transFactory.newTransformer();
-    trans.setErrorListener(new LoggingErrorListener(log));
-    trans.setOutputProperty(OutputKeys.INDENT, "no");
-    trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-    trans.setOutputProperty(OutputKeys.ENCODING, StandardCharsets.UTF_16.name());
     DOMSource in = new DOMSource(dom, identifier);
     StreamResult out = new StreamResult(xmlWriter);
-    trans.transform(in, out);
+    serializeXML(in, out);
     xmlWriter.close();
     return xmlCache = xmlWriter.toString();
   }
   
+  /**
+   * Returns <code>true</code>, if the harvester property <code>rawXmlPassthrough</code> is enabled.
+   * In that case, the unparsed input is stored as XML contents (see {@link #getXML}), if it was
+   * not changed by transformation or validation.
+   */
+  protected boolean isRawXmlPassthrough() {
+    return BooleanParser.parseBoolean(iconfig.properties.getProperty("rawXmlPassthrough", "false"));
+  }
+  
+  /**
+   * Returns <code>true</code>, if filters and fields are extracted while streaming
+   * the document, without building a DOM tree. This is done if all of them are simple
+   * paths (see {@link StreamingExtractionConfig}), unless the harvester property
+   * <code>streamingExtraction</code> is disabled.
+   */
+  protected boolean isStreamingExtraction() {
+    return iconfig.root.streamingExtraction != null
+        && BooleanParser.parseBoolean(iconfig.properties.getProperty("streamingExtraction", "true"));
+  }
+  
+  /**
+   * Returns <code>true</code>, if the harvester property <code>compactDOM</code> is enabled.
+   * In that case, DOM trees are built by {@link CompactDOMBuilder}, which needs less memory
+   * than the default DOM implementation.
+   */
+  protected boolean isCompactDOM() {
+    return BooleanParser.parseBoolean(iconfig.properties.getProperty("compactDOM", "false"));
+  }
+  
+  /** Creates an empty document for a DOM tree (see {@link #isCompactDOM}). */
+  private Document newDocument() {
+    return isCompactDOM() ? CompactDOMBuilder.newDocument() : StaticFactories.dombuilder.newDocument();
+  }
+  
+  /** Returns a {@link Result}, that builds the DOM tree into the given document created by {@link #newDocument}. */
+  private Result newBuilderResult(Document dom, String systemId) {
+    if (isCompactDOM()) {
+      final SAXResult result = newSAXResult(new CompactDOMBuilder(dom));
+      result.setSystemId(systemId);
+      return result;
+    }
+    return new DOMResult(dom, systemId);
+  }
+  
   /**
    * Sets XML final (transformed) xml contents as DOM tree. Invalidates cache.
    */
   public void setFinalDOM(Document dom) {
     this.dom = dom;
+    this.extractor = null;
+    xmlCache = null;
+  }
+  
+  /**
+   * Sets the results of streaming extraction instead of a DOM tree. Invalidates cache.
+   */
+  private void setExtracted(StreamingExtractor extractor) {
+    this.dom = null;
+    this.extractor = extractor;
     xmlCache = null;
   }
   
+  private static SAXResult newSAXResult(ContentHandler handler) {
+    final SAXResult result = new SAXResult(handler);
+    if (handler instanceof LexicalHandler) result.setLexicalHandler((LexicalHandler) handler);
+    return result;
+  }
+  
   /**
-   * Returns XML contents as DOM tree.
+   * Returns XML contents as DOM tree. This is <code>null</code>, if the
+   * document was extracted while streaming (see {@link #isStreamingExtraction}).
    */
   public Document getFinalDOM() {
     return dom;
@@ -164,6 +256,16 @@ public class MetadataDocument {
     return converter;
   }
   
+  /**
+   * Returns {@code true}, if the document's source still needs to be transformed
+   * by the {@link DocumentProcessor}.
+   * 
+   * @see XMLConverter#transformLater
+   */
+  synchronized boolean hasPendingTransformation() {
+    return converter != null && converter.hasPendingTransformation();
+  }
+  
   /**
    * Marks a harvested document as deleted. A deleted document is not indexed
    * and will be explicitely deleted from index. A deleted document should not
@@ -231,44 +333,54 @@ public class MetadataDocument {
    *           if index configuration is unknown
    */
   public KeyValuePairs getKeyValuePairs() throws Exception {
-    final KeyValuePairs kv = createEmptyKeyValuePairs();
+    return getKeyValuePairs(new KeyValuePairs());
+  }
+  
+  /**
+   * Converts this instance to a Elasticsearch JSON node, filling the given
+   * empty {@link KeyValuePairs} (which may be reused for several documents).
+   * 
+   * @return the given {@link KeyValuePairs} or <code>null</code>, if doc was deleted or filtered.
+   * @throws Exception
+   *           if an exception occurs during transformation (various types of
+   *           exceptions can be thrown).
+   * @see #getKeyValuePairs()
+   */
+  public KeyValuePairs getKeyValuePairs(KeyValuePairs target) throws Exception {
+    final KeyValuePairs kv = createEmptyKeyValuePairs(target);
     if (!deleted) {
+      profiler = PipelineMetrics.forHarvester(iconfig.id).getExpressionProfiler();
       assert kv != null;
-      if (dom == null) throw new NullPointerException(
+      if (dom == null && extractor == null) throw new NullPointerException(
           "The DOM-Tree of document may not be 'null'!");
-      processXPathVariables();
-      try {
-        boolean filterAccepted = processFilters();
-        if (!filterAccepted) {
-          log.debug("Document filtered: " + identifier);
-          return null;
-        }
-        addFields(kv);
-        finalizeKeyValuePairs(kv);
-      } finally {
-        XPathResolverImpl.getInstance().unsetVariables();
+      final EvaluationContext ctx = processXPathVariables();
+      boolean filterAccepted = processFilters(ctx);
+      if (!filterAccepted) {
+        log.debug("Document filtered: " + identifier);
+        return null;
       }
+      addFields(kv, ctx);
+      finalizeKeyValuePairs(kv);
     }
     return kv;
   }
   
   /**
-   * Helper method that generates an empty {@link XContentBuilder} instance. The
+   * Helper method that fills the given empty {@link KeyValuePairs} instance. The
    * standard fields are set to the doc properties (identifier, datestamp)
    * 
-   * @return {@link XContentBuilder} or <code>null</code>, if doc was deleted.
+   * @return the given {@link KeyValuePairs} or <code>null</code>, if doc was deleted.
    * @throws Exception
    *           if an exception occurs during transformation (various types of
    *           exceptions can be thrown).
    * @throws IllegalStateException
    *           if identifier is empty.
    */
-  protected KeyValuePairs createEmptyKeyValuePairs() throws Exception {
+  protected KeyValuePairs createEmptyKeyValuePairs(KeyValuePairs kv) throws Exception {
     // make a new, empty document
     if (deleted) {
       return null; // to delete
     } else {
-      KeyValuePairs kv = new KeyValuePairs();
       kv.add(iconfig.root.fieldnameSource, iconfig.id);
       if (datestamp != null) {
         kv.add(iconfig.root.fieldnameDatestamp, ISODateFormatter.formatElasticsearch(datestamp));
@@ -293,98 +405,151 @@ public class MetadataDocument {
    *           if an exception occurs during transformation (various types of
    *           exceptions can be thrown).
    */
-  protected void addFields(KeyValuePairs kv) throws Exception {
+  protected void addFields(KeyValuePairs kv, EvaluationContext ctx) throws Exception {
+    if (extractor != null) {
+      int i = 0;
+      for (FieldConfig f : iconfig.root.fields.values()) {
+        processStreamedField(kv, f, extractor.getFieldValues(i++));
+      }
+      return;
+    }
+    final FusedFieldsConfig fused = iconfig.root.fusedFields;
+    Node fusedResult = null;
+    if (fused != null) {
+      final long start = System.nanoTime(), allocated = (profiler == null) ? 0L : profiler.allocatedBytes();
+      // the result is a single <result/> element, its children are the fields:
+      fusedResult = evaluateTemplate(ctx, fused).item(0).getFirstChild();
+      if (profiler != null) profiler.record("fields", fused, start, allocated);
+    }
     for (FieldConfig f : iconfig.root.fields.values()) {
-      if (f.datatype == FieldConfig.DataType.XHTML) {
-        addField(kv, f, evaluateTemplateAsXHTML(f));
+      final long start = System.nanoTime(), allocated = (profiler == null) ? 0L : profiler.allocatedBytes();
+      if (fused != null && fused.contains(f)) {
+        processFusedField(kv, f, fusedResult);
+        fusedResult = fusedResult.getNextSibling();
       } else {
-        boolean needDefault = (f.datatype == FieldConfig.DataType.NUMBER || f.datatype == FieldConfig.DataType.INTEGER
-            || f.datatype == FieldConfig.DataType.BOOLEAN || f.datatype == FieldConfig.DataType.DATETIME);
-        Object value = null;
-        if (f.xPathExpr != null) {
-          try {
-            // First: try to get XPath result as Nodelist if that fails (because
-            // result is #STRING): fallback
-            // TODO: Looking for a better system to detect return type of XPath
-            // :-( [slowdown by this?]
-            value = f.xPathExpr.evaluate(dom, XPathConstants.NODESET);
-          } catch (XPathExpressionException ex) {
-            // Fallback: if return type of XPath is a #STRING (for example from
-            // a substring() routine)
-            value = f.xPathExpr.evaluate(dom, XPathConstants.STRING);
-          }
-        } else if (f.xslt != null) {
-          value = evaluateTemplate(f);
-        } else {
-          throw new NullPointerException("Both XPath and template are NULL for field " + f.name);
-        }
-        
-        // interpret result
-        if (value instanceof NodeList) {
-          final NodeList nodes = (NodeList) value;
-          final int c = nodes.getLength();
-          for (int i = 0; i < c; i++) {
-            final Node nod = nodes.item(i);
-            switch (f.datatype) {
-              case XML:
-                if (nod.getNodeType() != Node.ELEMENT_NODE)
-                  continue;
-                final DOMSource in = new DOMSource(nodes.item(i));
-                final StringWriter xmlWriter = new StringWriter();
-                final StreamResult out = new StreamResult(xmlWriter);
-                final Transformer trans = StaticFactories.transFactory.newTransformer();
-                trans.setErrorListener(new LoggingErrorListener(log));
-                trans.setOutputProperty(OutputKeys.INDENT, "no");
-                trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-                trans.setOutputProperty(OutputKeys.ENCODING, StandardCharsets.UTF_16.name());
-                trans.transform(in, out);
-                xmlWriter.close();
-                addField(kv, f, xmlWriter.toString());
-                break;
-              case JSON:
-                if (nod.getNodeType() != Node.ELEMENT_NODE)
-                  continue;
-                // we need to do this, otherwise may get adjacent text nodes (e.g. for XSL docfrags):
-                nod.normalize();
-                final Object o = new XMLToKeyValuePairs(true).convertChilds(nod);
-                if (o != null) {
-                  if (log.isTraceEnabled()) log.trace("AddField: " + f.name + '=' + o);
-                  kv.add(f.name, o);
-                }
-                break;
-              default:
-                final StringBuilder sb = new StringBuilder();
-                walkNodeTexts(sb, nod, true);
-                final String val = sb.toString().trim();
-                if (!val.isEmpty()) {
-                  addField(kv, f, val);
-                  needDefault = false;
-                }
-            }
-          }
-        } else if (value instanceof String) {
+        processField(kv, f, ctx);
+      }
+      if (profiler != null) profiler.record("field", f, start, allocated);
+    }
+  }
+  
+  /**
+   * Helper method that adds the values of one field, evaluated by the
+   * stylesheet of {@link FusedFieldsConfig}, to the given {@link KeyValuePairs}.
+   */
+  private void processFusedField(KeyValuePairs kv, FieldConfig f, Node fieldResult) throws Exception {
+    boolean needDefault = needsDefault(f);
+    for (Node value = fieldResult.getFirstChild(); value != null; value = value.getNextSibling()) {
+      final String val = value.getTextContent().trim();
+      if (!val.isEmpty()) {
+        addField(kv, f, val);
+        needDefault = false;
+      }
+    }
+    if (needDefault && f.defaultValue != null) addField(kv, f,
+        f.defaultValue);
+  }
+  
+  /**
+   * Helper method that adds the values of one field, collected by
+   * {@link StreamingExtractor}, to the given {@link KeyValuePairs}.
+   */
+  private void processStreamedField(KeyValuePairs kv, FieldConfig f, List<String> values) throws Exception {
+    boolean needDefault = needsDefault(f);
+    for (String value : values) {
+      final String val = value.trim();
+      if (!val.isEmpty()) {
+        addField(kv, f, val);
+        needDefault = false;
+      }
+    }
+    if (needDefault && f.defaultValue != null) addField(kv, f,
+        f.defaultValue);
+  }
+  
+  private static boolean needsDefault(FieldConfig f) {
+    return (f.datatype == FieldConfig.DataType.NUMBER || f.datatype == FieldConfig.DataType.INTEGER
+        || f.datatype == FieldConfig.DataType.BOOLEAN || f.datatype == FieldConfig.DataType.DATETIME);
+  }
+  
+  /**
+   * Helper method that executes the XPath/Template of one field and adds the
+   * converted results to the given {@link KeyValuePairs}.
+   */
+  private void processField(KeyValuePairs kv, FieldConfig f, EvaluationContext ctx) throws Exception {
+    if (f.datatype == FieldConfig.DataType.XHTML) {
+      addField(kv, f, evaluateTemplateAsXHTML(ctx, f));
+    } else {
+      boolean needDefault = needsDefault(f);
+      Object value = null;
+      if (f.xPathExpr != null) {
+        value = evaluateXPath(ctx, f);
+      } else if (f.xslt != null) {
+        value = evaluateTemplate(ctx, f);
+      } else {
+        throw new NullPointerException("Both XPath and template are NULL for field " + f.name);
+      }
+      
+      // interpret result
+      if (value instanceof NodeList) {
+        final NodeList nodes = (NodeList) value;
+        final int c = nodes.getLength();
+        for (int i = 0; i < c; i++) {
+          final Node nod = nodes.item(i);
           switch (f.datatype) {
             case XML:
-              throw new UnsupportedOperationException(
-                  "Fields with datatype XML may only return NODESETs on evaluation!");
+              if (nod.getNodeType() != Node.ELEMENT_NODE)
+                continue;
+              final DOMSource in = new DOMSource(nodes.item(i));
+              final StringWriter xmlWriter = new StringWriter();
+              final StreamResult out = new StreamResult(xmlWriter);
+              serializeXML(in, out);
+              xmlWriter.close();
+              addField(kv, f, xmlWriter.toString());
+              break;
             case JSON:
-              throw new UnsupportedOperationException(
-                  "Fields with datatype JSON may only return NODESETs on evaluation!");
+              if (nod.getNodeType() != Node.ELEMENT_NODE)
+                continue;
+              // we need to do this, otherwise may get adjacent text nodes (e.g. for XSL docfrags):
+              nod.normalize();
+              final XMLToXContent o = XMLToXContent.of((Element) nod);
+              if (o != null) {
+                if (log.isTraceEnabled()) log.trace("AddField: " + f.name + '=' + o);
+                kv.add(f.name, o);
+              }
+              break;
             default:
-              String s = (String) value;
-              s = s.trim();
-              if (!s.isEmpty()) {
-                addField(kv, f, s);
+              final StringBuilder sb = new StringBuilder();
+              walkNodeTexts(sb, nod, true);
+              final String val = sb.toString().trim();
+              if (!val.isEmpty()) {
+                addField(kv, f, val);
                 needDefault = false;
               }
           }
-        } else {
-          throw new UnsupportedOperationException("Invalid Java data type of expression result: " + value.getClass().getName());
         }
-        
-        if (needDefault && f.defaultValue != null) addField(kv, f,
-            f.defaultValue);
+      } else if (value instanceof String) {
+        switch (f.datatype) {
+          case XML:
+            throw new UnsupportedOperationException(
+                "Fields with datatype XML may only return NODESETs on evaluation!");
+          case JSON:
+            throw new UnsupportedOperationException(
+                "Fields with datatype JSON may only return NODESETs on evaluation!");
+          default:
+            String s = (String) value;
+            s = s.trim();
+            if (!s.isEmpty()) {
+              addField(kv, f, s);
+              needDefault = false;
+            }
+        }
+      } else {
+        throw new UnsupportedOperationException("Invalid Java data type of expression result: " + value.getClass().getName());
       }
+      
+      if (needDefault && f.defaultValue != null) addField(kv, f,
+          f.defaultValue);
     }
   }
     
@@ -397,12 +562,22 @@ public class MetadataDocument {
    *           if an exception occurs during transformation (various types of
    *           exceptions can be thrown).
    */
-  protected boolean processFilters() throws Exception {
+  protected boolean processFilters(EvaluationContext ctx) throws Exception {
     boolean accept = (iconfig.root.filterDefault == FilterConfig.FilterType.ACCEPT);
+    int i = 0;
     for (FilterConfig f : iconfig.root.filters) {
       if (f.xPathExpr == null) throw new NullPointerException(
           "Filters need to contain a XPath expression, which is NULL!");
-      Boolean b = (Boolean) f.xPathExpr.evaluate(dom, XPathConstants.BOOLEAN);
+      final Boolean b;
+      if (extractor != null) {
+        b = extractor.isFilterMatched(i++);
+      } else if (profiler == null) {
+        b = (Boolean) ctx.evaluate(f.xPathExpr, XPathConstants.BOOLEAN);
+      } else {
+        final long start = System.nanoTime(), allocated = profiler.allocatedBytes();
+        b = (Boolean) ctx.evaluate(f.xPathExpr, XPathConstants.BOOLEAN);
+        profiler.record("filter", f, start, allocated);
+      }
       if (b == null) throw new XPathExpressionException(
           "The filter XPath did not return a valid BOOLEAN value!");
       if (b && log.isTraceEnabled()) log.trace("FilterMatch: " + f);
@@ -435,51 +610,67 @@ public class MetadataDocument {
   
   /**
    * Helper method to process all user supplied variables for the
-   * XPath/Templates evaluation. The variables are stored in thread local
-   * storage.
+   * XPath/Templates evaluation. The variables are stored in a new
+   * {@link EvaluationContext}, which is passed to all evaluations of this document.
    * 
    * @throws Exception
    *           if an exception occurs during transformation (various types of
    *           exceptions can be thrown).
    */
-  protected final void processXPathVariables() throws Exception {
-    // put map of variables in thread local storage
-    boolean needCleanup = true;
-    Map<QName,Object> data = XPathResolverImpl.getInstance().initVariables();
-    try {
-      addSystemVariables(data);
-      
-      // variables in config
+  protected final EvaluationContext processXPathVariables() throws Exception {
+    final EvaluationContext ctx = new EvaluationContext(dom);
+    final Map<QName,Object> data = ctx.getVariables();
+    addSystemVariables(data);
+    
+    // variables in config (not needed by streaming extraction, simple paths cannot refer to them)
+    if (extractor == null) {
       for (VariableConfig f : iconfig.root.xPathVariables) {
-        Object value = null;
-        if (f.xPathExpr != null) {
-          try {
-            // First: try to get XPath result as Nodelist if that fails (because
-            // result is #STRING): fallback
-            // TODO: Looking for a better system to detect return type of XPath
-            // :-( [slowdown by this?]
-            value = f.xPathExpr.evaluate(dom, XPathConstants.NODESET);
-          } catch (XPathExpressionException ex) {
-            // Fallback: if return type of XPath is a #STRING (for example from
-            // a substring() routine)
-            value = f.xPathExpr.evaluate(dom, XPathConstants.STRING);
-          }
-        } else if (f.xslt != null) {
-          value = evaluateTemplate(f);
-        } else throw new NullPointerException(
-            "Both XPath and template are NULL for variable " + f.name);
-        
+        final Object value;
+        if (profiler == null) {
+          value = evaluateVariable(ctx, f);
+        } else {
+          final long start = System.nanoTime(), allocated = profiler.allocatedBytes();
+          value = evaluateVariable(ctx, f);
+          profiler.record("variable", f, start, allocated);
+        }
+      
         if (value != null) {
           if (log.isTraceEnabled()) log.trace("Variable: " + f.name + "="
               + value);
           data.put(f.name, value);
         }
       }
-      
-      needCleanup = false;
-    } finally {
-      // we need to cleanup on any Exception to keep config in consistent state
-      if (needCleanup) XPathResolverImpl.getInstance().unsetVariables();
+    }
+    return ctx;
+  }
+  
+  private Object evaluateVariable(EvaluationContext ctx, VariableConfig f) throws Exception {
+    if (f.xPathExpr != null) {
+      return evaluateXPath(ctx, f);
+    } else if (f.xslt != null) {
+      return evaluateTemplate(ctx, f);
+    } else throw new NullPointerException(
+        "Both XPath and template are NULL for variable " + f.name);
+  }
+  
+  /**
+   * Helper method to evaluate a XPath expression. This method is called by variables
+   * and fields. Node-sets are returned as {@link NodeList}, all other results as String.
+   * <P>
+   * For internal use only!
+   */
+  protected Object evaluateXPath(EvaluationContext ctx, ExpressionConfig expr) throws XPathExpressionException {
+    if (XPathConstants.NODESET.equals(expr.xPathResultType)) {
+      return ctx.evaluate(expr.xPathExpr, XPathConstants.NODESET);
+    } else if (expr.xPathResultType != null) {
+      return ctx.evaluate(expr.xPathExpr, XPathConstants.STRING);
+    }
+    // the type is only known on evaluation (e.g., a variable): try to get XPath result
+    // as NodeList, if that fails (because result is a STRING), fallback:
+    try {
+      return ctx.evaluate(expr.xPathExpr, XPathConstants.NODESET);
+    } catch (XPathExpressionException ex) {
+      return ctx.evaluate(expr.xPathExpr, XPathConstants.STRING);
     }
   }
   
@@ -489,22 +680,20 @@ public class MetadataDocument {
    * <P>
    * For internal use only!
    */
-  protected NodeList evaluateTemplate(ExpressionConfig expr)
+  protected NodeList evaluateTemplate(EvaluationContext ctx, ExpressionConfig expr)
       throws TransformerException {
-    Transformer trans = expr.xslt.newTransformer();
-    trans.setErrorListener(new LoggingErrorListener(log));
-    
-    // set variables in transformer
-    Map<QName,Object> vars = XPathResolverImpl.getInstance()
-        .getCurrentVariableMap();
-    for (Map.Entry<QName,Object> entry : vars.entrySet()) {
-      trans.setParameter(entry.getKey().toString(), entry.getValue());
+    Transformer trans = TransformerCache.acquire(expr.xslt, errorListener);
+    try {
+      // set variables in transformer
+      ctx.setParameters(trans);
+      
+      // transform
+      DocumentFragment df = dom.createDocumentFragment();
+      trans.transform(new DOMSource(dom, identifier), new DOMResult(df));
+      return df.getChildNodes();
+    } finally {
+      TransformerCache.release(expr.xslt, trans);
     }
-    
-    // transform
-    DocumentFragment df = dom.createDocumentFragment();
-    trans.transform(new DOMSource(dom, identifier), new DOMResult(df));
-    return df.getChildNodes();
   }
   
   /**
@@ -513,31 +702,52 @@ public class MetadataDocument {
    * <P>
    * For internal use only!
    */
-  protected String evaluateTemplateAsXHTML(FieldConfig expr)
+  protected String evaluateTemplateAsXHTML(EvaluationContext ctx, FieldConfig expr)
       throws TransformerException, java.io.IOException {
     if (expr.datatype != FieldConfig.DataType.XHTML) throw new IllegalArgumentException(
         "Datatype must be XHTML for evaluateTemplateAsXHTML()");
-    Transformer trans = expr.xslt.newTransformer();
-    trans.setErrorListener(new LoggingErrorListener(log));
-    trans.setOutputProperty(OutputKeys.METHOD, "xml");
-    trans.setOutputProperty(OutputKeys.DOCTYPE_PUBLIC,
-        "-//W3C//DTD XHTML 1.0 Transitional//EN");
+    Transformer trans = TransformerCache.acquire(expr.xslt, errorListener);
+    try {
+      trans.setOutputProperty(OutputKeys.METHOD, "xml");
+      trans.setOutputProperty(OutputKeys.DOCTYPE_PUBLIC,
+          "-//W3C//DTD XHTML 1.0 Transitional//EN");
+      trans.setOutputProperty(OutputKeys.INDENT, "no");
+      trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+      trans.setOutputProperty(OutputKeys.ENCODING, StandardCharsets.UTF_16.name());
+      
+      // set variables in transformer
+      ctx.setParameters(trans);
+      
+      StringWriter xmlWriter = new StringWriter();
+      StreamResult out = new StreamResult(xmlWriter);
+      trans.transform(new DOMSource(dom, identifier), out);
+      xmlWriter.close();
+      return xmlWriter.toString();
+    } finally {
+      TransformerCache.release(expr.xslt, trans);
+    }
+  }
+  
+  /**
+   * Helper method to serialize XML without declaration and indentation
+   * (using a cached identity transformer).
+   * <P>
+   * For internal use only!
+   */
+  protected void serializeXML(Source in, StreamResult out) throws TransformerException {
+    final Transformer trans = TransformerCache.acquire(null, errorListener);
+    try {
+      setSerializationProperties(trans);
+      trans.transform(in, out);
+    } finally {
+      TransformerCache.release(null, trans);
+    }
+  }
+  
+  private static void setSerializationProperties(Transformer trans) {
     trans.setOutputProperty(OutputKeys.INDENT, "no");
     trans.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
     trans.setOutputProperty(OutputKeys.ENCODING, StandardCharsets.UTF_16.name());
-    
-    // set variables in transformer
-    Map<QName,Object> vars = XPathResolverImpl.getInstance()
-        .getCurrentVariableMap();
-    for (Map.Entry<QName,Object> entry : vars.entrySet()) {
-      trans.setParameter(entry.getKey().toString(), entry.getValue());
-    }
-    
-    StringWriter xmlWriter = new StringWriter();
-    StreamResult out = new StreamResult(xmlWriter);
-    trans.transform(new DOMSource(dom, identifier), out);
-    xmlWriter.close();
-    return xmlWriter.toString();
   }
   
   /**
@@ -627,8 +837,10 @@ public class MetadataDocument {
   protected final HarvesterConfig iconfig;
   
   private Document dom = null;
+  private StreamingExtractor extractor = null;
   private String xmlCache = null;
   private XMLConverter converter = null;
+  private ExpressionProfiler profiler = null;
   
   /**
    * This class handles the transformation from any source to the "official"
@@ -638,9 +850,14 @@ public class MetadataDocument {
    */
   public class XMLConverter {
     
-    private final boolean validate;
+    private final boolean validate, streamingValidation, captureInput, rawXmlPassthrough, streaming;
+    private final PipelineMetrics metrics = PipelineMetrics.forHarvester(iconfig.id);
+    // the memory of documents is only measured, if expressions are profiled:
+    private final ExpressionProfiler memoryProfiler = metrics.getExpressionProfiler();
+    private final ValidationErrorHandler validationErrorHandler = new ValidationErrorHandler();
     
     XMLConverter() {
+      captureInput = BooleanParser.parseBoolean(iconfig.properties.getProperty("inputDigestCache", "false"));
       String v = iconfig.properties.getProperty("validate");
       if (iconfig.root.schema == null) {
         if (v != null) throw new IllegalStateException(
@@ -650,6 +867,11 @@ public class MetadataDocument {
         if (v == null) validate = true; // validate by default
         else validate = BooleanParser.parseBoolean(v);
       }
+      streamingValidation = validate && BooleanParser.parseBoolean(iconfig.properties.getProperty("streamingValidation", "true"));
+      // the raw input is only the final document, if it is not transformed or augmented by validation:
+      rawXmlPassthrough = isRawXmlPassthrough() && iconfig.xslt == null
+          && !(validate && iconfig.root.validateWithAugmentation);
+      streaming = isStreamingExtraction();
     }
     
     private DOMResult validate(final DOMSource ds, final boolean wasTransformed)
@@ -659,41 +881,65 @@ public class MetadataDocument {
       } else {
         if (log.isDebugEnabled()) log.debug("Validating '" + ds.getSystemId()
             + "'...");
-        Validator val = iconfig.root.schema.newValidator();
-        val.setErrorHandler(new ErrorHandler() {
-          @Override
-          public void warning(SAXParseException e) throws SAXException {
-            log.warn("Validation warning in "
-                + (wasTransformed ? "XSL transformed " : "") + "document '"
-                + ds.getSystemId() + "': " + e.getMessage());
-          }
-          
-          @Override
-          public void error(SAXParseException e) throws SAXException {
-            String msg = "Validation error in "
-                + (wasTransformed ? "XSL transformed " : "") + "document '"
-                + ds.getSystemId() + "': " + e.getMessage();
-            if (iconfig.root.haltOnSchemaError) throw new SAXException(msg);
-            log.error(msg);
-          }
-          
-          @Override
-          public void fatalError(SAXParseException e) throws SAXException {
-            throw new SAXException("Fatal validation error in "
-                + (wasTransformed ? "XSL transformed " : "") + "document '"
-                + ds.getSystemId() + "': " + e.getMessage());
-          }
-        });
-        DOMResult dr = (iconfig.root.validateWithAugmentation) ? emptyDOMResult(ds
-            .getSystemId()) : null;
-        val.validate(ds, dr);
-        return (dr == null) ? DOMSource2Result(ds) : dr;
+        final Validator val = ValidatorCache.acquireValidator(iconfig.root.schema);
+        try {
+          val.setErrorHandler(validationErrorHandler.reset(ds.getSystemId(), wasTransformed));
+          DOMResult dr = (iconfig.root.validateWithAugmentation) ? emptyDOMResult(ds
+              .getSystemId()) : null;
+          final long start = System.nanoTime();
+          val.validate(ds, dr);
+          metrics.validate.record(System.nanoTime() - start);
+          return (dr == null) ? DOMSource2Result(ds) : dr;
+        } finally {
+          ValidatorCache.releaseValidator(iconfig.root.schema, val);
+        }
+      }
+    }
+    
+    /**
+     * Logs validation errors or throws them as {@link SAXException} (if configured).
+     * The converter uses one instance, which is reset before each validation.
+     */
+    private final class ValidationErrorHandler implements ErrorHandler {
+      private String systemId = null;
+      private boolean wasTransformed = false;
+      /** The last exception thrown, as parsers may wrap it. */
+      SAXException exception = null;
+      
+      ValidationErrorHandler reset(String systemId, boolean wasTransformed) {
+        this.systemId = systemId;
+        this.wasTransformed = wasTransformed;
+        this.exception = null;
+        return this;
+      }
+      
+      @Override
+      public void warning(SAXParseException e) throws SAXException {
+        log.warn("Validation warning in "
+            + (wasTransformed ? "XSL transformed " : "") + "document '"
+            + systemId + "': " + e.getMessage());
+      }
+      
+      @Override
+      public void error(SAXParseException e) throws SAXException {
+        String msg = "Validation error in "
+            + (wasTransformed ? "XSL transformed " : "") + "document '"
+            + systemId + "': " + e.getMessage();
+        if (iconfig.root.haltOnSchemaError) throw exception = new SAXException(msg);
+        log.error(msg);
+      }
+      
+      @Override
+      public void fatalError(SAXParseException e) throws SAXException {
+        throw exception = new SAXException("Fatal validation error in "
+            + (wasTransformed ? "XSL transformed " : "") + "document '"
+            + systemId + "': " + e.getMessage());
       }
     }
     
     private void setTransformerProperties(final Transformer trans)
         throws TransformerException {
-      trans.setErrorListener(new LoggingErrorListener(log));
+      trans.setErrorListener(errorListener);
       // create a Map view on the transformer properties
       final Map<QName,Object> paramMap = new AbstractMap<QName,Object>() {
         @Override
@@ -722,62 +968,475 @@ public class MetadataDocument {
     }
     
     private final DOMResult emptyDOMResult(String systemId) {
-      return new DOMResult(StaticFactories.dombuilder.newDocument(), systemId);
+      return new DOMResult(newDocument(), systemId);
+    }
+    
+    /** Returns the {@link Result}, that builds the DOM tree into the node of the given (empty) result. */
+    private final Result builderResult(DOMResult dr) {
+      return newBuilderResult((Document) dr.getNode(), dr.getSystemId());
+    }
+    
+    /**
+     * Records the memory allocated by the current thread since it had
+     * allocated {@code startAllocatedBytes} as memory of the document.
+     */
+    private void recordDocumentMemory(long startAllocatedBytes) {
+      if (memoryProfiler != null && memoryProfiler.isAllocationMeasurementSupported()) {
+        metrics.documentMemory.record(memoryProfiler.allocatedBytes() - startAllocatedBytes);
+      }
+    }
+    
+    /**
+     * Transforms a Source to a DOM w/wo transformation. If a parse error
+     * occurs, the document is handled according to the given {@link DocumentErrorAction}.
+     * 
+     * @return <code>false</code>, if the document could not be parsed and should be ignored.
+     */
+    public boolean transform(Source s, DocumentErrorAction parseErrorAction) throws Exception {
+      Exception e = null;
+      String errstr = null;
+      try {
+        transform(s);
+      } catch (SAXParseException saxe) {
+        e = saxe;
+        errstr = "Harvesting object '" + identifier
+            + "' failed due to SAX parse error in \"" + saxe.getSystemId()
+            + "\", line " + saxe.getLineNumber() + ", column "
+            + saxe.getColumnNumber();
+      } catch (TransformerException transfe) {
+        e = transfe;
+        String loc = transfe.getLocationAsString();
+        errstr = "Harvesting object '" + identifier
+            + "' failed due to transformer/parse error"
+            + ((loc != null) ? (" at " + loc) : "");
+      }
+      
+      // handle exception
+      if (e != null && errstr != null) switch (parseErrorAction) {
+        case IGNOREDOCUMENT:
+          log.error(errstr + " (object ignored):", e);
+          return false;
+        case DELETEDOCUMENT:
+          log.error(errstr + " (object marked deleted):", e);
+          setFinalDOM(null);
+          setDeleted(true);
+          break; // continue normal
+        default:
+          throw e;
+      }
+      return true;
     }
     
-    // Transforms a Source to a DOM w/wo transformation
+    /**
+     * Stores the given Source, so {@link DocumentProcessor} can transform it later in
+     * one of its worker threads (see {@link #transform(Source,DocumentErrorAction)}).
+     * Byte and character streams are read completely, so the caller may close them
+     * after this method returns. Sources only consisting of a system ID (e.g., a file name)
+     * are opened later by the worker thread. Unknown types of Sources are transformed
+     * immediately.
+     * 
+     * @return <code>false</code>, if the Source was transformed immediately, but could
+     * not be parsed and the document should be ignored.
+     */
+    public boolean transformLater(Source s, DocumentErrorAction parseErrorAction) throws Exception {
+      final Source detached = detachSource(s, null, false);
+      if (detached == null) {
+        // we cannot defer this one, so transform it now:
+        return transform(s, parseErrorAction);
+      }
+      this.pendingSource = detached;
+      this.pendingErrorAction = parseErrorAction;
+      return true;
+    }
+    
+    /** Returns {@code true}, if {@link #transformLater} was called and the work is not yet done. */
+    boolean hasPendingTransformation() {
+      return pendingSource != null;
+    }
+    
+    /**
+     * Executes the transformation deferred by {@link #transformLater}.
+     * 
+     * @return <code>false</code>, if the document could not be parsed and should be ignored.
+     */
+    boolean finishPendingTransformation() throws Exception {
+      final Source s = pendingSource;
+      if (s == null) {
+        return true;
+      }
+      pendingSource = null;
+      return transform(s, pendingErrorAction);
+    }
+    
+    /**
+     * Reads the given Source completely into memory (like {@link #transformLater}) and computes
+     * a digest of its raw contents, which is returned by {@link #getInputDigest} afterwards.
+     * Sources only consisting of a system ID are read from there.
+     * 
+     * @return the Source to use instead of the given one, or <code>null</code>, if
+     * the raw contents of the Source are not available (e.g., DOM trees).
+     */
+    public Source digestInput(Source s) throws IOException {
+      final MessageDigest md = InputDigestCache.newDigest();
+      final Source detached = detachSource(s, md, true);
+      inputDigest = (detached == null) ? null : md.digest();
+      return detached;
+    }
+    
+    /**
+     * Returns the digest of the raw input, if it was computed by {@link #digestInput}
+     * or while getting the document from a SAX stream (if the harvester property
+     * <code>inputDigestCache</code> is enabled), otherwise <code>null</code>.
+     */
+    public byte[] getInputDigest() {
+      return inputDigest;
+    }
+    
+    private Source detachSource(Source s, MessageDigest md, boolean readSystemId) throws IOException {
+      if (s instanceof DOMSource) {
+        return (md == null) ? s : null;
+      } else if (s instanceof StreamSource) {
+        final StreamSource ss = (StreamSource) s;
+        final StreamSource ns;
+        if (ss.getInputStream() != null) {
+          ns = new StreamSource(new ByteArrayInputStream(readFully(ss.getInputStream(), md)));
+        } else if (ss.getReader() != null) {
+          ns = new StreamSource(new StringReader(readFully(ss.getReader(), md)));
+        } else if (readSystemId && ss.getSystemId() != null) {
+          ns = new StreamSource(new ByteArrayInputStream(readFully(ss.getSystemId(), md)));
+        } else {
+          return ss; // only a system ID: the worker opens it
+        }
+        ns.setSystemId(ss.getSystemId());
+        ns.setPublicId(ss.getPublicId());
+        return ns;
+      } else if (s instanceof SAXSource) {
+        final SAXSource ss = (SAXSource) s;
+        final InputSource is = ss.getInputSource();
+        if (is == null) {
+          return null;
+        }
+        final InputSource nis;
+        if (is.getByteStream() != null) {
+          nis = new InputSource(new ByteArrayInputStream(readFully(is.getByteStream(), md)));
+          nis.setEncoding(is.getEncoding());
+        } else if (is.getCharacterStream() != null) {
+          nis = new InputSource(new StringReader(readFully(is.getCharacterStream(), md)));
+        } else if (readSystemId && is.getSystemId() != null) {
+          nis = new InputSource(new ByteArrayInputStream(readFully(is.getSystemId(), md)));
+          nis.setEncoding(is.getEncoding());
+        } else if (!readSystemId) {
+          nis = new InputSource();
+        } else {
+          return null;
+        }
+        nis.setSystemId(is.getSystemId());
+        nis.setPublicId(is.getPublicId());
+        return new SAXSource(ss.getXMLReader(), nis);
+      }
+      return null;
+    }
+    
+    /**
+     * Returns the unparsed contents of the given Source (as returned by {@link #detachSource}),
+     * if it can be stored as the final document (see {@link RawXMLDecoder}), otherwise <code>null</code>.
+     */
+    private String getRawXML(Source s) throws IOException {
+      final InputStream in;
+      final Reader r;
+      String encoding = null;
+      if (s instanceof StreamSource) {
+        in = ((StreamSource) s).getInputStream();
+        r = ((StreamSource) s).getReader();
+      } else if (s instanceof SAXSource && ((SAXSource) s).getXMLReader() == null) {
+        // a custom XMLReader may parse something else than XML (e.g., HTML)
+        final InputSource is = ((SAXSource) s).getInputSource();
+        in = is.getByteStream();
+        r = is.getCharacterStream();
+        encoding = is.getEncoding();
+      } else {
+        return null;
+      }
+      if (in instanceof ByteArrayInputStream) {
+        final byte[] bytes = in.readAllBytes();
+        in.reset();
+        return RawXMLDecoder.decode(bytes, encoding);
+      } else if (r instanceof StringReader) {
+        final String xml = readFully(r, null);
+        r.reset();
+        return RawXMLDecoder.strip(xml);
+      }
+      return null;
+    }
+    
+    private byte[] readFully(InputStream in, MessageDigest md) throws IOException {
+      final byte[] bytes = in.readAllBytes();
+      if (md != null) md.update(bytes);
+      return bytes;
+    }
+    
+    private byte[] readFully(String systemId, MessageDigest md) throws IOException {
+      try (InputStream in = new URL(systemId).openStream()) {
+        return readFully(in, md);
+      }
+    }
+    
+    private String readFully(Reader in, MessageDigest md) throws IOException {
+      final StringWriter w = new StringWriter();
+      in.transferTo(w);
+      final String s = w.toString();
+      if (md != null) md.update(s.getBytes(StandardCharsets.UTF_8));
+      return s;
+    }
+    
+    private Source pendingSource = null;
+    private DocumentErrorAction pendingErrorAction = null;
+    private byte[] inputDigest = null;
+    
+    /** Transforms a Source to a DOM w/wo transformation. */
     public void transform(Source s) throws TransformerException, SAXException,
         IOException {
+      String rawXML = null;
+      if (rawXmlPassthrough && !(s instanceof DOMSource)) {
+        final Source detached = detachSource(s, null, true);
+        if (detached != null) {
+          s = detached;
+          rawXML = getRawXML(s);
+        }
+      }
+      if (streaming && !(s instanceof DOMSource)) {
+        transformStreaming(s, rawXML);
+        return;
+      }
       DOMResult dr;
+      boolean validated = false, built = false;
+      final long allocated = (memoryProfiler == null) ? 0L : memoryProfiler.allocatedBytes();
       if (iconfig.xslt == null && s instanceof DOMSource) {
         dr = DOMSource2Result((DOMSource) s);
         dr.setSystemId(identifier);
       } else {
         if (log.isDebugEnabled()) log.debug("XSL-Transforming '"
             + s.getSystemId() + "' to '" + identifier + "'...");
-        Transformer trans = (iconfig.xslt == null) ? StaticFactories.transFactory
-            .newTransformer() : iconfig.xslt.newTransformer();
-        setTransformerProperties(trans);
-        dr = emptyDOMResult(identifier);
-        trans.transform(s, dr);
+        final Transformer trans = TransformerCache.acquire(iconfig.xslt, errorListener);
+        try {
+          setTransformerProperties(trans);
+          dr = emptyDOMResult(identifier);
+          final long start = System.nanoTime();
+          trans.transform(s, streamingValidation ? startValidation(dr) : builderResult(dr));
+          metrics.transform.record(System.nanoTime() - start);
+          validated = streamingValidation;
+          built = true;
+        } catch (TransformerException te) {
+          // validation errors are no parse errors:
+          if (streamingValidation && validationErrorHandler.exception != null) {
+            throw validationErrorHandler.exception;
+          }
+          throw te;
+        } finally {
+          TransformerCache.release(iconfig.xslt, trans);
+          finishValidation();
+        }
       }
-      Document dom = (Document) (validate(
-          DOMResult2Source(dr), iconfig.xslt != null).getNode());
+      if (!validated) dr = validate(DOMResult2Source(dr), iconfig.xslt != null);
+      Document dom = (Document) dr.getNode();
       dom.normalize();
       setFinalDOM(dom);
+      if (built) recordDocumentMemory(allocated);
+      if (rawXML != null) {
+        // the input is the final document, so it does not need to be serialized again:
+        xmlCache = rawXML;
+      }
+    }
+    
+    /** Transforms a Source w/wo transformation and extracts the fields while streaming. */
+    private void transformStreaming(Source s, String rawXML) throws TransformerException, SAXException {
+      if (log.isDebugEnabled()) log.debug("Streaming '"
+          + s.getSystemId() + "' to '" + identifier + "'...");
+      final SAXResult result = startStreaming(rawXML == null);
+      final Transformer trans = TransformerCache.acquire(iconfig.xslt, errorListener);
+      try {
+        setTransformerProperties(trans);
+        final long start = System.nanoTime();
+        trans.transform(s, result);
+        metrics.transform.record(System.nanoTime() - start);
+        finishStreaming(rawXML);
+      } catch (TransformerException te) {
+        // validation errors are no parse errors:
+        if (validate && validationErrorHandler.exception != null) {
+          throw validationErrorHandler.exception;
+        }
+        throw te;
+      } finally {
+        TransformerCache.release(iconfig.xslt, trans);
+        streamingExtractor = null;
+        serializedXML = null;
+        finishValidation();
+      }
+    }
+    
+    // streaming part (the chain of handlers: [validator], extractor, [validator, serializer])
+    private StreamingExtractor streamingExtractor = null;
+    private StringWriter serializedXML = null;
+    // the validator while streaming (taken from ValidatorCache):
+    private ValidatorHandler validatorHandler = null;
+    
+    private ValidatorHandler startValidatorHandler() {
+      validatorHandler = ValidatorCache.acquireValidatorHandler(iconfig.root.schema);
+      validatorHandler.setErrorHandler(validationErrorHandler.reset(identifier, iconfig.xslt != null));
+      return validatorHandler;
+    }
+    
+    private void finishValidation() {
+      if (validatorHandler != null) {
+        ValidatorCache.releaseValidatorHandler(iconfig.root.schema, validatorHandler);
+        validatorHandler = null;
+      }
+    }
+    
+    /**
+     * Creates the chain of handlers, that validates the document while the DOM tree
+     * is built into the given result (see harvester property <code>streamingValidation</code>),
+     * and returns its head. If validation augments the document, the validator passes
+     * the events to the DOM builder, otherwise both get the same events. Lexical events
+     * bypass the validator.
+     */
+    private SAXResult startValidation(DOMResult dr) throws TransformerException {
+      final ContentHandler builder;
+      final LexicalHandler lexicalHandler;
+      if (isCompactDOM()) {
+        final CompactDOMBuilder compactBuilder = new CompactDOMBuilder((Document) dr.getNode());
+        builder = compactBuilder;
+        lexicalHandler = compactBuilder;
+      } else {
+        final TransformerHandler handler = StaticFactories.transFactory.newTransformerHandler();
+        handler.setResult(dr);
+        builder = handler;
+        lexicalHandler = handler;
+      }
+      final ValidatorHandler validator = startValidatorHandler();
+      final SAXResult result;
+      if (iconfig.root.validateWithAugmentation) {
+        validator.setContentHandler(builder);
+        result = new SAXResult(validator);
+      } else {
+        result = new SAXResult(new TeeContentHandler(validator, builder));
+      }
+      result.setLexicalHandler(lexicalHandler);
+      return result;
+    }
+    
+    /**
+     * Creates the chain of handlers for extraction while streaming and returns its head.
+     * If validation augments the document, the validator is the head (lexical events
+     * bypass it), otherwise it gets the events from the extractor (like the serializer,
+     * if enabled).
+     */
+    private SAXResult startStreaming(boolean serialize) throws TransformerException {
+      final List<ContentHandler> handlers = new ArrayList<>(2);
+      ValidatorHandler validator = null;
+      if (validate) {
+        validator = startValidatorHandler();
+        if (!iconfig.root.validateWithAugmentation) handlers.add(validator);
+      }
+      if (serialize) {
+        final TransformerHandler serializer = StaticFactories.transFactory.newTransformerHandler();
+        setSerializationProperties(serializer.getTransformer());
+        serializer.setResult(new StreamResult(serializedXML = new StringWriter()));
+        handlers.add(serializer);
+      }
+      streamingExtractor = new StreamingExtractor(iconfig.root.streamingExtraction, handlers.toArray(new ContentHandler[0]));
+      final SAXResult result = newSAXResult(streamingExtractor);
+      if (validator != null && iconfig.root.validateWithAugmentation) {
+        validator.setContentHandler(streamingExtractor);
+        result.setHandler(validator);
+      }
+      return result;
+    }
+    
+    private void finishStreaming(String rawXML) {
+      setExtracted(streamingExtractor);
+      xmlCache = (rawXML == null) ? serializedXML.toString() : rawXML;
     }
     
     // ContentHandler part (gets events and converts it to DOM w/wo
     // transformation)
     private DOMResult dr = null;
+    private ByteArrayOutputStream capturedInput = null;
+    // memory allocated before the DOM tree was built (only recorded, if the same thread finishes it):
+    private long startAllocatedBytes = 0L;
+    private Thread buildingThread = null;
     
+    /**
+     * Returns a ContentHandler that converts the SAX events to a DOM w/wo transformation.
+     * If the harvester property <code>inputDigestCache</code> is enabled, the events are
+     * only serialized to memory, and {@link #finishTransformation} defers the
+     * transformation (like {@link #transformLater}), so the document can be skipped
+     * if its digest did not change.
+     */
     public ContentHandler getTransformContentHandler()
         throws TransformerException {
-      if (dr != null) throw new IllegalStateException(
+      if (dr != null || capturedInput != null || streamingExtractor != null) throw new IllegalStateException(
           "XMLConverter is currently convertig a SAX document, you cannot get a new ContentHandler!");
       
+      if (captureInput) {
+        final TransformerHandler handler = StaticFactories.transFactory.newTransformerHandler();
+        capturedInput = new ByteArrayOutputStream();
+        handler.setResult(new StreamResult(capturedInput));
+        return handler;
+      }
+      
       if (iconfig.xslt != null && log.isDebugEnabled()) log
           .debug("XSL-Transforming '" + identifier + "'...");
       
+      // TransformerHandlers cannot be reused after endDocument(), so they are not cached:
       TransformerHandler handler = (iconfig.xslt == null) ? StaticFactories.transFactory
-          .newTransformerHandler() : StaticFactories.transFactory
+          .newTransformerHandler() : StaticFactories
           .newTransformerHandler(iconfig.xslt);
       setTransformerProperties(handler.getTransformer());
-      dr = emptyDOMResult(identifier);
-      handler.setResult(dr);
+      if (streaming) {
+        handler.setResult(startStreaming(true));
+      } else {
+        startAllocatedBytes = (memoryProfiler == null) ? 0L : memoryProfiler.allocatedBytes();
+        buildingThread = Thread.currentThread();
+        dr = emptyDOMResult(identifier);
+        handler.setResult(streamingValidation ? startValidation(dr) : builderResult(dr));
+      }
       return handler;
     }
     
     public void finishTransformation() throws TransformerException,
         SAXException, IOException {
+      if (capturedInput != null) {
+        final byte[] bytes = capturedInput.toByteArray();
+        capturedInput = null;
+        inputDigest = InputDigestCache.newDigest().digest(bytes);
+        // a serialized SAX stream is well-formed, so a parse error cannot occur:
+        pendingSource = new StreamSource(new ByteArrayInputStream(bytes), identifier);
+        pendingErrorAction = DocumentErrorAction.STOP;
+        return;
+      }
+      if (streamingExtractor != null) {
+        finishStreaming(null);
+        streamingExtractor = null;
+        serializedXML = null;
+        finishValidation();
+        return;
+      }
       if (dr == null) throw new IllegalStateException(
           "XMLConverter is not convertig a SAX document, you cannot get a result DOM tree!");
       
-      Document dom = (Document) (validate(
-          DOMResult2Source(dr), iconfig.xslt != null).getNode());
+      if (streamingValidation) {
+        // the document was validated while the DOM tree was built
+        finishValidation();
+      } else {
+        dr = validate(DOMResult2Source(dr), iconfig.xslt != null);
+      }
+      Document dom = (Document) dr.getNode();
       dom.normalize();
       dr = null;
       setFinalDOM(dom);
+      if (buildingThread == Thread.currentThread()) recordDocumentMemory(startAllocatedBytes);
+      buildingThread = null;
     }
     
   }
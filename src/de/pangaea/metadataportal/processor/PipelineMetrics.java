@@ -0,0 +1,418 @@
+/*
+ *   Copyright panFMP Developers Team c/o Uwe Schindler
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package de.pangaea.metadataportal.processor;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+/**
+ * Timers and counters of the processing pipeline of one harvester. An instance is created by
+ * the {@link DocumentProcessor} and registered as JMX MXBean, tagged by harvester id and target
+ * index (see {@link PipelineMetricsMXBean}). Components that do not know the processor
+ * (like {@link MetadataDocument.XMLConverter}) look it up with {@link #forHarvester}.
+ * <p>
+ * The timers (and the memory per document) keep a histogram with 4 buckets per power of two,
+ * so percentiles are accurate to about 20%.
+ */
+public final class PipelineMetrics implements PipelineMetricsMXBean {
+  private static final Log log = LogFactory.getLog(PipelineMetrics.class);
+
+  private static final Map<String,PipelineMetrics> registry = new ConcurrentHashMap<>();
+
+  /** Used if no processor is open for a harvester, its values are never reported. */
+  private static final PipelineMetrics DETACHED = new PipelineMetrics("", "", Collections::emptyMap, null);
+
+  private final String harvesterId, targetIndex;
+  private final Supplier<Map<String,Integer>> queueDepths;
+  private final ExpressionProfiler expressionProfiler;
+  private final long start = System.nanoTime();
+  private final LongAdder documentsIndexed = new LongAdder(), bytesIndexed = new LongAdder();
+  private ObjectName objectName = null;
+
+  /** Time to read the raw input of documents (HTTP requests, files), done by the harvester. */
+  public final Timer fetch = new Timer();
+  /**
+   * Time to parse documents, including the XSL transformation, which is done in the same pass
+   * (and validation, if it is done while streaming).
+   */
+  public final Timer transform = new Timer();
+  /** Time to validate DOM trees against the schema (not recorded, if validated while streaming). */
+  public final Timer validate = new Timer();
+  /** Time to execute the filters, variables and fields. */
+  public final Timer extract = new Timer();
+  /** Time to serialize the fields to the document source. */
+  public final Timer serialize = new Timer();
+  /** Round-trip time of bulk requests. */
+  public final Timer bulk = new Timer();
+  /**
+   * Memory allocated per document while its DOM tree is built (by parsing, transformation, and
+   * the tree itself). This is an upper bound of the memory, a document holds while waiting in the
+   * queues (see harvester property <code>compactDOM</code>). It is only recorded, if expressions
+   * are profiled (harvester property <code>profileExpressions</code>) and the JVM can measure the
+   * memory allocated by a thread.
+   */
+  public final MemoryHistogram documentMemory = new MemoryHistogram();
+
+  private PipelineMetrics(String harvesterId, String targetIndex, Supplier<Map<String,Integer>> queueDepths, ExpressionProfiler expressionProfiler) {
+    this.harvesterId = harvesterId;
+    this.targetIndex = targetIndex;
+    this.queueDepths = queueDepths;
+    this.expressionProfiler = expressionProfiler;
+  }
+
+  /**
+   * Creates the metrics for a harvester and registers them as MXBean.
+   * Instances of previous runs of the same harvester are replaced.
+   */
+  static PipelineMetrics register(String harvesterId, String targetIndex, Supplier<Map<String,Integer>> queueDepths, boolean profileExpressions) {
+    final PipelineMetrics metrics = new PipelineMetrics(harvesterId, targetIndex, queueDepths,
+        profileExpressions ? new ExpressionProfiler() : null);
+    registry.put(harvesterId, metrics);
+    try {
+      final ObjectName name = new ObjectName(String.format(Locale.ROOT, "de.pangaea.metadataportal:type=PipelineMetrics,harvester=%s,index=%s",
+          ObjectName.quote(harvesterId), ObjectName.quote(targetIndex)));
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      try {
+        server.registerMBean(metrics, name);
+      } catch (InstanceAlreadyExistsException e) {
+        server.unregisterMBean(name);
+        server.registerMBean(metrics, name);
+      }
+      metrics.objectName = name;
+    } catch (JMException e) {
+      log.warn("Cannot register pipeline metrics of harvester '" + harvesterId + "' with JMX: " + e);
+    }
+    return metrics;
+  }
+
+  /** Removes the metrics from JMX, they can still be read (e.g., for the summary). */
+  void unregister() {
+    // if a newer instance replaced this one, the JMX registration belongs to it:
+    if (registry.remove(harvesterId, this) && objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        log.warn("Cannot unregister pipeline metrics of harvester '" + harvesterId + "' from JMX: " + e);
+      }
+      objectName = null;
+    }
+  }
+
+  /**
+   * Returns the metrics of the given harvester's open processor. If there is none,
+   * an instance is returned, whose values are discarded.
+   */
+  public static PipelineMetrics forHarvester(String harvesterId) {
+    return registry.getOrDefault(harvesterId, DETACHED);
+  }
+
+  /**
+   * Returns the profiler for filters, variables and fields, if enabled by the harvester
+   * property <code>profileExpressions</code>, otherwise {@code null}.
+   */
+  public ExpressionProfiler getExpressionProfiler() {
+    return expressionProfiler;
+  }
+
+  /** Counts documents and bytes successfully sent to Elasticsearch. */
+  void addIndexed(int documents, long bytes) {
+    documentsIndexed.add(documents);
+    bytesIndexed.add(bytes);
+  }
+
+  @Override
+  public String getHarvesterId() {
+    return harvesterId;
+  }
+
+  @Override
+  public String getTargetIndex() {
+    return targetIndex;
+  }
+
+  @Override
+  public long getElapsedMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+
+  @Override
+  public long getDocumentsIndexed() {
+    return documentsIndexed.sum();
+  }
+
+  @Override
+  public long getBytesIndexed() {
+    return bytesIndexed.sum();
+  }
+
+  @Override
+  public double getDocumentsPerSecond() {
+    return perSecond(getDocumentsIndexed());
+  }
+
+  @Override
+  public double getBytesPerSecond() {
+    return perSecond(getBytesIndexed());
+  }
+
+  private double perSecond(long value) {
+    final long elapsed = System.nanoTime() - start;
+    return (elapsed <= 0L) ? 0.0 : value * 1.0e9 / elapsed;
+  }
+
+  @Override
+  public Map<String,Integer> getQueueDepths() {
+    return queueDepths.get();
+  }
+
+  @Override
+  public Map<String,TimerStatistics> getTimers() {
+    final Map<String,TimerStatistics> timers = new LinkedHashMap<>();
+    timers.put("fetch", fetch.getStatistics());
+    timers.put("transform", transform.getStatistics());
+    timers.put("validate", validate.getStatistics());
+    timers.put("extract", extract.getStatistics());
+    timers.put("serialize", serialize.getStatistics());
+    timers.put("bulk", bulk.getStatistics());
+    return timers;
+  }
+
+  @Override
+  public MemoryStatistics getDocumentMemory() {
+    return documentMemory.getStatistics();
+  }
+
+  /** Returns a multi-line summary of all metrics for logging. */
+  public String getSummary() {
+    final StringBuilder sb = new StringBuilder(String.format(Locale.ENGLISH,
+        "Pipeline metrics of harvester '%s' (index '%s'): %d documents (%s) in %.1fs, %.1f documents/s, %s/s",
+        harvesterId, targetIndex, getDocumentsIndexed(), new ByteSizeValue(getBytesIndexed()),
+        getElapsedMillis() / 1000.0, getDocumentsPerSecond(), new ByteSizeValue(Math.round(getBytesPerSecond()))));
+    for (final Map.Entry<String,TimerStatistics> e : getTimers().entrySet()) {
+      if (e.getValue().getCount() > 0L) {
+        sb.append(System.lineSeparator()).append("  ").append(e.getKey()).append(": ").append(e.getValue());
+      }
+    }
+    final MemoryStatistics memory = getDocumentMemory();
+    if (memory.getCount() > 0L) {
+      sb.append(System.lineSeparator()).append("  document memory: ").append(memory);
+    }
+    return sb.toString();
+  }
+
+  /** Histogram of non-negative values, safe for use by many threads. */
+  abstract static class Histogram {
+    private static final int SUB_BUCKET_BITS = 2, SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    final LongAdder count = new LongAdder(), total = new LongAdder();
+    final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+    private final AtomicLongArray buckets = new AtomicLongArray(bucket(Long.MAX_VALUE) + 1);
+
+    Histogram() {}
+
+    void add(long value) {
+      if (value < 0L) return;
+      count.increment();
+      total.add(value);
+      max.accumulate(value);
+      buckets.incrementAndGet(bucket(value));
+    }
+
+    private static int bucket(long v) {
+      if (v < SUB_BUCKETS) {
+        return (int) v;
+      }
+      final int exp = 63 - Long.numberOfLeadingZeros(v);
+      final int sub = (int) (v >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+      return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /** Returns the middle of the range of values, that fall into the given bucket. */
+    private static long bucketValue(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+        return bucket;
+      }
+      final int exp = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1, sub = bucket % SUB_BUCKETS;
+      final long lower = (long) (SUB_BUCKETS + sub) << (exp - SUB_BUCKET_BITS);
+      return lower + (1L << (exp - SUB_BUCKET_BITS)) / 2L;
+    }
+
+    long percentile(long n, double p) {
+      final long rank = Math.max(1L, (long) Math.ceil(n * p));
+      long seen = 0L;
+      for (int i = 0; i < buckets.length(); i++) {
+        seen += buckets.get(i);
+        if (seen >= rank) {
+          return Math.min(bucketValue(i), max.get());
+        }
+      }
+      return max.get();
+    }
+  }
+
+  /** Histogram of durations, safe for use by many threads. */
+  public static final class Timer extends Histogram {
+
+    Timer() {}
+
+    /** Records a duration given in nanoseconds (as returned by differences of {@link System#nanoTime}). */
+    public void record(long nanos) {
+      add(nanos);
+    }
+
+    public TimerStatistics getStatistics() {
+      final long n = count.sum();
+      if (n == 0L) {
+        return new TimerStatistics(0L, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0);
+      }
+      return new TimerStatistics(n, total.sum() / 1.0e6, total.sum() / 1.0e6 / n,
+          percentile(n, 0.5) / 1.0e6, percentile(n, 0.95) / 1.0e6, percentile(n, 0.99) / 1.0e6, max.get() / 1.0e6);
+    }
+  }
+
+  /** Snapshot of a {@link Timer}, all durations are in milliseconds. */
+  public static final class TimerStatistics {
+    private final long count;
+    private final double totalMillis, meanMillis, p50Millis, p95Millis, p99Millis, maxMillis;
+
+    TimerStatistics(long count, double totalMillis, double meanMillis, double p50Millis, double p95Millis, double p99Millis, double maxMillis) {
+      this.count = count;
+      this.totalMillis = totalMillis;
+      this.meanMillis = meanMillis;
+      this.p50Millis = p50Millis;
+      this.p95Millis = p95Millis;
+      this.p99Millis = p99Millis;
+      this.maxMillis = maxMillis;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public double getTotalMillis() {
+      return totalMillis;
+    }
+
+    public double getMeanMillis() {
+      return meanMillis;
+    }
+
+    public double getP50Millis() {
+      return p50Millis;
+    }
+
+    public double getP95Millis() {
+      return p95Millis;
+    }
+
+    public double getP99Millis() {
+      return p99Millis;
+    }
+
+    public double getMaxMillis() {
+      return maxMillis;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ENGLISH, "count=%d, total=%.1fs, mean=%.3fms, p50=%.3fms, p95=%.3fms, p99=%.3fms, max=%.3fms",
+          count, totalMillis / 1000.0, meanMillis, p50Millis, p95Millis, p99Millis, maxMillis);
+    }
+  }
+
+  /** Histogram of memory sizes, safe for use by many threads. */
+  public static final class MemoryHistogram extends Histogram {
+
+    MemoryHistogram() {}
+
+    /** Records a size given in bytes. */
+    public void record(long bytes) {
+      add(bytes);
+    }
+
+    public MemoryStatistics getStatistics() {
+      final long n = count.sum();
+      if (n == 0L) {
+        return new MemoryStatistics(0L, 0L, 0L, 0L, 0L, 0L);
+      }
+      return new MemoryStatistics(n, total.sum() / n, percentile(n, 0.5), percentile(n, 0.95), percentile(n, 0.99), max.get());
+    }
+  }
+
+  /** Snapshot of a {@link MemoryHistogram}, all sizes are in bytes. */
+  public static final class MemoryStatistics {
+    private final long count, meanBytes, p50Bytes, p95Bytes, p99Bytes, maxBytes;
+
+    MemoryStatistics(long count, long meanBytes, long p50Bytes, long p95Bytes, long p99Bytes, long maxBytes) {
+      this.count = count;
+      this.meanBytes = meanBytes;
+      this.p50Bytes = p50Bytes;
+      this.p95Bytes = p95Bytes;
+      this.p99Bytes = p99Bytes;
+      this.maxBytes = maxBytes;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getMeanBytes() {
+      return meanBytes;
+    }
+
+    public long getP50Bytes() {
+      return p50Bytes;
+    }
+
+    public long getP95Bytes() {
+      return p95Bytes;
+    }
+
+    public long getP99Bytes() {
+      return p99Bytes;
+    }
+
+    public long getMaxBytes() {
+      return maxBytes;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ENGLISH, "count=%d, mean=%s, p50=%s, p95=%s, p99=%s, max=%s", count, new ByteSizeValue(meanBytes),
+          new ByteSizeValue(p50Bytes), new ByteSizeValue(p95Bytes), new ByteSizeValue(p99Bytes), new ByteSizeValue(maxBytes));
+    }
+  }
+
+}
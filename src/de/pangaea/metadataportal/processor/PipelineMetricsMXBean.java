@@ -0,0 +1,53 @@
+/*
+ *   Copyright panFMP Developers Team c/o Uwe Schindler
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package de.pangaea.metadataportal.processor;
+
+import java.util.Map;
+
+/**
+ * JMX view on the {@link PipelineMetrics} of a running harvester. It is registered as
+ * <code>de.pangaea.metadataportal:type=PipelineMetrics,harvester=...,index=...</code>.
+ */
+public interface PipelineMetricsMXBean {
+
+  String getHarvesterId();
+
+  String getTargetIndex();
+
+  /** Milliseconds since the processor was opened. */
+  long getElapsedMillis();
+
+  /** Number of documents successfully written to Elasticsearch. */
+  long getDocumentsIndexed();
+
+  /** Size of the bulk requests successfully sent to Elasticsearch. */
+  long getBytesIndexed();
+
+  double getDocumentsPerSecond();
+
+  double getBytesPerSecond();
+
+  /** Current number of documents waiting in the queue of each pipeline stage. */
+  Map<String,Integer> getQueueDepths();
+
+  /** Statistics of all timers by name. */
+  Map<String,PipelineMetrics.TimerStatistics> getTimers();
+
+  /** Statistics of the memory allocated per document while its DOM tree is built. */
+  PipelineMetrics.MemoryStatistics getDocumentMemory();
+
+}
@@ -0,0 +1,80 @@
+/*
+ *   Copyright panFMP Developers Team c/o Uwe Schindler
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package de.pangaea.metadataportal.processor;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One stage of the {@link DocumentProcessor} pipeline. Each stage has its own
+ * fixed size thread pool and a bounded queue. If the queue of a stage is full,
+ * the work is done in the submitting thread, which throttles the previous stage
+ * (or the harvester itself).
+ */
+final class ProcessingStage {
+
+  final String name;
+  private final ArrayBlockingQueue<Runnable> queue;
+  private final ThreadPoolExecutor pool;
+
+  ProcessingStage(String harvesterId, String name, int threadCount, int maxQueue) {
+    this.name = name;
+    this.queue = new ArrayBlockingQueue<>(maxQueue, false);
+    final AtomicInteger threadNumber = new AtomicInteger(0);
+    final ThreadFactory threadFactory = r -> new Thread(r, "panfmp-" + harvesterId + "-" + name + "-" + threadNumber.incrementAndGet());
+    this.pool = new ThreadPoolExecutor(threadCount, threadCount,
+        0L, TimeUnit.MILLISECONDS, queue, threadFactory,
+        (r, e) -> {
+          if (e.isShutdown()) {
+            throw new RejectedExecutionException("Executor shutdown.");
+          }
+          // run in caller's thread:
+          r.run();
+        });
+  }
+
+  void execute(Runnable r) {
+    pool.execute(r);
+  }
+
+  /** Returns the number of tasks waiting in this stage's queue. */
+  int getQueueDepth() {
+    return queue.size();
+  }
+
+  /**
+   * Shuts down this stage and waits until all queued tasks are done.
+   * Stages must be shut down in pipeline order, because tasks may still
+   * submit work to the following stages.
+   */
+  void shutdownAndWait() throws InterruptedException {
+    pool.shutdown();
+    while (!pool.awaitTermination(5, TimeUnit.SECONDS)) {
+      DocumentProcessor.log.warn("Still waiting for document processor stage '" + name + "' to finish...");
+    }
+  }
+
+  @Override
+  public String toString() {
+    return name + "=" + getQueueDepth();
+  }
+
+}
@@ -0,0 +1,367 @@
+/*
+ *   Copyright panFMP Developers Team c/o Uwe Schindler
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package de.pangaea.metadataportal.processor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.DefaultHandler2;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+
+import de.pangaea.metadataportal.config.StreamingExtractionConfig;
+import de.pangaea.metadataportal.config.StreamingExtractionConfig.Path;
+
+/**
+ * Evaluates the simple paths of a {@link StreamingExtractionConfig} on a stream of
+ * SAX events, one instance per document. Text of selected elements is collected
+ * the same way as {@link MetadataDocument#walkNodeTexts} does on the DOM tree.
+ * All events, that are part of the DOM tree, are forwarded to the given target
+ * handlers (e.g., a validator or a serializer).
+ */
+final class StreamingExtractor extends DefaultHandler2 {
+
+  private final Path[] paths;
+  private final int[] targets; // filter i is encoded as (-i - 1), field i as i
+  private final ContentHandler[] handlers;
+
+  private final boolean[] filterMatches;
+  private final List<List<String>> fieldValues;
+
+  private long[][] states = new long[16][];
+  private int depth = 0;
+  private final List<Capture> captures = new ArrayList<>();
+  private final List<int[]> textSlots = new ArrayList<>();
+  private final StringBuilder text = new StringBuilder();
+  private boolean inText = false, inDTD = false;
+  private final List<String> prefixMappings = new ArrayList<>(); // pairs of prefix and URI
+
+  StreamingExtractor(StreamingExtractionConfig config, ContentHandler... handlers) {
+    final List<Path> paths = new ArrayList<>();
+    final List<Integer> targets = new ArrayList<>();
+    for (int i = 0; i < config.filters.length; i++) {
+      for (Path p : config.filters[i]) {
+        paths.add(p);
+        targets.add(-i - 1);
+      }
+    }
+    for (int i = 0; i < config.fields.length; i++) {
+      for (Path p : config.fields[i]) {
+        paths.add(p);
+        targets.add(i);
+      }
+    }
+    this.paths = paths.toArray(new Path[0]);
+    this.targets = targets.stream().mapToInt(Integer::intValue).toArray();
+    this.handlers = handlers;
+    this.filterMatches = new boolean[config.filters.length];
+    this.fieldValues = new ArrayList<>(config.fields.length);
+    for (int i = 0; i < config.fields.length; i++) {
+      fieldValues.add(new ArrayList<>());
+    }
+    final long[] documentStates = new long[this.paths.length];
+    Arrays.fill(documentStates, Path.DOCUMENT_STATE);
+    states[0] = documentStates;
+  }
+
+  /** Returns {@code true}, if the filter with the given index selected any node. */
+  boolean isFilterMatched(int filter) {
+    return filterMatches[filter];
+  }
+
+  /** Returns the texts of all nodes selected by the field with the given index (untrimmed). */
+  List<String> getFieldValues(int field) {
+    return fieldValues.get(field);
+  }
+
+  /**
+   * Marks the target of the given path as matched. For fields, a slot in the values is
+   * reserved (to keep document order) and added to {@code slots}, if the field does not
+   * already have one for the current node (unions).
+   */
+  private void select(int path, List<int[]> slots) {
+    final int target = targets[path];
+    if (target < 0) {
+      filterMatches[-target - 1] = true;
+    } else if (slots.isEmpty() || slots.get(slots.size() - 1)[0] != target) {
+      final List<String> values = fieldValues.get(target);
+      slots.add(new int[] { target, values.size() });
+      values.add(null);
+    }
+  }
+
+  private void fill(List<int[]> slots, String value) {
+    for (int[] slot : slots) {
+      fieldValues.get(slot[0]).set(slot[1], value);
+    }
+  }
+
+  /** Ends a node, which is a child of all elements currently captured. */
+  private void endChild() {
+    for (Capture c : captures) {
+      c.text.append('\n');
+    }
+  }
+
+  private void flushText() {
+    if (inText) {
+      inText = false;
+      endChild();
+      if (!textSlots.isEmpty()) {
+        fill(textSlots, text.toString());
+        textSlots.clear();
+        text.setLength(0);
+      }
+    }
+  }
+
+  @Override
+  public void setDocumentLocator(Locator locator) {
+    for (ContentHandler h : handlers) h.setDocumentLocator(locator);
+  }
+
+  @Override
+  public void startDocument() throws SAXException {
+    for (ContentHandler h : handlers) h.startDocument();
+  }
+
+  @Override
+  public void endDocument() throws SAXException {
+    flushText();
+    for (ContentHandler h : handlers) h.endDocument();
+  }
+
+  @Override
+  public void startPrefixMapping(String prefix, String uri) throws SAXException {
+    prefixMappings.add(prefix);
+    prefixMappings.add(uri);
+    for (ContentHandler h : handlers) h.startPrefixMapping(prefix, uri);
+  }
+
+  @Override
+  public void endPrefixMapping(String prefix) throws SAXException {
+    for (ContentHandler h : handlers) h.endPrefixMapping(prefix);
+  }
+
+  @Override
+  public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+    flushText();
+    atts = sortByName(addNamespaceDeclarations(atts));
+    if (++depth == states.length) {
+      states = Arrays.copyOf(states, depth * 2);
+    }
+    final long[] parentStates = states[depth - 1];
+    long[] elementStates = states[depth];
+    if (elementStates == null) {
+      elementStates = states[depth] = new long[paths.length];
+    }
+    final List<int[]> slots = new ArrayList<>(0);
+    boolean hasAttributePaths = false;
+    for (int i = 0; i < paths.length; i++) {
+      final long state = (parentStates[i] == 0L) ? 0L : paths[i].getElementState(parentStates[i], uri, localName);
+      elementStates[i] = state;
+      if (state != 0L) {
+        if (paths[i].selectsElement(state)) select(i, slots);
+        hasAttributePaths |= paths[i].isAttributePath();
+      }
+    }
+    if (!slots.isEmpty()) {
+      captures.add(new Capture(depth, slots));
+    }
+    if (hasAttributePaths) {
+      selectAttributes(elementStates, atts);
+    }
+    for (ContentHandler h : handlers) h.startElement(uri, localName, qName, atts);
+  }
+
+  /**
+   * Some transformers report namespace declarations only by {@link #startPrefixMapping},
+   * but the DOM tree has them as attributes, so they are added (if not yet there).
+   */
+  private Attributes addNamespaceDeclarations(Attributes atts) {
+    if (prefixMappings.isEmpty()) {
+      return atts;
+    }
+    AttributesImpl result = null;
+    for (int i = 0; i < prefixMappings.size(); i += 2) {
+      final String prefix = prefixMappings.get(i);
+      final boolean isDefault = XMLConstants.DEFAULT_NS_PREFIX.equals(prefix);
+      final String localName = isDefault ? XMLConstants.XMLNS_ATTRIBUTE : prefix;
+      final String qName = isDefault ? XMLConstants.XMLNS_ATTRIBUTE : XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix;
+      if (!hasAttribute(atts, qName)) {
+        if (result == null) {
+          atts = result = new AttributesImpl(atts);
+        }
+        result.addAttribute(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, localName, qName, "CDATA", prefixMappings.get(i + 1));
+      }
+    }
+    prefixMappings.clear();
+    return atts;
+  }
+  
+  private static boolean hasAttribute(Attributes atts, String qName) {
+    // not using getIndex(), as some implementations only look at the URI and local name:
+    for (int a = 0, len = atts.getLength(); a < len; a++) {
+      if (qName.equals(atts.getQName(a))) return true;
+    }
+    return false;
+  }
+  
+  /**
+   * The DOM tree orders attributes by name (namespace declarations first, when serialized),
+   * so XPath and the serializer see them in this order.
+   */
+  private static Attributes sortByName(Attributes atts) {
+    final int len = atts.getLength();
+    final Comparator<Integer> comparator = Comparator.comparing((Integer i) -> !isNamespaceDeclaration(atts.getQName(i)))
+        .thenComparing(atts::getQName);
+    int a = 1;
+    while (a < len && comparator.compare(a - 1, a) <= 0) {
+      a++;
+    }
+    if (a >= len) {
+      return atts; // already sorted
+    }
+    final Integer[] order = new Integer[len];
+    for (a = 0; a < len; a++) {
+      order[a] = a;
+    }
+    Arrays.sort(order, comparator);
+    final AttributesImpl sorted = new AttributesImpl();
+    for (int i : order) {
+      sorted.addAttribute(atts.getURI(i), atts.getLocalName(i), atts.getQName(i), atts.getType(i), atts.getValue(i));
+    }
+    return sorted;
+  }
+
+  private static boolean isNamespaceDeclaration(String qName) {
+    return XMLConstants.XMLNS_ATTRIBUTE.equals(qName) || qName.startsWith(XMLConstants.XMLNS_ATTRIBUTE + ":");
+  }
+
+  private void selectAttributes(long[] elementStates, Attributes atts) {
+    final List<int[]> slots = new ArrayList<>(0);
+    for (int a = 0, len = atts.getLength(); a < len; a++) {
+      if (isNamespaceDeclaration(atts.getQName(a))) {
+        continue; // not attributes in XPath
+      }
+      for (int i = 0; i < paths.length; i++) {
+        if (elementStates[i] != 0L && paths[i].selectsAttribute(elementStates[i], atts.getURI(a), atts.getLocalName(a))) {
+          select(i, slots);
+        }
+      }
+      fill(slots, atts.getValue(a));
+      slots.clear();
+    }
+  }
+
+  @Override
+  public void endElement(String uri, String localName, String qName) throws SAXException {
+    flushText();
+    final int last = captures.size() - 1;
+    if (last >= 0 && captures.get(last).depth == depth) {
+      final Capture c = captures.remove(last);
+      fill(c.slots, c.text.toString());
+    }
+    endChild();
+    depth--;
+    for (ContentHandler h : handlers) h.endElement(uri, localName, qName);
+  }
+
+  @Override
+  public void characters(char[] ch, int start, int length) throws SAXException {
+    if (length > 0) {
+      if (!inText) {
+        inText = true;
+        final long[] elementStates = states[depth];
+        for (int i = 0; i < paths.length; i++) {
+          if (elementStates[i] != 0L && paths[i].selectsText(elementStates[i])) {
+            select(i, textSlots);
+          }
+        }
+      }
+      if (!textSlots.isEmpty()) {
+        text.append(ch, start, length);
+      }
+      for (Capture c : captures) {
+        c.text.append(ch, start, length);
+      }
+    }
+    for (ContentHandler h : handlers) h.characters(ch, start, length);
+  }
+
+  @Override
+  public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+    // not part of the DOM tree
+    for (ContentHandler h : handlers) h.ignorableWhitespace(ch, start, length);
+  }
+
+  @Override
+  public void processingInstruction(String target, String data) throws SAXException {
+    flushText();
+    endChild();
+    for (ContentHandler h : handlers) h.processingInstruction(target, data);
+  }
+
+  @Override
+  public void skippedEntity(String name) throws SAXException {
+    for (ContentHandler h : handlers) h.skippedEntity(name);
+  }
+
+  @Override
+  public void comment(char[] ch, int start, int length) throws SAXException {
+    if (!inDTD) {
+      flushText();
+      endChild();
+      for (ContentHandler h : handlers) {
+        if (h instanceof LexicalHandler) ((LexicalHandler) h).comment(ch, start, length);
+      }
+    }
+  }
+
+  // the DTD, entities, and CDATA sections are not part of the DOM tree, so they are not forwarded:
+
+  @Override
+  public void startDTD(String name, String publicId, String systemId) {
+    inDTD = true;
+  }
+
+  @Override
+  public void endDTD() {
+    inDTD = false;
+  }
+
+  /** The text of a selected element, which is not yet complete. */
+  private static final class Capture {
+    final int depth;
+    final List<int[]> slots;
+    final StringBuilder text = new StringBuilder();
+
+    Capture(int depth, List<int[]> slots) {
+      this.depth = depth;
+      this.slots = slots;
+    }
+  }
+
+}
@@ -16,24 +16,21 @@
 
 package de.pangaea.metadataportal.processor;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Set;
 
 import javax.xml.namespace.QName;
 import javax.xml.xpath.XPathFunction;
 import javax.xml.xpath.XPathFunctionResolver;
-import javax.xml.xpath.XPathVariableResolver;
 
 import org.apache.xalan.extensions.XPathFunctionResolverImpl;
 
 /**
- * Helper class that implements several XPath interfaces to supply variables and
- * functions to XPath expressions. This is a singleton!
+ * Helper class that supplies functions to XPath expressions. This is a singleton!
+ * The variables are supplied per document by {@link EvaluationContext}.
  * 
  * @author Uwe Schindler
  */
-public final class XPathResolverImpl implements XPathFunctionResolver, XPathVariableResolver {
+public final class XPathResolverImpl implements XPathFunctionResolver {
   
   public static XPathResolverImpl getInstance() {
     return instance;
@@ -59,30 +56,6 @@ public final class XPathResolverImpl implements XPathFunctionResolver, XPathVari
     return parent.resolveFunction(functionName, arity);
   }
   
-  // XPathVariableResolver
-  @Override
-  public Object resolveVariable(QName variableName) {
-    Map<QName,Object> map = xPathVariableData.get();
-    if (map == null) throw new IllegalStateException(
-        "There is no variables map in thread local storage!");
-    return map.get(variableName);
-  }
-    
-  // API
-  public synchronized Map<QName,Object> initVariables() {
-    HashMap<QName,Object> data = new HashMap<>();
-    xPathVariableData.set(data);
-    return data;
-  }
-  
-  public synchronized Map<QName,Object> getCurrentVariableMap() {
-    return xPathVariableData.get();
-  }
-  
-  public synchronized void unsetVariables() {
-    xPathVariableData.remove();
-  }
-  
   // class members
   public static final String DOCUMENT_PROCESSOR_NAMESPACE = "urn:java:"
       + DocumentProcessor.class.getName();
@@ -101,8 +74,6 @@ public final class XPathResolverImpl implements XPathFunctionResolver, XPathVari
   private static XPathResolverImpl instance = new XPathResolverImpl();
   
   // object members
-  private ThreadLocal<Map<QName,Object>> xPathVariableData = new ThreadLocal<>();
-  
   private final XPathFunctionResolver parent;
   
 }
\ No newline at end of file
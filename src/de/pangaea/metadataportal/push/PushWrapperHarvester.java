@@ -115,6 +115,12 @@ public final class PushWrapperHarvester extends SingleFileEntitiesHarvester {
     super.addDocument(identifier, lastModified, xml);
   }
 
+  @Override
+  protected boolean isConversionDeferred() {
+    // the push client should get parse errors as response to its request
+    return false;
+  }
+
   @Override
   public void deleteDocument(String identifier) throws Exception {
     resetTimer();
@@ -0,0 +1,261 @@
+/*
+ *   Copyright panFMP Developers Team c/o Uwe Schindler
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package de.pangaea.metadataportal.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+
+import org.apache.xerces.dom.CoreDocumentImpl;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Builds a DOM tree from SAX events, using less memory than the tree built by
+ * a {@link javax.xml.transform.dom.DOMResult}. The document is a plain Xerces
+ * {@link CoreDocumentImpl} (no support for events, ranges, or traversal) and
+ * the builder does not create a separate local name for each element and attribute.
+ * Names and short texts or attribute values (like whitespace between elements
+ * or code list references) are shared between all nodes with the same value,
+ * using a lossy per-thread table. Adjacent character events are combined to
+ * one text node.
+ * <p>
+ * The resulting tree is the same as the one built by the XSLTC identity
+ * transformer, so it can be read and transformed as usual. As the document
+ * is created without error checking, it should not be modified afterwards.
+ */
+public final class CompactDOMBuilder implements ContentHandler, LexicalHandler {
+
+  /** Longer strings are not shared. */
+  private static final int MAX_SHARED_LENGTH = 128;
+  private static final int TABLE_SIZE = 4096; // power of 2
+
+  private static final ThreadLocal<String[]> sharedStrings = ThreadLocal.withInitial(() -> new String[TABLE_SIZE]);
+
+  private final CoreDocumentImpl doc;
+  private final String[] table = sharedStrings.get();
+  private final List<String> namespaceDecls = new ArrayList<>();
+  private Node current;
+  private char[] text = new char[256];
+  private int textLength = 0;
+  private boolean inDTD = false;
+
+  /**
+   * Creates a builder, that appends the nodes to the given document
+   * (which must be created by {@link #newDocument}). A builder must only be used
+   * by the thread that created it.
+   */
+  public CompactDOMBuilder(Document doc) {
+    if (!(doc instanceof CoreDocumentImpl)) {
+      throw new IllegalArgumentException("The document must be created by CompactDOMBuilder.newDocument()");
+    }
+    this.doc = (CoreDocumentImpl) doc;
+    this.current = doc;
+  }
+
+  /** Creates an empty document for use with a builder. */
+  public static Document newDocument() {
+    final CoreDocumentImpl doc = new CoreDocumentImpl();
+    doc.setErrorChecking(false);
+    return doc;
+  }
+
+  private String share(String s) {
+    if (s == null || s.length() > MAX_SHARED_LENGTH) {
+      return s;
+    }
+    final int slot = slot(s.hashCode());
+    final String cached = table[slot];
+    if (s.equals(cached)) {
+      return cached;
+    }
+    return table[slot] = s;
+  }
+
+  private String share(char[] ch, int start, int length) {
+    if (length > MAX_SHARED_LENGTH) {
+      return new String(ch, start, length);
+    }
+    int h = 0;
+    for (int i = start, end = start + length; i < end; i++) {
+      h = 31 * h + ch[i];
+    }
+    final int slot = slot(h);
+    final String cached = table[slot];
+    if (cached != null && cached.length() == length && cached.hashCode() == h && matches(cached, ch, start)) {
+      return cached;
+    }
+    return table[slot] = new String(ch, start, length);
+  }
+
+  private static int slot(int hash) {
+    return (hash ^ (hash >>> 16)) & (TABLE_SIZE - 1);
+  }
+
+  private static boolean matches(String s, char[] ch, int start) {
+    for (int i = 0, c = s.length(); i < c; i++) {
+      if (s.charAt(i) != ch[start + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String namespace(String uri) {
+    return (uri == null || uri.isEmpty()) ? null : uri;
+  }
+
+  private void append(Node node) {
+    current.appendChild(node);
+  }
+
+  private void flushText() {
+    if (textLength > 0) {
+      // no text nodes are allowed as children of the document:
+      if (current != doc) {
+        append(doc.createTextNode(share(text, 0, textLength)));
+      }
+      textLength = 0;
+    }
+  }
+
+  @Override
+  public void setDocumentLocator(Locator locator) {
+  }
+
+  @Override
+  public void startDocument() {
+  }
+
+  @Override
+  public void endDocument() {
+    flushText();
+  }
+
+  @Override
+  public void startPrefixMapping(String prefix, String uri) {
+    namespaceDecls.add(prefix);
+    namespaceDecls.add(uri);
+  }
+
+  @Override
+  public void endPrefixMapping(String prefix) {
+  }
+
+  @Override
+  public void startElement(String uri, String localName, String qName, Attributes atts) {
+    flushText();
+    final Element el = (localName == null || localName.isEmpty()) ? doc.createElementNS(namespace(uri), qName)
+        : doc.createElementNS(share(namespace(uri)), share(qName), share(localName));
+    // namespace declarations first:
+    for (int i = 0, c = namespaceDecls.size(); i < c; i += 2) {
+      final String prefix = namespaceDecls.get(i);
+      final Attr attr = (prefix == null || prefix.isEmpty())
+          ? doc.createAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, XMLConstants.XMLNS_ATTRIBUTE, XMLConstants.XMLNS_ATTRIBUTE)
+          : doc.createAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, share(XMLConstants.XMLNS_ATTRIBUTE + ':' + prefix), share(prefix));
+      attr.setValue(share(namespaceDecls.get(i + 1)));
+      el.setAttributeNodeNS(attr);
+    }
+    namespaceDecls.clear();
+    for (int i = 0, c = atts.getLength(); i < c; i++) {
+      final String attLocalName = atts.getLocalName(i);
+      if (attLocalName == null) {
+        el.setAttribute(atts.getQName(i), share(atts.getValue(i)));
+      } else {
+        final Attr attr = doc.createAttributeNS(share(namespace(atts.getURI(i))), share(atts.getQName(i)), share(attLocalName));
+        attr.setValue(share(atts.getValue(i)));
+        el.setAttributeNodeNS(attr);
+      }
+    }
+    append(el);
+    current = el;
+  }
+
+  @Override
+  public void endElement(String uri, String localName, String qName) {
+    flushText();
+    current = current.getParentNode();
+  }
+
+  @Override
+  public void characters(char[] ch, int start, int length) {
+    if (textLength + length > text.length) {
+      text = Arrays.copyOf(text, Math.max(text.length << 1, textLength + length));
+    }
+    System.arraycopy(ch, start, text, textLength, length);
+    textLength += length;
+  }
+
+  @Override
+  public void ignorableWhitespace(char[] ch, int start, int length) {
+    // ignored, like the DOM builders of Xalan
+  }
+
+  @Override
+  public void processingInstruction(String target, String data) {
+    flushText();
+    append(doc.createProcessingInstruction(target, data));
+  }
+
+  @Override
+  public void skippedEntity(String name) {
+  }
+
+  // LexicalHandler
+
+  @Override
+  public void comment(char[] ch, int start, int length) {
+    if (inDTD) return;
+    flushText();
+    append(doc.createComment(new String(ch, start, length)));
+  }
+
+  @Override
+  public void startCDATA() {
+  }
+
+  @Override
+  public void endCDATA() {
+  }
+
+  @Override
+  public void startDTD(String name, String publicId, String systemId) {
+    inDTD = true;
+  }
+
+  @Override
+  public void endDTD() {
+    inDTD = false;
+  }
+
+  @Override
+  public void startEntity(String name) {
+  }
+
+  @Override
+  public void endEntity(String name) {
+  }
+
+}
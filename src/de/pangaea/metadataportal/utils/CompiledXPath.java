@@ -0,0 +1,129 @@
+/*
+ *   Copyright panFMP Developers Team c/o Uwe Schindler
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package de.pangaea.metadataportal.utils;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.transform.TransformerException;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFunctionException;
+import javax.xml.xpath.XPathFunctionResolver;
+import javax.xml.xpath.XPathVariableResolver;
+
+import org.apache.xpath.XPath;
+import org.apache.xpath.XPathContext;
+import org.apache.xpath.jaxp.JAXPExtensionsProvider;
+import org.apache.xpath.jaxp.JAXPPrefixResolver;
+import org.apache.xpath.jaxp.JAXPVariableStack;
+import org.apache.xpath.objects.XObject;
+import org.w3c.dom.Node;
+
+/**
+ * A XPath expression compiled by Xalan. In contrast to {@link javax.xml.xpath.XPathExpression},
+ * the variables and functions are not bound at compile time, they are supplied by the
+ * {@link XPathContext} passed to each evaluation. One context (created by {@link #newContext})
+ * can be used for all expressions evaluated on the same document, so the document is
+ * wrapped by a Xalan DTM only once. Each thread uses its own compiled instance of the
+ * expression, so nothing mutable is shared between threads.
+ */
+public final class CompiledXPath {
+
+  private final String expression;
+  private final JAXPPrefixResolver prefixResolver;
+  private final ThreadLocal<XPath> xpath = ThreadLocal.withInitial(() -> {
+    try {
+      return compile();
+    } catch (TransformerException te) {
+      throw new AssertionError("The expression was already compiled successfully.", te);
+    }
+  });
+
+  /**
+   * Compiles the given expression.
+   * @param expression the XPath
+   * @param namespaces the namespace context to resolve prefixes
+   * @throws XPathExpressionException if the expression cannot be compiled
+   */
+  public CompiledXPath(String expression, NamespaceContext namespaces) throws XPathExpressionException {
+    this.expression = expression;
+    this.prefixResolver = new JAXPPrefixResolver(namespaces);
+    try {
+      this.xpath.set(compile());
+    } catch (TransformerException te) {
+      throw new XPathExpressionException(te);
+    }
+  }
+
+  private XPath compile() throws TransformerException {
+    return new XPath(expression, null, prefixResolver, XPath.SELECT, null);
+  }
+
+  /**
+   * Creates a new context for evaluating expressions. It must only be used by one thread at a time.
+   * @param functions the resolver for extension functions
+   * @param variables the resolver for the variables referenced by the expressions
+   */
+  public static XPathContext newContext(XPathFunctionResolver functions, XPathVariableResolver variables) {
+    final XPathContext xctxt = new XPathContext(new JAXPExtensionsProvider(functions));
+    xctxt.setVarStack(new JAXPVariableStack(variables));
+    return xctxt;
+  }
+
+  /**
+   * Evaluates the expression on the given node and returns the result as the given type
+   * (like {@link javax.xml.xpath.XPathExpression#evaluate(Object,QName)}, but only
+   * {@link XPathConstants#NODESET}, {@link XPathConstants#STRING}, {@link XPathConstants#BOOLEAN},
+   * and {@link XPathConstants#NUMBER} are supported).
+   * @param xctxt the context, see {@link #newContext}
+   * @param node the context node
+   * @param returnType the type of the result
+   * @throws IllegalArgumentException if the type is not supported
+   * @throws XPathExpressionException if the evaluation fails or the result cannot be converted
+   */
+  public Object evaluate(XPathContext xctxt, Node node, QName returnType) throws XPathExpressionException {
+    try {
+      return getResultAsType(xpath.get().execute(xctxt, node, prefixResolver), returnType);
+    } catch (TransformerException te) {
+      final Throwable cause = te.getException();
+      if (cause instanceof XPathFunctionException) {
+        throw (XPathFunctionException) cause;
+      }
+      throw new XPathExpressionException(te);
+    }
+  }
+
+  private static Object getResultAsType(XObject result, QName returnType) throws TransformerException {
+    if (XPathConstants.NODESET.equals(returnType)) {
+      return result.nodelist();
+    } else if (XPathConstants.STRING.equals(returnType)) {
+      return result.str();
+    } else if (XPathConstants.BOOLEAN.equals(returnType)) {
+      return Boolean.valueOf(result.bool());
+    } else if (XPathConstants.NUMBER.equals(returnType)) {
+      return Double.valueOf(result.num());
+    }
+    throw new IllegalArgumentException("Invalid XPath return type: " + returnType);
+  }
+
+  /** Returns the XPath expression. */
+  @Override
+  public String toString() {
+    return expression;
+  }
+
+}
@@ -30,6 +30,7 @@ import org.apache.lucene.util.BytesRefHash;
 
 /**
  * A utility class that uses Lucene's {@link BytesRefHash} to create a {@link Set}.
+ * The built set is safe to be read by multiple threads.
  * 
  * @author Uwe Schindler
  */
@@ -89,8 +90,9 @@ public final class HugeStringHashBuilder {
       return stream().spliterator();
     }
     
+    // BytesRefHash#find() and our scratch are not thread safe, but the set is read by multiple threads:
     @Override
-    public boolean contains(Object o) {
+    public synchronized boolean contains(Object o) {
       if (o instanceof String) {
         scratch.copyChars((String) o);
         return hash.find(scratch.get()) >= 0;
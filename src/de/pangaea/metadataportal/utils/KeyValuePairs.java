@@ -17,9 +17,11 @@
 package de.pangaea.metadataportal.utils;
 
 import java.io.IOException;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 
+import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 
@@ -27,49 +29,81 @@ import org.elasticsearch.common.xcontent.XContentFactory;
  * Key/Value pairs used to build JSON. This behaves like a {@code Map} where
  * you can add element, but duplicate elements make the values an array.
  * It also supports adding {@code KeyValuePairs} as value, in which case an object is created in the resulting JSON.
+ * Values implementing {@link ToXContent} (like {@link XMLToXContent}) write themselves to the builder.
+ * <p>
+ * The values of each key are collected in a growable buffer; {@code double}, {@code long}, and
+ * {@code boolean} values are stored unboxed, as long as a key has only values of one of those types.
+ * After {@link #clear()}, the instance can be reused for another document, keeping
+ * all buffers (keys are written in the order they were added after the last clear).
  * */
 public final class KeyValuePairs {
-  private final Map<String,Object[]> map = new LinkedHashMap<>();
+  private final Map<String,Values> index = new HashMap<>();
+  private Values[] fields = new Values[16];
+  private int fieldCount = 0;
   
   public KeyValuePairs() {
   }
   
-  public void add(final String key, final Object value) {
-    Object[] existingVals = map.get(key);
-    if (existingVals == null) {
-      map.put(key, new Object[] { value });
-    } else {
-      Object[] newVals = new Object[existingVals.length + 1];
-      System.arraycopy(existingVals, 0, newVals, 0, existingVals.length);
-      newVals[existingVals.length] = value;
-      map.put(key, newVals);
+  private Values values(final String key) {
+    Values v = index.get(key);
+    if (v == null) {
+      v = new Values(key);
+      index.put(key, v);
+    }
+    if (v.size == 0) {
+      if (fieldCount == fields.length) {
+        fields = Arrays.copyOf(fields, fieldCount << 1);
+      }
+      fields[fieldCount++] = v;
     }
+    return v;
+  }
+  
+  public void add(final String key, final Object value) {
+    values(key).add(value);
   }
   
   public void add(final String key, final Object... values) {
     if (values.length == 0) return;
-    Object[] existingVals = map.get(key);
-    if (existingVals == null) {
-      map.put(key, values);
-    } else {
-      Object[] newVals = new Object[existingVals.length + values.length];
-      System.arraycopy(existingVals, 0, newVals, 0, existingVals.length);
-      System.arraycopy(values, 0, newVals, existingVals.length, values.length);
-      map.put(key, newVals);
+    final Values v = values(key);
+    for (final Object value : values) {
+      v.add(value);
+    }
+  }
+  
+  public void add(final String key, final double value) {
+    values(key).add(value);
+  }
+  
+  public void add(final String key, final long value) {
+    values(key).add(value);
+  }
+  
+  public void add(final String key, final boolean value) {
+    values(key).add(value);
+  }
+  
+  /** Removes all values, but keeps the buffers for reuse. */
+  public void clear() {
+    for (int i = 0; i < fieldCount; i++) {
+      fields[i].clear();
     }
+    fieldCount = 0;
   }
   
   public int size() {
-    return map.size();
+    return fieldCount;
   }
   
   public boolean isEmpty() {
-    return map.isEmpty();
+    return fieldCount == 0;
   }
   
-  private void serializeValue(final XContentBuilder builder, Object o) throws IOException {
+  private static void serializeValue(final XContentBuilder builder, Object o) throws IOException {
     if (o instanceof KeyValuePairs) {
       ((KeyValuePairs) o).serializeToContentBuilder(builder);
+    } else if (o instanceof ToXContent) {
+      ((ToXContent) o).toXContent(builder, ToXContent.EMPTY_PARAMS);
     } else {
       builder.value(o);
     }
@@ -79,31 +113,24 @@ public final class KeyValuePairs {
    * Serializes the object to a sequence of fields. The empty object will be serialized as {@code null}.
    */
   public void serializeToContentBuilder(final XContentBuilder builder) throws IOException {
-    if (map.isEmpty()) {
+    if (isEmpty()) {
       builder.nullValue();
     } else {
       builder.startObject();
-      for (final Map.Entry<String,Object[]> e : map.entrySet()) {
-        final Object[] val = e.getValue();
-        switch (val.length) {
-          case 0:
-            break;
-          case 1:
-            builder.field(e.getKey());
-            serializeValue(builder, val[0]);
-            break;
-          default:
-            builder.startArray(e.getKey());
-            for (final Object o : val) {
-              serializeValue(builder, o);
-            }
-            builder.endArray();
-        }
-      }
+      serializeFieldsToContentBuilder(builder);
       builder.endObject();
     }
   }
   
+  /** 
+   * Serializes only the fields into an object already started by the caller.
+   */
+  public void serializeFieldsToContentBuilder(final XContentBuilder builder) throws IOException {
+    for (int i = 0; i < fieldCount; i++) {
+      fields[i].serialize(builder);
+    }
+  }
+  
   /**
    * {@inheritDoc}
    * <p>This should be used for debugging only!
@@ -119,4 +146,137 @@ public final class KeyValuePairs {
     }
   }
   
+  /** The values of one key, stored in one of the lanes. */
+  private static final class Values {
+    private static final int INITIAL_CAPACITY = 4;
+    private enum Lane { OBJECT, DOUBLE, LONG, BOOLEAN }
+    
+    final String key;
+    int size = 0;
+    private Lane lane = Lane.OBJECT;
+    private Object[] objects;
+    private double[] doubles;
+    private long[] longs;
+    private boolean[] booleans;
+    
+    Values(String key) {
+      this.key = key;
+    }
+    
+    private static int newCapacity(int length, int size) {
+      return (size < length) ? length : Math.max(INITIAL_CAPACITY, length << 1);
+    }
+    
+    void add(Object value) {
+      if (lane != Lane.OBJECT) {
+        boxValues();
+      }
+      if (objects == null || size == objects.length) {
+        objects = (objects == null) ? new Object[INITIAL_CAPACITY] : Arrays.copyOf(objects, newCapacity(objects.length, size));
+      }
+      objects[size++] = value;
+    }
+    
+    void add(double value) {
+      if (!useLane(Lane.DOUBLE)) {
+        add((Object) Double.valueOf(value));
+        return;
+      }
+      if (doubles == null || size == doubles.length) {
+        doubles = (doubles == null) ? new double[INITIAL_CAPACITY] : Arrays.copyOf(doubles, newCapacity(doubles.length, size));
+      }
+      doubles[size++] = value;
+    }
+    
+    void add(long value) {
+      if (!useLane(Lane.LONG)) {
+        add((Object) Long.valueOf(value));
+        return;
+      }
+      if (longs == null || size == longs.length) {
+        longs = (longs == null) ? new long[INITIAL_CAPACITY] : Arrays.copyOf(longs, newCapacity(longs.length, size));
+      }
+      longs[size++] = value;
+    }
+    
+    void add(boolean value) {
+      if (!useLane(Lane.BOOLEAN)) {
+        add((Object) Boolean.valueOf(value));
+        return;
+      }
+      if (booleans == null || size == booleans.length) {
+        booleans = (booleans == null) ? new boolean[INITIAL_CAPACITY] : Arrays.copyOf(booleans, newCapacity(booleans.length, size));
+      }
+      booleans[size++] = value;
+    }
+    
+    private boolean useLane(Lane l) {
+      if (size == 0) {
+        lane = l;
+      }
+      return lane == l;
+    }
+    
+    /** Moves the primitive values to the object lane, if a value of another type is added. */
+    private void boxValues() {
+      if (size == 0) {
+        lane = Lane.OBJECT;
+        return;
+      }
+      if (objects == null || objects.length < size + 1) {
+        objects = new Object[Math.max(INITIAL_CAPACITY, (size + 1) << 1)];
+      }
+      for (int i = 0; i < size; i++) {
+        objects[i] = getValue(i);
+      }
+      lane = Lane.OBJECT;
+    }
+    
+    private Object getValue(int i) {
+      switch (lane) {
+        case DOUBLE: return doubles[i];
+        case LONG: return longs[i];
+        case BOOLEAN: return booleans[i];
+        default: return objects[i];
+      }
+    }
+    
+    void clear() {
+      if (lane == Lane.OBJECT) {
+        // release references to the values (e.g., DOM trees):
+        Arrays.fill(objects, 0, size, null);
+      }
+      size = 0;
+    }
+    
+    private void serializeValue(XContentBuilder builder, int i) throws IOException {
+      switch (lane) {
+        case DOUBLE:
+          builder.value(doubles[i]);
+          break;
+        case LONG:
+          builder.value(longs[i]);
+          break;
+        case BOOLEAN:
+          builder.value(booleans[i]);
+          break;
+        default:
+          KeyValuePairs.serializeValue(builder, objects[i]);
+      }
+    }
+    
+    void serialize(XContentBuilder builder) throws IOException {
+      if (size == 1) {
+        builder.field(key);
+        serializeValue(builder, 0);
+      } else {
+        builder.startArray(key);
+        for (int i = 0; i < size; i++) {
+          serializeValue(builder, i);
+        }
+        builder.endArray();
+      }
+    }
+  }
+  
 }
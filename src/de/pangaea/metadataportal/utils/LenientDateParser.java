@@ -20,18 +20,31 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
+import java.time.chrono.IsoChronology;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.ResolverStyle;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
 import java.util.Date;
 import java.util.Locale;
 import java.util.TimeZone;
-import java.util.regex.Pattern;
-
-// TODO !!!!!!!!!!!!!!!!!
 
 /**
- * Simple static class to parse date/times <b>very</b> lenient. This class will
- * be changed in future, as date/time parsing will be refactored in
- * <b>panFMP</b>.
+ * Simple static class to parse date/times <b>very</b> lenient. This class is thread safe
+ * and does not lock.
+ * <p>
+ * Canonical ISO-8601 dates (<code>yyyy</code>, <code>yyyy-MM</code>, <code>yyyy-MM-dd</code>,
+ * optionally followed by <code>'T'HH:mm[:ss[.SSS]]</code> and a time zone offset) are parsed
+ * with {@link DateTimeFormatter}. All other strings are parsed by a cascade of lenient
+ * {@link SimpleDateFormat}s (each thread has its own copies), whose results the fast path
+ * reproduces exactly. Recently parsed strings are cached.
  * 
  * @author Uwe Schindler
  */
@@ -40,42 +53,113 @@ public final class LenientDateParser {
   private LenientDateParser() {} // no instance
   
   /** Parses a string to a {@link Date} */
-  public static synchronized Date parseDate(String date) throws ParseException {
+  public static Date parseDate(String date) throws ParseException {
     if (date == null) return null;
     
+    final int slot = (date.hashCode() * 0x9E3779B9) >>> (32 - CACHE_BITS);
+    final CacheEntry entry = cache[slot];
+    if (entry != null && entry.date.equals(date)) {
+      return new Date(entry.time);
+    }
+    
+    long time = parseISO(date);
+    if (time == NOT_PARSED) {
+      time = parseLegacy(date);
+    }
+    cache[slot] = new CacheEntry(date, time);
+    return new Date(time);
+  }
+  
+  /**
+   * Parses canonical ISO-8601 dates, returns {@link #NOT_PARSED} for all other strings.
+   * The result is the same like the one of {@link #parseLegacy}, which is why dates
+   * before the Gregorian calendar reform, fractions of seconds without exactly three digits,
+   * and invalid values are left to it.
+   */
+  private static long parseISO(String date) {
+    if (date.isEmpty() || date.charAt(0) < '0' || date.charAt(0) > '9') {
+      return NOT_PARSED;
+    }
+    final ParsePosition pos = new ParsePosition(0);
+    try {
+      final TemporalAccessor parsed = ISO_FORMAT.parse(date, pos);
+      if (pos.getIndex() != date.length()) {
+        return NOT_PARSED;
+      }
+      final int year = parsed.get(ChronoField.YEAR);
+      if (year < MIN_ISO_YEAR || year > MAX_ISO_YEAR) {
+        return NOT_PARSED;
+      }
+      final long dateMillis = LocalDate.of(year,
+          parsed.isSupported(ChronoField.MONTH_OF_YEAR) ? parsed.get(ChronoField.MONTH_OF_YEAR) : 1,
+          parsed.isSupported(ChronoField.DAY_OF_MONTH) ? parsed.get(ChronoField.DAY_OF_MONTH) : 1
+        ).toEpochDay() * MILLIS_PER_DAY;
+      if (!parsed.isSupported(ChronoField.HOUR_OF_DAY)) {
+        return dateMillis;
+      }
+      // like the legacy parser, the time is parsed separately (on 1970-01-01) and added to the date:
+      final LocalTime time = LocalTime.from(parsed);
+      final long timeMillis;
+      if (parsed.isSupported(ChronoField.OFFSET_SECONDS)) {
+        timeMillis = time.toNanoOfDay() / 1_000_000L - parsed.get(ChronoField.OFFSET_SECONDS) * 1000L;
+      } else {
+        timeMillis = LocalDateTime.of(LocalDate.EPOCH, time).atZone(TIME_ZONE_ID).toInstant().toEpochMilli();
+      }
+      return dateMillis + timeMillis;
+    } catch (DateTimeException e) {
+      // invalid values are handled by the lenient parser
+      return NOT_PARSED;
+    }
+  }
+  
+  private static long parseLegacy(String date) throws ParseException {
     // try to remove invalid time zone (remove dot)
-    date = tzpat.matcher(date).replaceFirst("$1$2");
+    date = removeTimeZoneColon(date);
     
-    // parse
-    ParsePosition pp = new ParsePosition(0);
+    final LegacyFormats formats = legacyFormats.get();
+    final ParsePosition akt = formats.pos;
+    int index = 0;
     Date d1 = null, d2 = null;
     
-    for (int i = 0, c = dateFormats.length; i < c; i++) {
-      DateFormat df = dateFormats[i];
-      ParsePosition akt = new ParsePosition(pp.getIndex());
+    for (final DateFormat df : formats.dateFormats) {
+      akt.setIndex(index);
+      akt.setErrorIndex(-1);
       d1 = df.parse(date, akt);
       if (akt.getErrorIndex() < 0) {
-        pp = akt;
+        index = akt.getIndex();
         break;
       } else d1 = null;
     }
     
-    for (int i = 0, c = timeFormats.length; i < c; i++) {
-      DateFormat df = timeFormats[i];
-      ParsePosition akt = new ParsePosition(pp.getIndex());
+    for (final DateFormat df : formats.timeFormats) {
+      akt.setIndex(index);
+      akt.setErrorIndex(-1);
       d2 = df.parse(date, akt);
       if (akt.getErrorIndex() < 0) {
-        pp = akt;
+        index = akt.getIndex();
         break;
       } else d2 = null;
     }
     
-    // System.err.println(d1);System.err.println(d2);System.err.println(pp);
-    if ((d1 == null && d2 == null) || pp.getIndex() != date.length()) throw new ParseException(
-        "Invalid date/time: " + date, pp.getIndex());
-    if (d1 == null) return d2;
-    if (d2 == null) return d1;
-    return new Date(d1.getTime() + d2.getTime());
+    if ((d1 == null && d2 == null) || index != date.length()) throw new ParseException(
+        "Invalid date/time: " + date, index);
+    if (d1 == null) return d2.getTime();
+    if (d2 == null) return d1.getTime();
+    return d1.getTime() + d2.getTime();
+  }
+  
+  /** Converts a time zone like <code>+01:00</code> at the end of the string to <code>+0100</code>. */
+  private static String removeTimeZoneColon(String date) {
+    final int l = date.length();
+    if (l >= 6 && (date.charAt(l - 6) == '+' || date.charAt(l - 6) == '-') && isDigit(date.charAt(l - 5)) && isDigit(date.charAt(l - 4))
+        && date.charAt(l - 3) == ':' && isDigit(date.charAt(l - 2)) && isDigit(date.charAt(l - 1))) {
+      return date.substring(0, l - 3).concat(date.substring(l - 2));
+    }
+    return date;
+  }
+  
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
   }
   
   /** For testing the parser from command line. */
@@ -84,10 +168,51 @@ public final class LenientDateParser {
       System.out.println(parseDate(d));
   }
   
-  // static constants
-  private static Pattern tzpat = Pattern
-      .compile("([\\+\\-]\\d\\d)\\:(\\d\\d)\\z");
-  private static DateFormat[] dateFormats = {
+  private static final long NOT_PARSED = Long.MIN_VALUE;
+  private static final long MILLIS_PER_DAY = 86_400_000L;
+  // the legacy parser uses the Julian calendar before 1582-10-15:
+  private static final int MIN_ISO_YEAR = 1583, MAX_ISO_YEAR = 9999;
+  
+  private static final DateTimeFormatter ISO_FORMAT = new DateTimeFormatterBuilder()
+      .appendPattern("uuuu[-MM[-dd['T'HH:mm[:ss[.SSS]][XXX][XX]]]]")
+      .toFormatter(Locale.ROOT)
+      .withChronology(IsoChronology.INSTANCE)
+      .withResolverStyle(ResolverStyle.STRICT);
+  
+  private static final int CACHE_BITS = 10;
+  
+  /** Immutable, so it can be shared between threads without locking. */
+  private static final class CacheEntry {
+    final String date;
+    final long time;
+    
+    CacheEntry(String date, long time) {
+      this.date = date;
+      this.time = time;
+    }
+  }
+  
+  // lossy cache, entries are replaced on collisions:
+  private static final CacheEntry[] cache = new CacheEntry[1 << CACHE_BITS];
+  
+  private static final class LegacyFormats {
+    final DateFormat[] dateFormats = cloneFormats(DATE_FORMATS);
+    final DateFormat[] timeFormats = cloneFormats(TIME_FORMATS);
+    final ParsePosition pos = new ParsePosition(0);
+    
+    private static DateFormat[] cloneFormats(DateFormat[] formats) {
+      final DateFormat[] clones = new DateFormat[formats.length];
+      for (int i = 0; i < formats.length; i++) {
+        clones[i] = (DateFormat) formats[i].clone();
+      }
+      return clones;
+    }
+  }
+  
+  private static final ThreadLocal<LegacyFormats> legacyFormats = ThreadLocal.withInitial(LegacyFormats::new);
+  
+  // static constants (prototypes, each thread uses clones)
+  private static final DateFormat[] DATE_FORMATS = {
       new SimpleDateFormat("yyyy-MM-dd'T'", Locale.ROOT),
       new SimpleDateFormat("yyyy-MM-dd", Locale.ROOT),
       DateFormat.getDateInstance(DateFormat.FULL, Locale.US),
@@ -95,7 +220,7 @@ public final class LenientDateParser {
       DateFormat.getDateInstance(DateFormat.SHORT, Locale.US),
       new SimpleDateFormat("yyyy-MM", Locale.ROOT),
       new SimpleDateFormat("yyyy", Locale.ROOT),};
-  private static DateFormat[] timeFormats = {
+  private static final DateFormat[] TIME_FORMATS = {
       new SimpleDateFormat("HH:mm:ss.SSS'Z'", Locale.ROOT),
       new SimpleDateFormat("HH:mm:ss'Z'", Locale.ROOT),
       new SimpleDateFormat("HH:mm'Z'", Locale.ROOT),
@@ -111,27 +236,27 @@ public final class LenientDateParser {
       DateFormat.getTimeInstance(DateFormat.FULL, Locale.US),
       DateFormat.getTimeInstance(DateFormat.MEDIUM, Locale.US),
       DateFormat.getTimeInstance(DateFormat.SHORT, Locale.US),};
+  // times without time zone are in the default time zone:
+  private static final TimeZone TIME_ZONE = TimeZone.getDefault();
+  private static final ZoneId TIME_ZONE_ID = TIME_ZONE.toZoneId();
   static {
     TimeZone UTC = TimeZone.getTimeZone(ZoneOffset.UTC);
-    for (int i = 0, c = dateFormats.length; i < c; i++) {
-      DateFormat df = dateFormats[i];
+    for (int i = 0, c = DATE_FORMATS.length; i < c; i++) {
+      DateFormat df = DATE_FORMATS[i];
       df.setTimeZone(UTC);
       df.setLenient(true);
-      // System.err.println(((SimpleDateFormat)df).toPattern());
     }
-    TimeZone tz = TimeZone.getDefault();
-    for (int i = 0, c = timeFormats.length; i < c; i++) {
-      DateFormat df = timeFormats[i];
-      df.setTimeZone(tz);
+    for (int i = 0, c = TIME_FORMATS.length; i < c; i++) {
+      DateFormat df = TIME_FORMATS[i];
+      df.setTimeZone(TIME_ZONE);
       df.setLenient(true);
-      // System.err.println(((SimpleDateFormat)df).toPattern());
     }
-    timeFormats[0].setTimeZone(UTC);
-    timeFormats[0].setLenient(false);
-    timeFormats[1].setTimeZone(UTC);
-    timeFormats[1].setLenient(false);
-    timeFormats[2].setTimeZone(UTC);
-    timeFormats[2].setLenient(false);
+    TIME_FORMATS[0].setTimeZone(UTC);
+    TIME_FORMATS[0].setLenient(false);
+    TIME_FORMATS[1].setTimeZone(UTC);
+    TIME_FORMATS[1].setLenient(false);
+    TIME_FORMATS[2].setTimeZone(UTC);
+    TIME_FORMATS[2].setLenient(false);
   }
   
-}
\ No newline at end of file
+}
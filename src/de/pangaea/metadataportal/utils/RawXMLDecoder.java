@@ -0,0 +1,136 @@
+/*
+ *   Copyright panFMP Developers Team c/o Uwe Schindler
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package de.pangaea.metadataportal.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Converts the unparsed contents of an XML document to a String, that can be stored
+ * instead of a serialization of the parsed document. The XML declaration is removed
+ * (like the serializer does with {@link javax.xml.transform.OutputKeys#OMIT_XML_DECLARATION}).
+ * Documents, that would not parse to the same tree without their context, are rejected:
+ * documents with a document type declaration (which may define entities, default attributes,
+ * or refer to external files) and XML 1.1 documents.
+ */
+public final class RawXMLDecoder {
+
+  private RawXMLDecoder() {} // no instance
+
+  private static final Pattern XML_DECL = Pattern.compile("^<\\?xml\\s[^?]*\\?>\\s*");
+  private static final Pattern ENCODING = Pattern.compile("\\sencoding\\s*=\\s*[\"']([A-Za-z][A-Za-z0-9._\\-]*)[\"']");
+  private static final Pattern VERSION = Pattern.compile("\\sversion\\s*=\\s*[\"']([0-9.]+)[\"']");
+
+  /**
+   * Decodes the given bytes using the given encoding or (if {@code null}) the encoding
+   * detected from the byte order mark or the XML declaration, and strips the XML declaration.
+   *
+   * @return the XML document as String, or {@code null}, if it cannot be used without parsing
+   */
+  public static String decode(byte[] bytes, String encoding) {
+    int offset = 0;
+    Charset cs = null;
+    if (startsWith(bytes, 0xEF, 0xBB, 0xBF)) {
+      cs = StandardCharsets.UTF_8;
+      offset = 3;
+    } else if (startsWith(bytes, 0xFE, 0xFF)) {
+      cs = StandardCharsets.UTF_16BE;
+      offset = 2;
+    } else if (startsWith(bytes, 0xFF, 0xFE)) {
+      cs = StandardCharsets.UTF_16LE;
+      offset = 2;
+    } else if (startsWith(bytes, 0x00, 0x3C, 0x00, 0x3F)) {
+      cs = StandardCharsets.UTF_16BE;
+    } else if (startsWith(bytes, 0x3C, 0x00, 0x3F, 0x00)) {
+      cs = StandardCharsets.UTF_16LE;
+    }
+    if (encoding == null && cs == null) {
+      encoding = getDeclaredEncoding(bytes);
+    }
+    if (encoding != null) {
+      try {
+        cs = Charset.forName(encoding);
+      } catch (IllegalArgumentException e) {
+        return null; // let the parser complain
+      }
+    }
+    if (cs == null) {
+      cs = StandardCharsets.UTF_8;
+    }
+    final String xml;
+    try {
+      xml = cs.newDecoder().decode(ByteBuffer.wrap(bytes, offset, bytes.length - offset)).toString();
+    } catch (CharacterCodingException e) {
+      return null;
+    }
+    return strip(xml);
+  }
+
+  /**
+   * Strips the byte order mark and the XML declaration from the given XML document.
+   *
+   * @return the XML document, or {@code null}, if it cannot be used without parsing
+   */
+  public static String strip(String xml) {
+    if (xml.startsWith("\uFEFF")) {
+      xml = xml.substring(1);
+    }
+    final Matcher m = XML_DECL.matcher(xml);
+    if (m.find()) {
+      final Matcher v = VERSION.matcher(m.group());
+      if (v.find() && !"1.0".equals(v.group(1))) {
+        return null;
+      }
+      xml = xml.substring(m.end());
+    }
+    if (xml.contains("<!DOCTYPE")) {
+      return null;
+    }
+    return xml;
+  }
+
+  private static String getDeclaredEncoding(byte[] bytes) {
+    // the XML declaration only contains ASCII characters:
+    int end = 0;
+    while (end < bytes.length && end < 256 && bytes[end] > 0 && bytes[end] != '>') {
+      end++;
+    }
+    final String decl = new String(bytes, 0, end, StandardCharsets.US_ASCII);
+    if (!decl.startsWith("<?xml")) {
+      return null;
+    }
+    final Matcher m = ENCODING.matcher(decl);
+    return m.find() ? m.group(1) : null;
+  }
+
+  private static boolean startsWith(byte[] bytes, int... prefix) {
+    if (bytes.length < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if ((bytes[i] & 0xFF) != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+}
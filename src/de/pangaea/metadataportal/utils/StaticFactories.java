@@ -20,13 +20,15 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.sax.SAXTransformerFactory;
-import javax.xml.xpath.XPathFactory;
+import javax.xml.transform.sax.TransformerHandler;
 
+import org.apache.xalan.templates.StylesheetRoot;
 import org.apache.xalan.xsltc.trax.TransformerFactoryImpl;
 import org.apache.xerces.jaxp.DocumentBuilderFactoryImpl;
 import org.apache.xerces.jaxp.SAXParserFactoryImpl;
-import org.apache.xpath.jaxp.XPathFactoryImpl;
 
 /**
  * Some pre-allocated XML factories.
@@ -37,14 +39,14 @@ public final class StaticFactories {
   
   private StaticFactories() {} // no instance
   
-  public static final XPathFactory xpathFactory;
+  /** XSLTC, which compiles stylesheets to bytecode (also used for identity transformations). */
   public static final SAXTransformerFactory transFactory;
+  /** The interpretive Xalan processor, for stylesheets that XSLTC cannot compile. */
+  public static final SAXTransformerFactory interpretiveTransFactory;
   public static final SAXParserFactory saxFactory;
   public static final DocumentBuilderFactory dbf;
   public static final DocumentBuilder dombuilder;
   static {
-    xpathFactory = new XPathFactoryImpl();
-    
     saxFactory = new SAXParserFactoryImpl();
     saxFactory.setNamespaceAware(true);
     saxFactory.setValidating(false);
@@ -53,6 +55,10 @@ public final class StaticFactories {
     transFactory.setErrorListener(new LoggingErrorListener(transFactory
         .getClass()));
     
+    interpretiveTransFactory = new org.apache.xalan.processor.TransformerFactoryImpl();
+    interpretiveTransFactory.setErrorListener(new LoggingErrorListener(interpretiveTransFactory
+        .getClass()));
+    
     dbf = new DocumentBuilderFactoryImpl();
     dbf.setNamespaceAware(true);
     dbf.setCoalescing(true);
@@ -66,4 +72,12 @@ public final class StaticFactories {
     }
   }
   
+  /**
+   * Returns a {@link TransformerHandler} for the given templates, using the factory that
+   * created them (XSLTC or the interpretive processor), as the factories cannot use each other's templates.
+   */
+  public static TransformerHandler newTransformerHandler(Templates templates) throws TransformerConfigurationException {
+    return ((templates instanceof StylesheetRoot) ? interpretiveTransFactory : transFactory).newTransformerHandler(templates);
+  }
+  
 }
\ No newline at end of file
@@ -0,0 +1,103 @@
+/*
+ *   Copyright panFMP Developers Team c/o Uwe Schindler
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package de.pangaea.metadataportal.utils;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+
+/**
+ * A {@link ContentHandler} that passes all events to two other handlers
+ * (e.g., to a validator, which should not modify the events for the second one).
+ */
+public final class TeeContentHandler implements ContentHandler {
+
+  private final ContentHandler first, second;
+
+  public TeeContentHandler(ContentHandler first, ContentHandler second) {
+    this.first = first;
+    this.second = second;
+  }
+
+  @Override
+  public void setDocumentLocator(Locator locator) {
+    first.setDocumentLocator(locator);
+    second.setDocumentLocator(locator);
+  }
+
+  @Override
+  public void startDocument() throws SAXException {
+    first.startDocument();
+    second.startDocument();
+  }
+
+  @Override
+  public void endDocument() throws SAXException {
+    first.endDocument();
+    second.endDocument();
+  }
+
+  @Override
+  public void startPrefixMapping(String prefix, String uri) throws SAXException {
+    first.startPrefixMapping(prefix, uri);
+    second.startPrefixMapping(prefix, uri);
+  }
+
+  @Override
+  public void endPrefixMapping(String prefix) throws SAXException {
+    first.endPrefixMapping(prefix);
+    second.endPrefixMapping(prefix);
+  }
+
+  @Override
+  public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+    first.startElement(uri, localName, qName, atts);
+    second.startElement(uri, localName, qName, atts);
+  }
+
+  @Override
+  public void endElement(String uri, String localName, String qName) throws SAXException {
+    first.endElement(uri, localName, qName);
+    second.endElement(uri, localName, qName);
+  }
+
+  @Override
+  public void characters(char[] ch, int start, int length) throws SAXException {
+    first.characters(ch, start, length);
+    second.characters(ch, start, length);
+  }
+
+  @Override
+  public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+    first.ignorableWhitespace(ch, start, length);
+    second.ignorableWhitespace(ch, start, length);
+  }
+
+  @Override
+  public void processingInstruction(String target, String data) throws SAXException {
+    first.processingInstruction(target, data);
+    second.processingInstruction(target, data);
+  }
+
+  @Override
+  public void skippedEntity(String name) throws SAXException {
+    first.skippedEntity(name);
+    second.skippedEntity(name);
+  }
+
+}
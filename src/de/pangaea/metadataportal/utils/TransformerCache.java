@@ -0,0 +1,76 @@
+/*
+ *   Copyright panFMP Developers Team c/o Uwe Schindler
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package de.pangaea.metadataportal.utils;
+
+import java.lang.ref.SoftReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+
+/**
+ * Per-thread cache of {@link Transformer}s, keyed by their {@link Templates}.
+ * A transformer is taken out of the cache by {@link #acquire} and must be given back by
+ * {@link #release} after use, which resets its parameters and output properties.
+ * If the same templates are needed again before release (e.g., nested), a new transformer
+ * is created. The keys are weak, but a transformer may refer to its templates (the interpretive
+ * processor does), so the transformers are only softly referenced. Templates of a replaced configuration
+ * are therefore kept until memory gets low.
+ */
+public final class TransformerCache {
+
+  private TransformerCache() {} // no instance
+
+  private static final ThreadLocal<Map<Templates,SoftReference<Transformer>>> transformers = ThreadLocal.withInitial(WeakHashMap::new);
+  private static final ThreadLocal<Transformer> identityTransformer = new ThreadLocal<>();
+
+  /**
+   * Returns a transformer for the given templates, or an identity transformer
+   * (see {@link StaticFactories#transFactory}) if {@code templates} is {@code null}.
+   */
+  public static Transformer acquire(Templates templates, ErrorListener errorListener) throws TransformerConfigurationException {
+    Transformer trans;
+    if (templates == null) {
+      trans = identityTransformer.get();
+      identityTransformer.remove();
+      if (trans == null) trans = StaticFactories.transFactory.newTransformer();
+    } else {
+      final SoftReference<Transformer> ref = transformers.get().remove(templates);
+      trans = (ref == null) ? null : ref.get();
+      if (trans == null) trans = templates.newTransformer();
+    }
+    trans.setErrorListener(errorListener);
+    return trans;
+  }
+
+  /** Resets the transformer and puts it back into the cache of the current thread. */
+  public static void release(Templates templates, Transformer trans) {
+    if (templates == null) {
+      trans.reset();
+      identityTransformer.set(trans);
+    } else {
+      // XSLTC's reset() does not clear the parameters of the translet:
+      trans.clearParameters();
+      trans.reset();
+      transformers.get().put(templates, new SoftReference<>(trans));
+    }
+  }
+
+}
@@ -0,0 +1,72 @@
+/*
+ *   Copyright panFMP Developers Team c/o Uwe Schindler
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package de.pangaea.metadataportal.utils;
+
+import java.lang.ref.SoftReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.xml.validation.Schema;
+import javax.xml.validation.Validator;
+import javax.xml.validation.ValidatorHandler;
+
+/**
+ * Per-thread cache of {@link Validator}s and {@link ValidatorHandler}s, keyed by their {@link Schema}.
+ * Like {@link TransformerCache}, a validator is taken out of the cache by one of the
+ * {@code acquire} methods and must be given back by the corresponding {@code release} method
+ * after use. If the same schema is needed again before release, a new validator is created.
+ * As validators may refer to their schema, they are softly referenced like in {@link TransformerCache},
+ * so schemas of a replaced configuration are kept until memory gets low.
+ */
+public final class ValidatorCache {
+
+  private ValidatorCache() {} // no instance
+
+  private static final ThreadLocal<Map<Schema,SoftReference<Validator>>> validators = ThreadLocal.withInitial(WeakHashMap::new);
+  private static final ThreadLocal<Map<Schema,SoftReference<ValidatorHandler>>> validatorHandlers = ThreadLocal.withInitial(WeakHashMap::new);
+
+  /** Returns a validator for the given schema. */
+  public static Validator acquireValidator(Schema schema) {
+    final SoftReference<Validator> ref = validators.get().remove(schema);
+    final Validator val = (ref == null) ? null : ref.get();
+    return (val == null) ? schema.newValidator() : val;
+  }
+
+  /** Resets the validator and puts it back into the cache of the current thread. */
+  public static void releaseValidator(Schema schema, Validator val) {
+    val.reset();
+    validators.get().put(schema, new SoftReference<>(val));
+  }
+
+  /** Returns a validator handler for the given schema. */
+  public static ValidatorHandler acquireValidatorHandler(Schema schema) {
+    final SoftReference<ValidatorHandler> ref = validatorHandlers.get().remove(schema);
+    final ValidatorHandler handler = (ref == null) ? null : ref.get();
+    return (handler == null) ? schema.newValidatorHandler() : handler;
+  }
+
+  /**
+   * Detaches the handlers from the validator handler and puts it back into the cache of the current thread.
+   * Its validation state is reset by the next {@code startDocument()}.
+   */
+  public static void releaseValidatorHandler(Schema schema, ValidatorHandler handler) {
+    handler.setContentHandler(null);
+    handler.setErrorHandler(null);
+    validatorHandlers.get().put(schema, new SoftReference<>(handler));
+  }
+
+}
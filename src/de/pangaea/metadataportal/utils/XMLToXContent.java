@@ -0,0 +1,386 @@
+/*
+ *   Copyright panFMP Developers Team c/o Uwe Schindler
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package de.pangaea.metadataportal.utils;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.xml.XMLConstants;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.namespace.QName;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Converts an {@link Element} of a DOM tree to JSON, writing it directly to a {@link XContentBuilder}.
+ * Elements that have child elements or attributes are converted to JSON objects; attributes
+ * and elements with a local name starting with {@link #ATTRIBUTE_ELEMENT_PREFIX} get keys
+ * prefixed by {@code @}. Repeated keys are combined to an array (at the position of the first one).
+ * Elements with text only are converted to strings or, if they have an {@code xsi:type}
+ * attribute referring to a built-in XML Schema datatype, to the corresponding JSON value.
+ * Empty elements are converted to {@code null}. Mixed content is not allowed.
+ * <p>
+ * This class cannot handle adjacent text nodes, so the DOM tree should be normalized first.
+ * Instances are created by {@link #of}, which checks the element, and are written lazily when
+ * the {@link KeyValuePairs} containing them are serialized. The DOM tree must not be modified
+ * in the meantime.
+ * @see Node#normalize()
+ */
+public final class XMLToXContent implements ToXContent {
+
+  /**
+   * If an element has a local name with this prefix, it is converted to a JSON attribute, prefixed by {@code @}.
+   */
+  public static final String ATTRIBUTE_ELEMENT_PREFIX = "__AT_";
+
+  private static final Set<String> HIDDEN_ATTR_NAMESPACES = Set.of(
+      XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+      XMLConstants.XML_NS_URI,
+      XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI
+  );
+
+  private static final Pattern INTEGER_PATTERN = Pattern.compile("[+\\-]?[0-9]+");
+  private static final Pattern DECIMAL_PATTERN = Pattern.compile("[+\\-]?(?:[0-9]+(?:\\.[0-9]*)?|\\.[0-9]+)");
+  private static final Pattern FLOAT_PATTERN = Pattern.compile("[+\\-]?(?:[0-9]+(?:\\.[0-9]*)?|\\.[0-9]+)(?:[eE][+\\-]?[0-9]+)?");
+
+  private static final DatatypeFactory DATATYPE_FACTORY;
+  static {
+    try {
+      DATATYPE_FACTORY = DatatypeFactory.newInstance();
+    } catch (DatatypeConfigurationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private enum Kind { NULL, TEXT, OBJECT }
+
+  private final Element element;
+
+  private XMLToXContent(Element element) {
+    this.element = element;
+  }
+
+  /**
+   * Checks the given element (and all its children) for content, that cannot be converted,
+   * and returns an instance, that writes it as JSON value. Empty elements return {@code null}.
+   * @throws IllegalArgumentException if the element contains mixed content or an invalid {@code xsi:type}
+   */
+  public static XMLToXContent of(Element element) {
+    return (check(element) == Kind.NULL) ? null : new XMLToXContent(element);
+  }
+
+  /**
+   * Writes the given element as JSON value to the builder. Empty elements are written as {@code null}.
+   * @throws IllegalArgumentException if the element contains mixed content or an invalid {@code xsi:type}
+   */
+  public static void writeValue(XContentBuilder builder, Element element) throws IOException {
+    switch (getKind(element)) {
+      case OBJECT:
+        writeObject(builder, element);
+        break;
+      case TEXT:
+        builder.value(convertText(element));
+        break;
+      default:
+        builder.nullValue();
+    }
+  }
+
+  @Override
+  public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+    writeValue(builder, element);
+    return builder;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>This should be used for debugging only!
+   */
+  @Override
+  public String toString() {
+    try {
+      final XContentBuilder builder = XContentFactory.jsonBuilder();
+      toXContent(builder, EMPTY_PARAMS);
+      return builder.string();
+    } catch (IOException ioe) {
+      throw new AssertionError(ioe);
+    }
+  }
+
+  private static Kind check(Element element) {
+    Kind kind = getKind(element);
+    switch (kind) {
+      case OBJECT:
+        for (Node nod = element.getFirstChild(); nod != null; nod = nod.getNextSibling()) {
+          if (nod.getNodeType() == Node.ELEMENT_NODE) {
+            check((Element) nod);
+          }
+        }
+        break;
+      case TEXT:
+        getSchemaType(element);
+        if (isNil(element)) {
+          kind = Kind.NULL;
+        }
+        break;
+      default:
+        break;
+    }
+    return kind;
+  }
+
+  private static Kind getKind(Element element) {
+    boolean hasText = false, hasTextNodes = false, hasElementsOrAttrs = false;
+    final NamedNodeMap atts = element.getAttributes();
+    for (int i = 0, c = atts.getLength(); i < c; i++) {
+      if (!isHidden(atts.item(i))) {
+        hasElementsOrAttrs = true;
+      }
+    }
+    for (Node nod = element.getFirstChild(); nod != null; nod = nod.getNextSibling()) {
+      switch (nod.getNodeType()) {
+        case Node.ELEMENT_NODE:
+          hasElementsOrAttrs = true;
+          break;
+        case Node.TEXT_NODE:
+        case Node.CDATA_SECTION_NODE:
+          hasTextNodes = true;
+          if (!hasText && !nod.getNodeValue().trim().isEmpty()) {
+            hasText = true;
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    if (hasElementsOrAttrs) {
+      if (hasTextNodes) {
+        throw new IllegalArgumentException("The element contains mixed element/text content, which is not allowed for JSON");
+      }
+      return Kind.OBJECT;
+    }
+    return hasText ? Kind.TEXT : Kind.NULL;
+  }
+
+  private static boolean isHidden(Node n) {
+    final String uri = n.getNamespaceURI();
+    return uri == null ? false : HIDDEN_ATTR_NAMESPACES.contains(uri);
+  }
+
+  private static boolean isNil(Element element) {
+    final String nil = element.getAttributeNS(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "nil").trim();
+    return "true".equals(nil) || "1".equals(nil);
+  }
+
+  private static String getKey(Node n) {
+    final String name = n.getLocalName();
+    if (n.getNodeType() == Node.ATTRIBUTE_NODE) {
+      return "@".concat(name);
+    }
+    return name.startsWith(ATTRIBUTE_ELEMENT_PREFIX) ? "@".concat(name.substring(ATTRIBUTE_ELEMENT_PREFIX.length())) : name;
+  }
+
+  private static void writeObject(XContentBuilder builder, Element element) throws IOException {
+    // keys are written in order of their first occurrence, repeated ones as array:
+    final Map<String,List<Node>> groups = new LinkedHashMap<>();
+    final NamedNodeMap atts = element.getAttributes();
+    for (int i = 0, c = atts.getLength(); i < c; i++) {
+      final Node att = atts.item(i);
+      if (!isHidden(att)) {
+        groups.computeIfAbsent(getKey(att), k -> new ArrayList<>(1)).add(att);
+      }
+    }
+    for (Node nod = element.getFirstChild(); nod != null; nod = nod.getNextSibling()) {
+      if (nod.getNodeType() == Node.ELEMENT_NODE) {
+        groups.computeIfAbsent(getKey(nod), k -> new ArrayList<>(1)).add(nod);
+      }
+    }
+    builder.startObject();
+    for (final Map.Entry<String,List<Node>> e : groups.entrySet()) {
+      final List<Node> nodes = e.getValue();
+      if (nodes.size() == 1) {
+        builder.field(e.getKey());
+        writeNode(builder, nodes.get(0));
+      } else {
+        builder.startArray(e.getKey());
+        for (final Node nod : nodes) {
+          writeNode(builder, nod);
+        }
+        builder.endArray();
+      }
+    }
+    builder.endObject();
+  }
+
+  private static void writeNode(XContentBuilder builder, Node n) throws IOException {
+    if (n.getNodeType() == Node.ATTRIBUTE_NODE) {
+      builder.value(n.getNodeValue());
+    } else {
+      writeValue(builder, (Element) n);
+    }
+  }
+
+  /** Returns the local name of the built-in XML Schema datatype given by {@code xsi:type}, or {@code null}. */
+  private static String getSchemaType(Element element) {
+    final String type = element.getAttributeNS(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "type").trim();
+    if (type.isEmpty()) {
+      return null;
+    }
+    final QName qname = parseQName(element, type);
+    if (qname == null) {
+      throw new IllegalArgumentException("prefix " + type.substring(0, type.indexOf(':')) + " is not bound to a namespace");
+    }
+    return XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(qname.getNamespaceURI()) ? qname.getLocalPart() : null;
+  }
+
+  /** Resolves a prefixed name in the context of the given element; returns {@code null}, if the prefix is not bound. */
+  private static QName parseQName(Element element, String name) {
+    final int colon = name.indexOf(':');
+    final String prefix = (colon < 0) ? null : name.substring(0, colon);
+    final String uri = element.lookupNamespaceURI(prefix);
+    if (uri == null && prefix != null) {
+      return null;
+    }
+    return new QName((uri == null) ? XMLConstants.NULL_NS_URI : uri, name.substring(colon + 1), (prefix == null) ? XMLConstants.DEFAULT_NS_PREFIX : prefix);
+  }
+
+  /**
+   * Converts the text of an element according to its {@code xsi:type}.
+   * Invalid values are converted to {@code null}.
+   */
+  private static Object convertText(Element element) {
+    if (isNil(element)) {
+      return null;
+    }
+    final String text = element.getTextContent();
+    final String type = getSchemaType(element);
+    if (type == null) {
+      return text;
+    }
+    final String value = text.trim();
+    try {
+      switch (type) {
+        case "boolean":
+          switch (value) {
+            case "true": case "1": return Boolean.TRUE;
+            case "false": case "0": return Boolean.FALSE;
+            default: return null;
+          }
+        case "byte":
+          return Byte.valueOf(value);
+        case "short":
+        case "unsignedByte":
+          return checkRange(type, Short.valueOf(value));
+        case "int":
+        case "unsignedShort":
+          return checkRange(type, Integer.valueOf(value));
+        case "long":
+        case "unsignedInt":
+          return checkRange(type, Long.valueOf(value));
+        case "integer":
+        case "nonPositiveInteger":
+        case "negativeInteger":
+        case "nonNegativeInteger":
+        case "positiveInteger":
+        case "unsignedLong":
+          return INTEGER_PATTERN.matcher(value).matches() ? new BigInteger(value) : null;
+        case "decimal":
+          return DECIMAL_PATTERN.matcher(value).matches() ? new BigDecimal(value) : null;
+        case "float":
+          return Float.valueOf(toJavaFloatingPoint(value));
+        case "double":
+          return Double.valueOf(toJavaFloatingPoint(value));
+        case "dateTime":
+        case "date":
+        case "time":
+        case "gYearMonth":
+        case "gYear":
+        case "gMonthDay":
+        case "gDay":
+        case "gMonth":
+          return DATATYPE_FACTORY.newXMLGregorianCalendar(value);
+        case "duration":
+          return DATATYPE_FACTORY.newDuration(value);
+        case "base64Binary":
+          return Base64.getMimeDecoder().decode(value);
+        case "hexBinary":
+          return parseHex(value);
+        case "QName":
+          return parseQName(element, value);
+        default:
+          return text;
+      }
+    } catch (IllegalArgumentException | IllegalStateException e) {
+      // NumberFormatException is an IllegalArgumentException
+      return null;
+    }
+  }
+
+  private static Number checkRange(String type, Number n) {
+    final long v = n.longValue();
+    switch (type) {
+      case "unsignedByte": return (v >= 0L && v <= 0xFFL) ? n : null;
+      case "unsignedShort": return (v >= 0L && v <= 0xFFFFL) ? n : null;
+      case "unsignedInt": return (v >= 0L && v <= 0xFFFFFFFFL) ? n : null;
+      default: return n;
+    }
+  }
+
+  /** Converts the XML Schema lexical representation of a floating point number to the one of Java. */
+  private static String toJavaFloatingPoint(String value) {
+    switch (value) {
+      case "INF": return "Infinity";
+      case "-INF": return "-Infinity";
+      case "NaN": return "NaN";
+      default:
+        if (!FLOAT_PATTERN.matcher(value).matches()) {
+          throw new NumberFormatException("Invalid floating point value: " + value);
+        }
+        return value;
+    }
+  }
+
+  private static byte[] parseHex(String value) {
+    if ((value.length() & 1) != 0) {
+      return null;
+    }
+    final byte[] bytes = new byte[value.length() >> 1];
+    for (int i = 0; i < bytes.length; i++) {
+      final int hi = Character.digit(value.charAt(2 * i), 16), lo = Character.digit(value.charAt(2 * i + 1), 16);
+      if (hi < 0 || lo < 0) {
+        return null;
+      }
+      bytes[i] = (byte) ((hi << 4) | lo);
+    }
+    return bytes;
+  }
+
+}
@@ -0,0 +1,141 @@
+/*
+ *   Copyright panFMP Developers Team c/o Uwe Schindler
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package de.pangaea.metadataportal.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.transform.TransformerException;
+import javax.xml.xpath.XPathConstants;
+
+import org.apache.xml.dtm.DTMIterator;
+import org.apache.xpath.Expression;
+import org.apache.xpath.XPath;
+import org.apache.xpath.functions.FuncBoolean;
+import org.apache.xpath.functions.FuncCeiling;
+import org.apache.xpath.functions.FuncConcat;
+import org.apache.xpath.functions.FuncContains;
+import org.apache.xpath.functions.FuncCount;
+import org.apache.xpath.functions.FuncCurrent;
+import org.apache.xpath.functions.FuncExtElementAvailable;
+import org.apache.xpath.functions.FuncExtFunctionAvailable;
+import org.apache.xpath.functions.FuncFalse;
+import org.apache.xpath.functions.FuncFloor;
+import org.apache.xpath.functions.FuncGenerateId;
+import org.apache.xpath.functions.FuncId;
+import org.apache.xpath.functions.FuncLang;
+import org.apache.xpath.functions.FuncLast;
+import org.apache.xpath.functions.FuncLocalPart;
+import org.apache.xpath.functions.FuncNamespace;
+import org.apache.xpath.functions.FuncNormalizeSpace;
+import org.apache.xpath.functions.FuncNot;
+import org.apache.xpath.functions.FuncNumber;
+import org.apache.xpath.functions.FuncPosition;
+import org.apache.xpath.functions.FuncQname;
+import org.apache.xpath.functions.FuncRound;
+import org.apache.xpath.functions.FuncStartsWith;
+import org.apache.xpath.functions.FuncString;
+import org.apache.xpath.functions.FuncStringLength;
+import org.apache.xpath.functions.FuncSubstring;
+import org.apache.xpath.functions.FuncSubstringAfter;
+import org.apache.xpath.functions.FuncSubstringBefore;
+import org.apache.xpath.functions.FuncSum;
+import org.apache.xpath.functions.FuncTranslate;
+import org.apache.xpath.functions.FuncTrue;
+import org.apache.xpath.functions.FuncUnparsedEntityURI;
+import org.apache.xpath.jaxp.JAXPPrefixResolver;
+import org.apache.xpath.objects.XBoolean;
+import org.apache.xpath.objects.XNumber;
+import org.apache.xpath.objects.XString;
+import org.apache.xpath.operations.And;
+import org.apache.xpath.operations.Bool;
+import org.apache.xpath.operations.Div;
+import org.apache.xpath.operations.Equals;
+import org.apache.xpath.operations.Gt;
+import org.apache.xpath.operations.Gte;
+import org.apache.xpath.operations.Lt;
+import org.apache.xpath.operations.Lte;
+import org.apache.xpath.operations.Minus;
+import org.apache.xpath.operations.Mod;
+import org.apache.xpath.operations.Mult;
+import org.apache.xpath.operations.Neg;
+import org.apache.xpath.operations.NotEquals;
+import org.apache.xpath.operations.Or;
+import org.apache.xpath.operations.Plus;
+
+/**
+ * Determines the result type of XPath expressions from the expression tree
+ * of the Xalan XPath implementation (see {@link CompiledXPath}).
+ */
+public final class XPathResultTypes {
+
+  private XPathResultTypes() {} // no instance
+
+  /**
+   * Returns the result type of the given XPath expression, one of
+   * {@link XPathConstants#NODESET}, {@link XPathConstants#STRING},
+   * {@link XPathConstants#NUMBER}, or {@link XPathConstants#BOOLEAN}.
+   * Returns {@code null}, if the type is only known on evaluation
+   * (e.g., variable references or extension functions).
+   */
+  public static QName getResultType(String xpath, NamespaceContext ctx) {
+    final Expression expr;
+    try {
+      expr = new XPath(xpath, null, new JAXPPrefixResolver(ctx), XPath.SELECT, null).getExpression();
+    } catch (TransformerException e) {
+      return null;
+    }
+    if (expr instanceof DTMIterator) return XPathConstants.NODESET;
+    if (expr instanceof XString) return XPathConstants.STRING;
+    if (expr instanceof XNumber) return XPathConstants.NUMBER;
+    if (expr instanceof XBoolean) return XPathConstants.BOOLEAN;
+    return TYPES.get(expr.getClass());
+  }
+
+  private static final Map<Class<? extends Expression>,QName> TYPES = new HashMap<>();
+  static {
+    // node-sets (paths and unions are DTMIterators):
+    for (Class<? extends Expression> c : Set.of(FuncId.class, FuncCurrent.class)) {
+      TYPES.put(c, XPathConstants.NODESET);
+    }
+    // strings:
+    for (Class<? extends Expression> c : Set.of(org.apache.xpath.operations.String.class, FuncString.class,
+        FuncConcat.class, FuncSubstring.class, FuncSubstringBefore.class, FuncSubstringAfter.class,
+        FuncNormalizeSpace.class, FuncTranslate.class, FuncLocalPart.class, FuncNamespace.class,
+        FuncQname.class, FuncGenerateId.class, FuncUnparsedEntityURI.class)) {
+      TYPES.put(c, XPathConstants.STRING);
+    }
+    // numbers:
+    for (Class<? extends Expression> c : Set.of(org.apache.xpath.operations.Number.class, Plus.class,
+        Minus.class, Mult.class, Div.class, Mod.class, Neg.class, FuncCount.class,
+        FuncSum.class, FuncNumber.class, FuncFloor.class, FuncCeiling.class, FuncRound.class,
+        FuncStringLength.class, FuncPosition.class, FuncLast.class)) {
+      TYPES.put(c, XPathConstants.NUMBER);
+    }
+    // booleans:
+    for (Class<? extends Expression> c : Set.of(Bool.class, Or.class, And.class, Equals.class,
+        NotEquals.class, Lt.class, Gt.class, Lte.class, Gte.class, FuncNot.class, FuncTrue.class,
+        FuncFalse.class, FuncBoolean.class, FuncContains.class, FuncStartsWith.class, FuncLang.class,
+        FuncExtFunctionAvailable.class, FuncExtElementAvailable.class)) {
+      TYPES.put(c, XPathConstants.BOOLEAN);
+    }
+  }
+
+}